@@ -0,0 +1,67 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call overhead of encrypting a small entry: a Cipher and SecureRandom created on every
+ * call (the old AESCrypto) against {@link AESCryptoEngine}'s per-thread instances. The key is
+ * derived once in setup so the KDF does not drown the difference.
+ *
+ * Arguments are entry sizes in characters (default 64 and 1024).
+ */
+public class AESCryptoEngineBenchmark {
+
+    private final AESCryptoEngine engine = new AESCryptoEngine();
+    private final String text;
+    private final byte[] key;
+
+    AESCryptoEngineBenchmark(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+        key = engine.randomBytes(AESCrypto.AES_KEY_SIZE / 8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int length : Bench.params(args, 64, 1024)) {
+            AESCryptoEngineBenchmark b = new AESCryptoEngineBenchmark(length);
+            String suffix = " length=" + length;
+            Bench.run("sealFreshObjects" + suffix, 3, 5, TimeUnit.MICROSECONDS, b::sealFreshObjects);
+            Bench.run("sealEngine" + suffix, 3, 5, TimeUnit.MICROSECONDS, b::sealEngine);
+        }
+    }
+
+    byte[] sealFreshObjects() throws Exception {
+        return PerCall.seal(key, text);
+    }
+
+    byte[] sealEngine() throws Exception {
+        Envelope envelope = new Envelope(AESCrypto.LEGACY_KDF, engine.randomBytes(AESCrypto.SALT_LENGTH),
+                Envelope.AEAD_AES_256_GCM, engine.randomBytes(AESCrypto.GCM_IV_LENGTH));
+        engine.seal(envelope, key.clone(), text);
+        return envelope.getBody();
+    }
+
+    // What AESCrypto did on every call before the engine
+    static final class PerCall {
+        static byte[] seal(byte[] key, String text) throws Exception {
+            SecureRandom random = new SecureRandom();
+            byte[] salt = new byte[AESCrypto.SALT_LENGTH];
+            byte[] iv = new byte[AESCrypto.GCM_IV_LENGTH];
+            random.nextBytes(salt);
+            random.nextBytes(iv);
+
+            Envelope envelope = new Envelope(AESCrypto.LEGACY_KDF, salt, Envelope.AEAD_AES_256_GCM, iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(AESCrypto.GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(envelope.associatedData());
+            return cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.pixelcloak.core;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing loop shared by the benchmark mains. Each iteration calls the body until at least
+ * {@link #ITERATION_NANOS} have passed and records the average time per call; warm-up iterations
+ * are run and discarded first, so the JIT has compiled the body before anything is measured.
+ * Results go to a volatile field so the calls cannot be optimised away.
+ */
+final class Bench {
+
+    static final long ITERATION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    interface Body {
+        Object run() throws Exception;
+    }
+
+    private static volatile Object sink;
+
+    private Bench() {
+    }
+
+    // Prints "name  mean +- half-range unit/op" over the measured iterations
+    static void run(String name, int warmup, int measurement, TimeUnit unit, Body body) throws Exception {
+        for (int i = 0; i < warmup; i++) iteration(body);
+        double sum = 0, min = Double.MAX_VALUE, max = 0;
+        for (int i = 0; i < measurement; i++) {
+            double nanos = iteration(body);
+            sum += nanos;
+            min = Math.min(min, nanos);
+            max = Math.max(max, nanos);
+        }
+        double perUnit = unit.toNanos(1);
+        System.out.printf(Locale.ROOT, "%-40s %12.3f +- %.3f %s/op%n", name, sum / measurement / perUnit,
+                (max - min) / 2 / perUnit, symbol(unit));
+    }
+
+    // Average nanoseconds per call over one iteration
+    private static double iteration(Body body) throws Exception {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = body.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return (double) elapsed / calls;
+    }
+
+    // Parameter values from the command line, or the defaults when none are given
+    static int[] params(String[] args, int... defaults) {
+        if (args.length == 0) return defaults;
+        int[] values = new int[args.length];
+        for (int i = 0; i < args.length; i++) values[i] = Integer.parseInt(args[i]);
+        return values;
+    }
+
+    private static String symbol(TimeUnit unit) {
+        switch (unit) {
+            case NANOSECONDS:
+                return "ns";
+            case MICROSECONDS:
+                return "us";
+            case MILLISECONDS:
+                return "ms";
+            default:
+                return unit.name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.pixelcloak.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Checks the password KDFs against the published test vectors: RFC 9106 section 5.3 (Argon2id)
+ * and RFC 7914 sections 11 and 12 (PBKDF2-HMAC-SHA256 and scrypt vector 3). Prints one line per
+ * vector and exits with status 1 if any output differs.
+ */
+public final class KdfVectors {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private KdfVectors() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = check("RFC 9106 5.3 Argon2id",
+                Argon2idKeyDerivation.argon2id(filled(32, 0x01), filled(16, 0x02), filled(8, 0x03), filled(12, 0x04),
+                        3, 32, 4, 32),
+                "0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659");
+        ok &= check("RFC 7914 11 PBKDF2-HMAC-SHA256 c=1",
+                Pbkdf2KeyDerivation.hmacSha256(ascii("passwd"), ascii("salt"), 1, 64),
+                "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+                        + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+        ok &= check("RFC 7914 12 scrypt N=16384 r=8 p=1",
+                ScryptKeyDerivation.scrypt(ascii("pleaseletmein"), ascii("SodiumChloride"), 16384, 8, 1, 64),
+                "7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                        + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean check(String name, byte[] actual, String expected) {
+        boolean match = Arrays.equals(actual, HEX.parseHex(expected));
+        System.out.println((match ? "ok    " : "FAIL  ") + name + (match ? "" : ": got " + HEX.formatHex(actual)));
+        return match;
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
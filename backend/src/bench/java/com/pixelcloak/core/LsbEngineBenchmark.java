@@ -0,0 +1,151 @@
+package com.pixelcloak.core;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LsbEngine} with the original getRGB/setRGB loop it replaced.
+ * The carrier is filled to capacity so both paths touch every pixel.
+ *
+ * Arguments are carrier sizes in megapixels (default 12, 24 and 50); each is run as
+ * TYPE_3BYTE_BGR and as TYPE_INT_RGB, the two ways ImageIO usually hands us an RGB PNG.
+ */
+public class LsbEngineBenchmark {
+
+    private static final String[] IMAGE_TYPES = {"TYPE_3BYTE_BGR", "TYPE_INT_RGB"};
+
+    private final BufferedImage carrier;
+    private final BufferedImage embedded;
+    private final byte[] payload;
+
+    LsbEngineBenchmark(int megapixels, String imageType) throws Exception {
+        int width = 4000;
+        int height = megapixels * 1_000_000 / width;
+        int type = BufferedImage.class.getField(imageType).getInt(null);
+
+        Random random = new Random(42);
+        carrier = new BufferedImage(width, height, type);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) row[x] = random.nextInt();
+            carrier.setRGB(0, y, width, 1, row, 0, width);
+        }
+
+        payload = new byte[(int) LsbEngine.capacityBytes(carrier)];
+        random.nextBytes(payload);
+
+        BufferedImage stego = LsbEngine.embed(carrier, payload);
+        embedded = new BufferedImage(width, height, type);
+        Graphics g = embedded.getGraphics();
+        g.drawImage(stego, 0, 0, null);
+        g.dispose();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int megapixels : Bench.params(args, 12, 24, 50)) {
+            for (String imageType : IMAGE_TYPES) {
+                LsbEngineBenchmark b = new LsbEngineBenchmark(megapixels, imageType);
+                String suffix = " " + megapixels + "MP " + imageType;
+                Bench.run("embedRaster" + suffix, 3, 5, TimeUnit.MILLISECONDS, b::embedRaster);
+                Bench.run("embedPerPixel" + suffix, 3, 5, TimeUnit.MILLISECONDS, b::embedPerPixel);
+                Bench.run("extractRaster" + suffix, 3, 5, TimeUnit.MILLISECONDS, b::extractRaster);
+                Bench.run("extractPerPixel" + suffix, 3, 5, TimeUnit.MILLISECONDS, b::extractPerPixel);
+            }
+        }
+    }
+
+    BufferedImage embedRaster() {
+        return LsbEngine.embed(carrier, payload);
+    }
+
+    BufferedImage embedPerPixel() {
+        return PerPixel.embed(carrier, payload);
+    }
+
+    byte[] extractRaster() {
+        byte[] out = new byte[payload.length];
+        LsbEngine.extract(embedded, 0, out, 0, out.length);
+        return out;
+    }
+
+    byte[] extractPerPixel() {
+        return PerPixel.extract(embedded, payload.length);
+    }
+
+    // The pre-LsbEngine implementation, kept verbatim as the baseline
+    static final class PerPixel {
+
+        static BufferedImage embed(BufferedImage image, byte[] data) {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int dataIndex = 0;
+            int bitIndex = 0;
+
+            BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics g = newImage.getGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (dataIndex >= data.length) return newImage;
+
+                    int pixel = newImage.getRGB(x, y);
+                    int red = (pixel >> 16) & 0xFF;
+                    int green = (pixel >> 8) & 0xFF;
+                    int blue = pixel & 0xFF;
+
+                    for (int i = 0; i < 3; i++) {
+                        if (dataIndex < data.length) {
+                            int bit = (data[dataIndex] >> (7 - bitIndex)) & 1;
+                            if (i == 0) red = (red & 0xFE) | bit;
+                            if (i == 1) green = (green & 0xFE) | bit;
+                            if (i == 2) blue = (blue & 0xFE) | bit;
+
+                            bitIndex++;
+                            if (bitIndex == 8) {
+                                bitIndex = 0;
+                                dataIndex++;
+                            }
+                        }
+                    }
+                    newImage.setRGB(x, y, (0xFF << 24) | (red << 16) | (green << 8) | blue);
+                }
+            }
+            return newImage;
+        }
+
+        static byte[] extract(BufferedImage image, int lengthToRead) {
+            byte[] data = new byte[lengthToRead];
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int dataIndex = 0;
+            int bitIndex = 0;
+            int currentByte = 0;
+
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (dataIndex >= lengthToRead) return data;
+
+                    int pixel = image.getRGB(x, y);
+                    int[] channels = {(pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF};
+
+                    for (int i = 0; i < 3; i++) {
+                        if (dataIndex < lengthToRead) {
+                            currentByte = (currentByte << 1) | (channels[i] & 1);
+                            bitIndex++;
+                            if (bitIndex == 8) {
+                                data[dataIndex++] = (byte) currentByte;
+                                bitIndex = 0;
+                                currentByte = 0;
+                            }
+                        }
+                    }
+                }
+            }
+            return data;
+        }
+    }
+}
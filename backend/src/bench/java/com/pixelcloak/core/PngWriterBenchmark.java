@@ -0,0 +1,85 @@
+package com.pixelcloak.core;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link PngWriter} with {@code ImageIO.write(image, "png", out)} on stego output.
+ * The carrier is a smooth gradient with sensor-like noise, filled to capacity with payload
+ * bits, so the LSB planes are as random as they are after a real embed.
+ *
+ * Arguments are carrier sizes in megapixels (default 12, 24 and 40); each is run at deflate
+ * levels 1 and 4.
+ */
+public class PngWriterBenchmark {
+
+    private static final int[] LEVELS = {1, 4};
+
+    private final BufferedImage stego;
+    private final int level;
+    private final int threads;
+
+    PngWriterBenchmark(int megapixels, int level) {
+        this.level = level;
+        int width = 4000;
+        int height = megapixels * 1_000_000 / width;
+
+        Random random = new Random(42);
+        BufferedImage carrier = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = ((x + y) * 255 / (width + height) + random.nextInt(9) - 4) & 0xFF;
+                row[x] = (v << 16) | ((255 - v) << 8) | (v / 2 + 64);
+            }
+            carrier.setRGB(0, y, width, 1, row, 0, width);
+        }
+
+        byte[] payload = new byte[(int) LsbEngine.capacityBytes(carrier)];
+        random.nextBytes(payload);
+        stego = LsbEngine.embed(carrier, payload);
+        threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int megapixels : Bench.params(args, 12, 24, 40)) {
+            for (int level : LEVELS) {
+                PngWriterBenchmark b = new PngWriterBenchmark(megapixels, level);
+                String suffix = " " + megapixels + "MP level=" + level;
+                Bench.run("imageIo" + suffix, 2, 5, TimeUnit.MILLISECONDS, b::imageIo);
+                Bench.run("pngWriterSingleThread" + suffix, 2, 5, TimeUnit.MILLISECONDS, b::pngWriterSingleThread);
+                Bench.run("pngWriterParallel" + suffix, 2, 5, TimeUnit.MILLISECONDS, b::pngWriterParallel);
+                Bench.run("pngWriterParallelSub" + suffix, 2, 5, TimeUnit.MILLISECONDS, b::pngWriterParallelSub);
+            }
+        }
+    }
+
+    // ImageIO always deflates at its default level 4, whatever 'level' is
+    int imageIo() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(stego, "png", out);
+        return out.size();
+    }
+
+    int pngWriterSingleThread() throws IOException {
+        return encode(new PngWriter.Options(level, PngWriter.Filter.ADAPTIVE, 1));
+    }
+
+    int pngWriterParallel() throws IOException {
+        return encode(new PngWriter.Options(level, PngWriter.Filter.ADAPTIVE, threads));
+    }
+
+    int pngWriterParallelSub() throws IOException {
+        return encode(new PngWriter.Options(level, PngWriter.Filter.SUB, threads));
+    }
+
+    private int encode(PngWriter.Options options) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PngWriter.write(stego, out, options);
+        return out.size();
+    }
+}
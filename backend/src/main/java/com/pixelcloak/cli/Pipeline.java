@@ -0,0 +1,216 @@
+package com.pixelcloak.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs items through a fixed sequence of stages, each with its own worker threads, connected by
+ * bounded queues. A slow stage therefore holds back the stages before it instead of letting items
+ * (decoded images, in our case) pile up in memory: at most workers + queue capacity items wait
+ * at each stage.
+ *
+ * An item whose step throws (an Error such as OutOfMemoryError included) is marked failed and
+ * passes through the remaining stages untouched, so every item reaches the sink exactly once, in
+ * completion order.
+ */
+final class Pipeline<T> {
+
+    interface Step<T> {
+        void process(T item) throws Exception;
+    }
+
+    interface Sink<T> {
+        // 'error' and 'stage' are null for items that went through every stage
+        void done(T item, Throwable error, String stage);
+    }
+
+    private final int queueCapacity;
+    private final List<Stage<T>> stages = new ArrayList<>();
+
+    Pipeline(int queueCapacity) {
+        if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    Pipeline<T> stage(String name, int workers, Step<T> step) {
+        if (workers <= 0) throw new IllegalArgumentException("Stage " + name + " needs at least one worker");
+        stages.add(new Stage<>(name, workers, step));
+        return this;
+    }
+
+    // Feeds every item from 'source' through the stages and blocks until the last one reached 'sink'
+    List<StageStats> run(Iterator<T> source, Sink<T> sink) throws InterruptedException {
+        List<BlockingQueue<Slot<T>>> queues = new ArrayList<>();
+        for (int i = 0; i <= stages.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++) {
+            Stage<T> stage = stages.get(i);
+            BlockingQueue<Slot<T>> in = queues.get(i);
+            BlockingQueue<Slot<T>> out = queues.get(i + 1);
+            AtomicInteger running = new AtomicInteger(stage.workers);
+            for (int w = 0; w < stage.workers; w++) {
+                Thread thread = new Thread(() -> work(stage, in, out, running), "pixelcloak-" + stage.name + "-" + w);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+
+        // The sink runs on its own thread so the caller can keep feeding
+        BlockingQueue<Slot<T>> last = queues.get(stages.size());
+        Thread drain = new Thread(() -> {
+            try {
+                Slot<T> slot;
+                while ((slot = last.take()).item != null) {
+                    sink.done(slot.item, slot.error, slot.stage);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pixelcloak-sink");
+        drain.setDaemon(true);
+        drain.start();
+
+        BlockingQueue<Slot<T>> first = queues.get(0);
+        while (source.hasNext()) {
+            first.put(new Slot<>(source.next()));
+        }
+        first.put(Slot.end());
+
+        for (Thread thread : threads) thread.join();
+        drain.join();
+
+        List<StageStats> stats = new ArrayList<>();
+        for (Stage<T> stage : stages) stats.add(stage.stats);
+        return stats;
+    }
+
+    private static <T> void work(Stage<T> stage, BlockingQueue<Slot<T>> in, BlockingQueue<Slot<T>> out,
+                                 AtomicInteger running) {
+        try {
+            while (true) {
+                Slot<T> slot = in.take();
+                if (slot.item == null) {
+                    // Leave the end marker for the other workers
+                    in.put(slot);
+                    return;
+                }
+                if (slot.error == null) {
+                    long start = System.nanoTime();
+                    try {
+                        stage.step.process(slot.item);
+                    } catch (Throwable t) {
+                        slot.error = t;
+                        slot.stage = stage.name;
+                    }
+                    stage.stats.record(System.nanoTime() - start, slot.error != null);
+                }
+                out.put(slot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The last worker to stop passes the end marker on, however the others stopped
+            if (running.decrementAndGet() == 0) {
+                try {
+                    out.put(Slot.end());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final class Stage<T> {
+        final String name;
+        final int workers;
+        final Step<T> step;
+        final StageStats stats;
+
+        Stage(String name, int workers, Step<T> step) {
+            this.name = name;
+            this.workers = workers;
+            this.step = step;
+            this.stats = new StageStats(name, workers);
+        }
+    }
+
+    private static final class Slot<T> {
+        final T item;
+        Throwable error;
+        String stage;
+
+        Slot(T item) {
+            this.item = item;
+        }
+
+        static <T> Slot<T> end() {
+            return new Slot<>(null);
+        }
+    }
+
+    /** Latencies of one stage; percentiles over every item it processed. */
+    static final class StageStats {
+        private final String name;
+        private final int workers;
+        private long[] nanos = new long[256];
+        private int count;
+        private int failures;
+        private long total;
+
+        StageStats(String name, int workers) {
+            this.name = name;
+            this.workers = workers;
+        }
+
+        synchronized void record(long elapsed, boolean failed) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = elapsed;
+            total += elapsed;
+            if (failed) failures++;
+        }
+
+        String name() {
+            return name;
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        // Time spent in this stage summed over its workers
+        synchronized long totalNanos() {
+            return total;
+        }
+
+        synchronized String summary() {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return String.format(Locale.ROOT, "%-8s %3d  %7d %6d %9.1f %9.1f %9.1f %9.1f",
+                    name, workers, count, failures,
+                    count == 0 ? 0.0 : total / 1e6 / count,
+                    percentile(sorted, 0.50), percentile(sorted, 0.95),
+                    count == 0 ? 0.0 : sorted[count - 1] / 1e6);
+        }
+
+        static String header() {
+            return String.format(Locale.ROOT, "%-8s %3s  %7s %6s %9s %9s %9s %9s",
+                    "stage", "thr", "items", "failed", "mean ms", "p50 ms", "p95 ms", "max ms");
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.pixelcloak.cli;
+
+import com.pixelcloak.core.AESCrypto;
+import com.pixelcloak.core.AnalysisResult;
+import com.pixelcloak.core.EmbeddingMode;
+import com.pixelcloak.core.Envelope;
+import com.pixelcloak.core.ImageAnalyzer;
+import com.pixelcloak.core.KeyCache;
+import com.pixelcloak.core.KeyDerivation;
+import com.pixelcloak.core.PngWriter;
+import com.pixelcloak.core.ScanService;
+import com.pixelcloak.core.Session;
+import com.pixelcloak.core.Steganography;
+import com.pixelcloak.core.TexturePlacement;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless bulk embed / reveal over a directory tree or a manifest, without the Swing UI.
+ *
+ * <pre>
+ * pixelcloak embed  (--dir DIR | --manifest FILE) --out DIR [--payload FILE] [--threads N] [--queue N]
+ *                   [--sequential] [--force] [--kdf SPEC] [--png-level N] [--bits N] [--scatter]
+ * pixelcloak reveal (--dir DIR | --manifest FILE) --out DIR [--threads N] [--queue N]
+ * pixelcloak scan   --dir DIR [--unlock] [--threads N] [--queue N]
+ * </pre>
+ *
+ * Images go through pipelined stages (decode, analyze, encrypt, embed, encode, write for embed;
+ * decode, extract, decrypt, write for reveal), each with --threads workers and --queue slots in
+ * front of it (default 2). A summary of throughput and per-stage latency is printed at the end.
+ * The password is read from PIXELCLOAK_PASSWORD, or from the console.
+ *
+ * A manifest lists one image per line, optionally followed by a tab and that image's payload
+ * file; relative paths are resolved against the manifest's directory. Embedded images keep their
+ * relative path under --out as .png; revealed payloads are written as .txt (journal entries) or
+ * .bin (binary payloads) next to where the image would be.
+ *
+ * --bits packs N low bits of each of R, G and B (see EmbeddingMode) for larger payloads, and
+ * --scatter spreads the body over the whole carrier in a key-seeded pixel order. Both imply
+ * --sequential, since texture placement only spreads 1-bit bodies tile by tile.
+ *
+ * scan lists every file under --dir that carries a payload, as results arrive (see ScanService);
+ * --queue is then the number of files in flight (default 256), and --unlock also tries the
+ * password on each.
+ *
+ * Exit code 0 if every image succeeded, 1 if some failed, 2 on a usage error.
+ */
+public class PixelCloakCli {
+
+    private static final String PASSWORD_ENV = "PIXELCLOAK_PASSWORD";
+    private static final List<String> IMAGE_EXTENSIONS = List.of(".png", ".jpg", ".jpeg", ".bmp", ".gif");
+
+    // Reveal derives each image's key from its own salt; images from one batch share a master salt
+    private static final int KEY_CACHE_ENTRIES = 64;
+    private static final Duration KEY_CACHE_TTL = Duration.ofMinutes(15);
+
+    // Default --queue: pipeline slots hold decoded images, scan slots only files in flight
+    private static final int PIPELINE_QUEUE = 2;
+    private static final int SCAN_IN_FLIGHT = 256;
+
+    private final String command;
+    private Path dir;
+    private Path manifest;
+    private Path out;
+    private Path payload;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    // --queue, or null for the command's default
+    private Integer queue;
+    private boolean sequential;
+    private boolean force;
+    private boolean unlock;
+    private int pngLevel = PngWriter.Options.DEFAULT.getLevel();
+    private int bits = 1;
+    private boolean scatter;
+
+    private PixelCloakCli(String command) {
+        this.command = command;
+    }
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println("pixelcloak: " + e.getMessage());
+            System.err.println(usage());
+            System.exit(2);
+        } catch (Exception e) {
+            System.err.println("pixelcloak: " + e);
+            System.exit(1);
+        }
+    }
+
+    static int run(String[] args) throws Exception {
+        if (args.length == 0 || !List.of("embed", "reveal", "scan").contains(args[0])) {
+            throw new IllegalArgumentException("Expected 'embed', 'reveal' or 'scan'");
+        }
+        PixelCloakCli cli = new PixelCloakCli(args[0]);
+        cli.parse(Arrays.copyOfRange(args, 1, args.length));
+        if (cli.command.equals("scan") && !cli.unlock) return cli.runScan(null);
+
+        List<Job> jobs = cli.command.equals("scan") ? List.of() : cli.jobs();
+        char[] password = readPassword();
+        try {
+            switch (cli.command) {
+                case "embed": return cli.runEmbed(jobs, password);
+                case "reveal": return cli.runReveal(jobs, password);
+                default: return cli.runScan(password);
+            }
+        } finally {
+            Arrays.fill(password, ' ');
+        }
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            switch (option) {
+                case "--sequential":
+                    sequential = true;
+                    continue;
+                case "--force":
+                    force = true;
+                    continue;
+                case "--unlock":
+                    unlock = true;
+                    continue;
+                case "--scatter":
+                    scatter = true;
+                    continue;
+                default:
+                    break;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+            switch (option) {
+                case "--dir": dir = Paths.get(value); break;
+                case "--manifest": manifest = Paths.get(value); break;
+                case "--out": out = Paths.get(value); break;
+                case "--payload": payload = Paths.get(value); break;
+                case "--threads": threads = positive(option, value); break;
+                case "--queue": queue = positive(option, value); break;
+                case "--kdf": AESCrypto.setKeyDerivation(KeyDerivation.parse(value)); break;
+                case "--png-level": pngLevel = pngLevel(value); break;
+                case "--bits": bits = bits(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (command.equals("scan")) {
+            if (dir == null) throw new IllegalArgumentException("scan needs --dir");
+            return;
+        }
+        if ((dir == null) == (manifest == null)) throw new IllegalArgumentException("Give either --dir or --manifest");
+        if (out == null) throw new IllegalArgumentException("--out is required");
+    }
+
+    // --- Embed ---
+
+    private int runEmbed(List<Job> jobs, char[] password) throws Exception {
+        EmbeddingMode mode = new EmbeddingMode(bits, EmbeddingMode.RGB, scatter);
+        Envelope.BodyLayout layout = sequential || !mode.isDefault()
+                ? Envelope.BodyLayout.packed(mode)
+                : Envelope.BodyLayout.textured(TexturePlacement.DEFAULT);
+
+        // One password KDF for the whole batch; every image gets its own HKDF entry key
+        try (Session session = Session.open(password)) {
+            Pipeline<Job> pipeline = new Pipeline<Job>(queue != null ? queue : PIPELINE_QUEUE)
+                    .stage("decode", threads, this::decode)
+                    .stage("analyze", threads, this::analyze)
+                    .stage("encrypt", threads, job -> encrypt(job, session, layout))
+                    .stage("embed", threads, this::embedEnvelope)
+                    .stage("encode", threads, this::encode)
+                    .stage("write", threads, this::write);
+            return report("embed", jobs, pipeline);
+        }
+    }
+
+    private void decode(Job job) throws IOException {
+        job.inputBytes = Files.size(job.source);
+        job.image = ImageIO.read(job.source.toFile());
+        if (job.image == null) throw new IOException("Unsupported image format");
+    }
+
+    private void analyze(Job job) {
+        AnalysisResult analysis = ImageAnalyzer.analyze(job.source.toFile(), job.image);
+        if (analysis.isError()) throw new IllegalStateException("Image analysis failed: " + analysis.getError());
+        if (!analysis.isSafe() && !force) {
+            throw new IllegalStateException(String.format(Locale.ROOT, "Image too simple (Score: %.2f)", analysis.getScore()));
+        }
+    }
+
+    // Segmented GCM into memory, so the embed stage only has to place bytes
+    private void encrypt(Job job, Session session, Envelope.BodyLayout layout) throws Exception {
+        Path source = job.payload != null ? job.payload : payload;
+        if (source == null) throw new IllegalArgumentException("No payload for this image");
+
+        Envelope envelope = AESCrypto.newStreamEnvelope(session, layout);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream encrypting = AESCrypto.encryptingStream(body, envelope, session)) {
+            in.transferTo(encrypting);
+        }
+        envelope.setBody(body.toByteArray());
+        job.envelope = envelope;
+    }
+
+    private void embedEnvelope(Job job) {
+        job.image = Steganography.embed(job.image, job.envelope);
+        job.envelope = null;
+    }
+
+    private void encode(Job job) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        PngWriter.Options options = new PngWriter.Options(pngLevel, PngWriter.Filter.ADAPTIVE,
+                PngWriter.Options.DEFAULT.getThreads());
+        PngWriter.write(job.image, png, options);
+        job.image = null;
+        job.output = png.toByteArray();
+        job.outputName = withExtension(job.relative, ".png");
+    }
+
+    // --- Reveal ---
+
+    private int runReveal(List<Job> jobs, char[] password) throws Exception {
+        AESCrypto.enableKeyCache(new KeyCache(KEY_CACHE_ENTRIES, KEY_CACHE_TTL));
+        try {
+            Pipeline<Job> pipeline = new Pipeline<Job>(queue != null ? queue : PIPELINE_QUEUE)
+                    .stage("decode", threads, this::decode)
+                    .stage("extract", threads, job -> extract(job, password))
+                    .stage("decrypt", threads, job -> decrypt(job, password))
+                    .stage("write", threads, this::write);
+            return report("reveal", jobs, pipeline);
+        } finally {
+            AESCrypto.disableKeyCache();
+        }
+    }
+
+    private void extract(Job job, char[] password) throws Exception {
+        job.envelope = Steganography.extractEnvelope(job.image, password);
+        if (job.envelope == null) {
+            // Images saved before the envelope format carry a Base64 string
+            job.legacy = Steganography.extract(job.image);
+            if (job.legacy == null) throw new IllegalStateException("No hidden data found or image is corrupt.");
+        }
+        job.image = null;
+    }
+
+    private void decrypt(Job job, char[] password) throws Exception {
+        Envelope envelope = job.envelope;
+        if (envelope == null) {
+            job.output = AESCrypto.decrypt(job.legacy, password).getBytes(StandardCharsets.UTF_8);
+            job.outputName = withExtension(job.relative, ".txt");
+        } else if (envelope.getAeadId() == Envelope.AEAD_AES_256_GCM_STREAM) {
+            try (InputStream in = AESCrypto.decryptingStream(new ByteArrayInputStream(envelope.getBody()), envelope, password)) {
+                job.output = in.readAllBytes();
+            }
+            job.outputName = withExtension(job.relative, ".bin");
+        } else {
+            job.output = AESCrypto.decrypt(envelope, password).getBytes(StandardCharsets.UTF_8);
+            job.outputName = withExtension(job.relative, ".txt");
+        }
+        job.envelope = null;
+        job.legacy = null;
+    }
+
+    // --- Scan ---
+
+    // One line per file with a payload (or an error) as soon as it is found, then the totals
+    private int runScan(char[] password) {
+        if (password != null) AESCrypto.enableKeyCache(new KeyCache(KEY_CACHE_ENTRIES, KEY_CACHE_TTL));
+        int queueSlots = queue != null ? queue : SCAN_IN_FLIGHT;
+        Map<ScanService.Status, Integer> counts = new EnumMap<>(ScanService.Status.class);
+
+        long start = System.nanoTime();
+        try (ScanService scanner = new ScanService(threads, queueSlots);
+             Stream<ScanService.ScanResult> results = scanner.scan(dir, password)) {
+            results.forEach(result -> {
+                counts.merge(result.getStatus(), 1, Integer::sum);
+                if (result.getStatus() != ScanService.Status.NONE) System.out.println(result);
+            });
+        } finally {
+            if (password != null) AESCrypto.disableKeyCache();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int files = counts.values().stream().mapToInt(Integer::intValue).sum();
+        System.out.printf(Locale.ROOT, "scan: %d files in %.1f s (%.1f files/s): %s%n", files, seconds, files / seconds, counts);
+        return counts.containsKey(ScanService.Status.ERROR) ? 1 : 0;
+    }
+
+    // --- Shared ---
+
+    private void write(Job job) throws IOException {
+        Path root = out.toAbsolutePath().normalize();
+        Path target = root.resolve(job.outputName).normalize();
+        if (!target.startsWith(root) || target.equals(root)) throw new IOException("Output path leaves --out: " + job.outputName);
+        if (target.getParent() != null) Files.createDirectories(target.getParent());
+        Files.write(target, job.output);
+        job.outputBytes = job.output.length;
+        job.output = null;
+    }
+
+    private int report(String command, List<Job> jobs, Pipeline<Job> pipeline) throws InterruptedException {
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong inputBytes = new AtomicLong();
+        AtomicLong outputBytes = new AtomicLong();
+        List<String> failures = new ArrayList<>();
+
+        long start = System.nanoTime();
+        List<Pipeline.StageStats> stats = pipeline.run(jobs.iterator(), (job, error, stage) -> {
+            inputBytes.addAndGet(job.inputBytes);
+            if (error != null) {
+                failed.incrementAndGet();
+                synchronized (failures) {
+                    failures.add(job.source + ": " + stage + ": " + error.getMessage());
+                }
+            } else {
+                outputBytes.addAndGet(job.outputBytes);
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf(Locale.ROOT, "%s: %d images, %d ok, %d failed in %.1f s (%.1f images/s, %.1f MB/s read, %.1f MB/s written)%n",
+                command, jobs.size(), jobs.size() - failed.get(), failed.get(), seconds,
+                jobs.size() / seconds, inputBytes.get() / 1e6 / seconds, outputBytes.get() / 1e6 / seconds);
+        System.out.println(Pipeline.StageStats.header());
+        for (Pipeline.StageStats stage : stats) System.out.println(stage.summary());
+        for (String failure : failures) System.err.println(failure);
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    // Images under --dir in path order, or the lines of --manifest
+    private List<Job> jobs() throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (dir != null) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.filter(Files::isRegularFile).filter(PixelCloakCli::isImage).sorted()
+                        .collect(Collectors.toList())) {
+                    jobs.add(new Job(file, dir.relativize(file), null));
+                }
+            }
+            checkOutputNames(jobs);
+            return jobs;
+        }
+
+        Path base = manifest.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("#")) continue;
+            String[] columns = line.split("\t", 2);
+            Path image = Paths.get(columns[0].strip());
+            Path relative = image.isAbsolute() ? image.getFileName() : image.normalize();
+            if (relative.startsWith("..")) {
+                throw new IllegalArgumentException("Manifest entry leaves the output directory: " + columns[0].strip());
+            }
+            Path itemPayload = columns.length > 1 && !columns[1].isBlank() ? base.resolve(columns[1].strip()) : null;
+            jobs.add(new Job(base.resolve(image), relative, itemPayload));
+        }
+        checkOutputNames(jobs);
+        return jobs;
+    }
+
+    // Outputs are named after the input without its extension (a.png and a.jpg both give a.png), and
+    // absolute manifest entries keep only their file name; two jobs must not write the same file.
+    // Compared case-insensitively, as the output directory may be.
+    private static void checkOutputNames(List<Job> jobs) {
+        Map<String, Path> seen = new HashMap<>();
+        for (Job job : jobs) {
+            String name = withExtension(job.relative, "").toLowerCase(Locale.ROOT);
+            Path earlier = seen.putIfAbsent(name, job.source);
+            if (earlier != null) {
+                throw new IllegalArgumentException("Both " + earlier + " and " + job.source + " would be written to "
+                        + withExtension(job.relative, ".*") + " under --out; rename one of them");
+            }
+        }
+    }
+
+    private static boolean isImage(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return IMAGE_EXTENSIONS.stream().anyMatch(name::endsWith);
+    }
+
+    private static String withExtension(Path relative, String extension) {
+        String path = relative.toString();
+        int dot = path.lastIndexOf('.');
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        return (dot > slash ? path.substring(0, dot) : path) + extension;
+    }
+
+    private static char[] readPassword() {
+        String fromEnv = System.getenv(PASSWORD_ENV);
+        if (fromEnv != null && !fromEnv.isEmpty()) return fromEnv.toCharArray();
+
+        Console console = System.console();
+        if (console == null) throw new IllegalArgumentException("Set " + PASSWORD_ENV + " or run from a terminal");
+        char[] password = console.readPassword("Password: ");
+        if (password == null || password.length == 0) throw new IllegalArgumentException("Password is required");
+        return password;
+    }
+
+    private static int positive(String option, String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) return n;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(option + " must be a positive number");
+    }
+
+    private static int pngLevel(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0 && n <= 9) return n;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("--png-level must be between 0 and 9");
+    }
+
+    private static int bits(String value) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 1 && n <= 4) return n;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("--bits must be between 1 and 4");
+    }
+
+    private static String usage() {
+        return "usage: pixelcloak embed  (--dir DIR | --manifest FILE) --out DIR [--payload FILE] [--threads N] [--queue N]\n"
+                + "                         [--sequential] [--force] [--kdf SPEC] [--png-level N] [--bits N] [--scatter]\n"
+                + "       pixelcloak reveal (--dir DIR | --manifest FILE) --out DIR [--threads N] [--queue N]\n"
+                + "       pixelcloak scan   --dir DIR [--unlock] [--threads N] [--queue N]\n"
+                + "The password is read from " + PASSWORD_ENV + " or the console.";
+    }
+
+    // One image on its way through the stages; each stage drops what the next ones no longer need
+    private static final class Job {
+        final Path source;
+        final Path relative;
+        final Path payload;
+        long inputBytes;
+        long outputBytes;
+        BufferedImage image;
+        Envelope envelope;
+        String legacy;
+        byte[] output;
+        String outputName;
+
+        Job(Path source, Path relative, Path payload) {
+            this.source = source;
+            this.relative = relative;
+            this.payload = payload;
+        }
+    }
+}
@@ -1,98 +1,148 @@
 package com.pixelcloak.core;
 
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-import java.security.spec.KeySpec;
-import java.util.Base64;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+/**
+ * Static entry points for PixelCloak encryption. Each call goes through one shared
+ * {@link AESCryptoEngine}, which reuses a Cipher and SecureRandom per thread.
+ */
 public class AESCrypto {
 
-    private static final int AES_KEY_SIZE = 256;
-    private static final int GCM_IV_LENGTH = 12;
-    private static final int GCM_TAG_LENGTH = 128;
-    private static final int SALT_LENGTH = 16;
+    static final int AES_KEY_SIZE = 256;
+    static final int GCM_IV_LENGTH = 12;
+    static final int GCM_TAG_LENGTH = 128;
+    static final int SALT_LENGTH = 16;
 
     // NIST recommended minimum for PBKDF2-HMAC-SHA256 is 600,000+
-    private static final int ITERATION_COUNT = 600_000;
+    static final int ITERATION_COUNT = 600_000;
+
+    // KDF for new envelopes and sessions; the legacy Base64 and raw stream formats stay on fixed PBKDF2
+    static final KeyDerivation LEGACY_KDF = new Pbkdf2KeyDerivation(ITERATION_COUNT);
+    private static volatile KeyDerivation keyDerivation = LEGACY_KDF;
+
+    // Plaintext bytes per segment of a streamed envelope, and the most a header may ask for
+    static final int STREAM_SEGMENT_BYTES = 64 * 1024;
+    static final int MAX_STREAM_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    // Optional session cache of derived keys; null means every call runs the KDF
+    private static volatile KeyCache keyCache;
+
+    private static final AESCryptoEngine ENGINE = new AESCryptoEngine();
 
     public static String encrypt(String text, char[] password) throws Exception {
-        // FIXED: Changed 'plainText' to 'text' to match the parameter name
-        if (text == null || text.isEmpty()) return null;
+        return ENGINE.encrypt(text, password);
+    }
 
-        // 1. Generate Random Salt and IV
-        byte[] salt = new byte[SALT_LENGTH];
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(salt);
-        random.nextBytes(iv);
+    public static String decrypt(String encrypted, char[] password) throws Exception {
+        return ENGINE.decrypt(encrypted, password);
+    }
 
-        // 2. Derive Key from Password
-        SecretKey secretKey = deriveKey(password, salt);
+    // Encrypts into a binary PixelCloak envelope (see Envelope) instead of a Base64 string
+    public static Envelope encryptEnvelope(String text, char[] password, Envelope.BodyLayout layout) throws Exception {
+        return ENGINE.encryptEnvelope(text, password, layout);
+    }
 
-        // 3. Encrypt
-        // Removed empty try-finally block
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmSpec);
+    // Encrypts under a per-entry HKDF subkey of the session master key: no password KDF runs
+    public static Envelope encryptEnvelope(String text, Session session, Envelope.BodyLayout layout) throws Exception {
+        return ENGINE.encryptEnvelope(text, session, layout);
+    }
 
-        // FIXED: Changed 'plainText' to 'text'
-        byte[] cipherText = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+    // Derives the placement seed of a parsed envelope, so Steganography can locate its body
+    public static void unlockPlacement(Envelope envelope, char[] password) throws Exception {
+        ENGINE.unlockPlacement(envelope, password);
+    }
 
-        // 4. Combine Salt + IV + CipherText
-        ByteBuffer byteBuffer = ByteBuffer.allocate(salt.length + iv.length + cipherText.length);
-        byteBuffer.put(salt);
-        byteBuffer.put(iv);
-        byteBuffer.put(cipherText);
+    public static void unlockPlacement(Envelope envelope, Session session) throws Exception {
+        ENGINE.unlockPlacement(envelope, session);
+    }
 
-        return Base64.getEncoder().encodeToString(byteBuffer.array());
+    public static String decrypt(Envelope envelope, char[] password) throws Exception {
+        return ENGINE.decrypt(envelope, password);
     }
 
-    public static String decrypt(String encrypted, char[] password) throws Exception {
-        // FIXED: Changed 'encryptedData' to 'encrypted' to match the parameter name
-        if (encrypted == null || encrypted.isEmpty()) return null;
+    // Reveals an entry saved in this session without running the password KDF
+    public static String decrypt(Envelope envelope, Session session) throws Exception {
+        return ENGINE.decrypt(envelope, session);
+    }
+
+    // Streaming variant of encrypt: writes raw Salt + IV + CipherText (incl. tag) to 'out', no Base64.
+    // Neither stream is closed.
+    public static void encrypt(InputStream in, OutputStream out, char[] password) throws Exception {
+        ENGINE.encrypt(in, out, password);
+    }
+
+    // Streaming variant of decrypt for data written by encrypt(InputStream, OutputStream, char[]).
+    // GCM only releases plaintext once the tag has been verified. Neither stream is closed.
+    public static void decrypt(InputStream in, OutputStream out, char[] password) throws Exception {
+        ENGINE.decrypt(in, out, password);
+    }
 
-        // FIXED: Changed 'encryptedData' to 'encrypted'
-        byte[] decode = Base64.getDecoder().decode(encrypted);
-        ByteBuffer byteBuffer = ByteBuffer.wrap(decode);
+    // Segmented streaming encryption; see AESCryptoEngine#encryptingStream
+    public static Envelope newStreamEnvelope(Envelope.BodyLayout layout) {
+        return ENGINE.newStreamEnvelope(layout);
+    }
 
-        // 1. Extract Salt and IV
-        if (byteBuffer.remaining() < SALT_LENGTH + GCM_IV_LENGTH) {
-            throw new IllegalArgumentException("Invalid encrypted data format");
-        }
+    public static Envelope newStreamEnvelope(Session session, Envelope.BodyLayout layout) {
+        return ENGINE.newStreamEnvelope(session, layout);
+    }
 
-        byte[] salt = new byte[SALT_LENGTH];
-        byteBuffer.get(salt);
+    public static OutputStream encryptingStream(OutputStream body, Envelope envelope, char[] password) throws Exception {
+        return ENGINE.encryptingStream(body, envelope, password);
+    }
 
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        byteBuffer.get(iv);
+    public static OutputStream encryptingStream(OutputStream body, Envelope envelope, Session session) throws Exception {
+        return ENGINE.encryptingStream(body, envelope, session);
+    }
 
-        // 2. Extract CipherText
-        byte[] cipherText = new byte[byteBuffer.remaining()];
-        byteBuffer.get(cipherText);
+    public static InputStream decryptingStream(InputStream body, Envelope envelope, char[] password) throws Exception {
+        return ENGINE.decryptingStream(body, envelope, password);
+    }
 
-        // 3. Derive Key
-        SecretKey secretKey = deriveKey(password, salt);
+    public static InputStream decryptingStream(InputStream body, Envelope envelope, Session session) throws Exception {
+        return ENGINE.decryptingStream(body, envelope, session);
+    }
+
+    // Shared engine behind the static methods
+    public static AESCryptoEngine engine() {
+        return ENGINE;
+    }
 
-        // 4. Decrypt
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmSpec);
+    static byte[] randomBytes(int length) {
+        return ENGINE.randomBytes(length);
+    }
+
+    // Opts in to caching derived keys for the rest of the session
+    public static void enableKeyCache(KeyCache cache) {
+        KeyCache previous = keyCache;
+        keyCache = cache;
+        if (previous != null && previous != cache) previous.clear();
+    }
+
+    // Zeroes every cached key and stops caching (logout)
+    public static void disableKeyCache() {
+        enableKeyCache(null);
+    }
+
+    public static KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    // Sets the KDF and cost for new entries and sessions; existing entries keep the one in their header
+    public static void setKeyDerivation(KeyDerivation kdf) {
+        if (kdf == null) throw new IllegalArgumentException("Key derivation must not be null");
+        keyDerivation = kdf;
+    }
 
-        byte[] plainText = cipher.doFinal(cipherText);
-        return new String(plainText, StandardCharsets.UTF_8);
+    public static KeyDerivation getKeyDerivation() {
+        return keyDerivation;
     }
 
-    private static SecretKey deriveKey(char[] password, byte[] salt) throws Exception {
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        KeySpec spec = new PBEKeySpec(password, salt, ITERATION_COUNT, AES_KEY_SIZE);
-        SecretKey tmp = factory.generateSecret(spec);
-        return new SecretKeySpec(tmp.getEncoded(), "AES");
+    // Raw KDF output, served from the key cache when one is enabled. Caller zeroes it.
+    static byte[] deriveKeyBytes(char[] password, byte[] salt, KeyDerivation kdf) throws Exception {
+        KeyCache cache = keyCache;
+        return cache != null
+                ? cache.get(password, salt, kdf, () -> kdf.derive(password, salt, AES_KEY_SIZE / 8))
+                : kdf.derive(password, salt, AES_KEY_SIZE / 8);
     }
 }
\ No newline at end of file
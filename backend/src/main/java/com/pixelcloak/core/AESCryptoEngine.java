@@ -0,0 +1,364 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Instance form of {@link AESCrypto} that keeps one AES/GCM {@link Cipher} and one
+ * {@link SecureRandom} per thread, so batches of small entries skip the provider lookup and
+ * RNG seeding on every call. The static {@code AESCrypto} methods delegate to a shared engine;
+ * create your own one if you want its per-thread objects released with it.
+ *
+ * Every encryption draws a fresh IV, and the cipher is re-initialized for every operation. An
+ * encryption whose key and IV equal the previous one on the same cipher is refused by the
+ * provider ("Cannot reuse iv for GCM encryption") rather than reusing a GCM nonce; the engine
+ * keeps no key material of its own between calls.
+ */
+public class AESCryptoEngine {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    // Chunk size for the streaming variants
+    private static final int STREAM_BUFFER = 8192;
+
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(AESCryptoEngine::newCipher);
+    private final ThreadLocal<SecureRandom> randoms = ThreadLocal.withInitial(SecureRandom::new);
+
+    // Legacy format: Base64(Salt + IV + CipherText) under fixed PBKDF2
+    public String encrypt(String text, char[] password) throws Exception {
+        if (text == null || text.isEmpty()) return null;
+
+        // 1. Generate Random Salt and IV
+        byte[] salt = randomBytes(AESCrypto.SALT_LENGTH);
+        byte[] iv = randomBytes(AESCrypto.GCM_IV_LENGTH);
+
+        // 2. Derive Key from Password, 3. Encrypt
+        Cipher cipher = legacyCipher(Cipher.ENCRYPT_MODE, password, salt, iv);
+        byte[] cipherText = cipher.doFinal(text.getBytes(StandardCharsets.UTF_8));
+
+        // 4. Combine Salt + IV + CipherText
+        ByteBuffer byteBuffer = ByteBuffer.allocate(salt.length + iv.length + cipherText.length);
+        byteBuffer.put(salt);
+        byteBuffer.put(iv);
+        byteBuffer.put(cipherText);
+
+        return Base64.getEncoder().encodeToString(byteBuffer.array());
+    }
+
+    public String decrypt(String encrypted, char[] password) throws Exception {
+        if (encrypted == null || encrypted.isEmpty()) return null;
+
+        byte[] decode = Base64.getDecoder().decode(encrypted);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(decode);
+
+        // 1. Extract Salt and IV
+        if (byteBuffer.remaining() < AESCrypto.SALT_LENGTH + AESCrypto.GCM_IV_LENGTH) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+        byte[] salt = new byte[AESCrypto.SALT_LENGTH];
+        byteBuffer.get(salt);
+        byte[] iv = new byte[AESCrypto.GCM_IV_LENGTH];
+        byteBuffer.get(iv);
+
+        // 2. Derive Key, 3. Decrypt the rest
+        Cipher cipher = legacyCipher(Cipher.DECRYPT_MODE, password, salt, iv);
+        byte[] plainText = cipher.doFinal(decode, byteBuffer.position(), byteBuffer.remaining());
+        return new String(plainText, StandardCharsets.UTF_8);
+    }
+
+    // Encrypts into a binary PixelCloak envelope (see Envelope) with the configured KeyDerivation.
+    // A placed or scattered layout also gets the seed Steganography needs to locate the body.
+    public Envelope encryptEnvelope(String text, char[] password, Envelope.BodyLayout layout) throws Exception {
+        if (text == null || text.isEmpty()) return null;
+
+        byte[] salt = randomBytes(AESCrypto.SALT_LENGTH);
+        KeyDerivation kdf = AESCrypto.getKeyDerivation();
+        Envelope envelope = new Envelope(kdf, salt, null, Envelope.AEAD_AES_256_GCM, randomBytes(AESCrypto.GCM_IV_LENGTH),
+                0, layout.getPlacement(), layout.getMode());
+
+        seal(envelope, withPlacementSeed(envelope, AESCrypto.deriveKeyBytes(password, salt, kdf)), text);
+        return envelope;
+    }
+
+    // Encrypts under a per-entry HKDF subkey of the session master key: no password KDF runs
+    public Envelope encryptEnvelope(String text, Session session, Envelope.BodyLayout layout) throws Exception {
+        if (text == null || text.isEmpty()) return null;
+
+        byte[] entrySalt = randomBytes(AESCrypto.SALT_LENGTH);
+        Envelope envelope = new Envelope(session.getKeyDerivation(), session.getMasterSalt(), entrySalt,
+                Envelope.AEAD_AES_256_GCM, randomBytes(AESCrypto.GCM_IV_LENGTH), 0, layout.getPlacement(), layout.getMode());
+
+        seal(envelope, withPlacementSeed(envelope, session.entryKey(entrySalt)), text);
+        return envelope;
+    }
+
+    // Seals the entry table of a Journal (see Journal) under a fresh subkey of the session that keys its entries
+    Envelope encryptJournalIndex(byte[] table, Session session, int slots) throws Exception {
+        byte[] entrySalt = randomBytes(AESCrypto.SALT_LENGTH);
+        Envelope envelope = new Envelope(session.getKeyDerivation(), session.getMasterSalt(), entrySalt,
+                Envelope.AEAD_AES_256_GCM, randomBytes(AESCrypto.GCM_IV_LENGTH), 0, null, null, slots);
+        seal(envelope, session.entryKey(entrySalt), table);
+        return envelope;
+    }
+
+    byte[] decryptJournalIndex(Envelope envelope, Session session) throws Exception {
+        return openBytes(envelope, envelopeKey(envelope, session));
+    }
+
+    public String decrypt(Envelope envelope, char[] password) throws Exception {
+        if (envelope == null || envelope.getBody() == null) return null;
+        return open(envelope, envelopeKey(envelope, password));
+    }
+
+    // Reveals an entry saved in this session without running the password KDF
+    public String decrypt(Envelope envelope, Session session) throws Exception {
+        if (envelope == null || envelope.getBody() == null) return null;
+        return open(envelope, envelopeKey(envelope, session));
+    }
+
+    // Header for a segmented body (see encryptingStream) keyed by a password under the configured KDF.
+    // A placement seed is filled in by encryptingStream, before the first body byte is written.
+    public Envelope newStreamEnvelope(Envelope.BodyLayout layout) {
+        return new Envelope(AESCrypto.getKeyDerivation(), randomBytes(AESCrypto.SALT_LENGTH), null,
+                Envelope.AEAD_AES_256_GCM_STREAM, randomBytes(GcmSegmentOutputStream.NONCE_PREFIX_BYTES),
+                AESCrypto.STREAM_SEGMENT_BYTES, layout.getPlacement(), layout.getMode());
+    }
+
+    // Header for a segmented body keyed by a per-entry subkey of the session
+    public Envelope newStreamEnvelope(Session session, Envelope.BodyLayout layout) {
+        return new Envelope(session.getKeyDerivation(), session.getMasterSalt(), randomBytes(AESCrypto.SALT_LENGTH),
+                Envelope.AEAD_AES_256_GCM_STREAM, randomBytes(GcmSegmentOutputStream.NONCE_PREFIX_BYTES),
+                AESCrypto.STREAM_SEGMENT_BYTES, layout.getPlacement(), layout.getMode());
+    }
+
+    /**
+     * Sets the placement seed of a parsed envelope (texture placement or scattered mode) so its
+     * body can be located. It comes from the entry's AES key, so this runs the password KDF (a
+     * KeyCache makes the decrypt that follows free).
+     */
+    public void unlockPlacement(Envelope envelope, char[] password) throws Exception {
+        if (!envelope.isKeyPlaced()) return;
+        Arrays.fill(withPlacementSeed(envelope, envelopeKey(envelope, password)), (byte) 0);
+    }
+
+    public void unlockPlacement(Envelope envelope, Session session) throws Exception {
+        if (!envelope.isKeyPlaced()) return;
+        Arrays.fill(withPlacementSeed(envelope, envelopeKey(envelope, session)), (byte) 0);
+    }
+
+    /**
+     * Encrypts everything written to the returned stream into 'body', one segment at a time, so
+     * memory stays at one segment whatever the payload size. Closing it writes the final segment
+     * and closes 'body'. Only the final body length is left to fill into the envelope.
+     */
+    public OutputStream encryptingStream(OutputStream body, Envelope envelope, char[] password) throws Exception {
+        checkStreamEnvelope(envelope);
+        return new GcmSegmentOutputStream(this, body, withPlacementSeed(envelope, envelopeKey(envelope, password)), envelope);
+    }
+
+    public OutputStream encryptingStream(OutputStream body, Envelope envelope, Session session) throws Exception {
+        checkStreamEnvelope(envelope);
+        return new GcmSegmentOutputStream(this, body, withPlacementSeed(envelope, envelopeKey(envelope, session)), envelope);
+    }
+
+    // Decrypts a segmented body; each segment is authenticated before any of its bytes are returned
+    public InputStream decryptingStream(InputStream body, Envelope envelope, char[] password) throws Exception {
+        checkStreamEnvelope(envelope);
+        return new GcmSegmentInputStream(this, body, withPlacementSeed(envelope, envelopeKey(envelope, password)), envelope);
+    }
+
+    public InputStream decryptingStream(InputStream body, Envelope envelope, Session session) throws Exception {
+        checkStreamEnvelope(envelope);
+        return new GcmSegmentInputStream(this, body, withPlacementSeed(envelope, envelopeKey(envelope, session)), envelope);
+    }
+
+    // Streaming variant of encrypt: writes raw Salt + IV + CipherText (incl. tag) to 'out', no Base64.
+    // Neither stream is closed.
+    public void encrypt(InputStream in, OutputStream out, char[] password) throws Exception {
+        byte[] salt = randomBytes(AESCrypto.SALT_LENGTH);
+        byte[] iv = randomBytes(AESCrypto.GCM_IV_LENGTH);
+        Cipher cipher = legacyCipher(Cipher.ENCRYPT_MODE, password, salt, iv);
+
+        // Salt + IV first, then ciphertext as it is produced
+        out.write(salt);
+        out.write(iv);
+
+        byte[] buffer = new byte[STREAM_BUFFER];
+        byte[] encrypted = new byte[cipher.getOutputSize(STREAM_BUFFER)];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int produced = cipher.update(buffer, 0, n, encrypted);
+            out.write(encrypted, 0, produced);
+        }
+        out.write(cipher.doFinal());
+    }
+
+    // Streaming variant of decrypt for data written by encrypt(InputStream, OutputStream, char[]).
+    // GCM only releases plaintext once the tag has been verified. Neither stream is closed.
+    public void decrypt(InputStream in, OutputStream out, char[] password) throws Exception {
+        byte[] salt = in.readNBytes(AESCrypto.SALT_LENGTH);
+        byte[] iv = in.readNBytes(AESCrypto.GCM_IV_LENGTH);
+        if (salt.length < AESCrypto.SALT_LENGTH || iv.length < AESCrypto.GCM_IV_LENGTH) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+        Cipher cipher = legacyCipher(Cipher.DECRYPT_MODE, password, salt, iv);
+
+        byte[] buffer = new byte[STREAM_BUFFER];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            byte[] plain = cipher.update(buffer, 0, n);
+            if (plain != null) out.write(plain);
+        }
+        out.write(cipher.doFinal());
+    }
+
+    // Random bytes from this thread's SecureRandom
+    public byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        randoms.get().nextBytes(bytes);
+        return bytes;
+    }
+
+    // AES-GCM over the text with the envelope header as associated data; zeroes 'key'
+    void seal(Envelope envelope, byte[] key, String text) throws Exception {
+        seal(envelope, key, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void seal(Envelope envelope, byte[] key, byte[] plainText) throws Exception {
+        try {
+            Cipher cipher = encryptCipher(key, envelope.getIv());
+            cipher.updateAAD(envelope.associatedData());
+            envelope.setBody(cipher.doFinal(plainText));
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Zeroes 'key'
+    String open(Envelope envelope, byte[] key) throws Exception {
+        return new String(openBytes(envelope, key), StandardCharsets.UTF_8);
+    }
+
+    private byte[] openBytes(Envelope envelope, byte[] key) throws Exception {
+        if (envelope.getAeadId() == Envelope.AEAD_AES_256_GCM_STREAM) {
+            ByteArrayOutputStream plainText = new ByteArrayOutputStream(envelope.getBodyLength());
+            try (InputStream in = new GcmSegmentInputStream(this, new ByteArrayInputStream(envelope.getBody()), key, envelope)) {
+                in.transferTo(plainText);
+            }
+            return plainText.toByteArray();
+        }
+        try {
+            Cipher cipher = decryptCipher(key, envelope.getIv());
+            cipher.updateAAD(envelope.associatedData());
+            return cipher.doFinal(envelope.getBody());
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Cipher keyed by the fixed legacy PBKDF2 of the password
+    private Cipher legacyCipher(int mode, char[] password, byte[] salt, byte[] iv) throws Exception {
+        byte[] key = AESCrypto.deriveKeyBytes(password, salt, AESCrypto.LEGACY_KDF);
+        try {
+            return mode == Cipher.ENCRYPT_MODE ? encryptCipher(key, iv) : decryptCipher(key, iv);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    // Sets the envelope's placement seed from its AES key, if its body is placed by key; returns the key
+    private static byte[] withPlacementSeed(Envelope envelope, byte[] key) throws Exception {
+        if (envelope.getPlacement() != null) {
+            envelope.setPlacementSeed(TexturePlacement.seed(key));
+        } else if (envelope.isKeyPlaced()) {
+            envelope.setPlacementSeed(PixelPermutation.seed(key));
+        }
+        return key;
+    }
+
+    // Key for an envelope from the password: its KDF, then HKDF for session entries. Caller zeroes it.
+    private byte[] envelopeKey(Envelope envelope, char[] password) throws Exception {
+        KeyDerivation kdf = checkEnvelope(envelope);
+
+        byte[] key = AESCrypto.deriveKeyBytes(password, envelope.getSalt(), kdf);
+        if (envelope.getEntrySalt() != null) {
+            // 'key' is the master key of the session that saved the entry
+            byte[] master = key;
+            try {
+                key = Session.entryKey(master, envelope.getEntrySalt());
+            } finally {
+                Arrays.fill(master, (byte) 0);
+            }
+        }
+        return key;
+    }
+
+    private byte[] envelopeKey(Envelope envelope, Session session) throws Exception {
+        checkEnvelope(envelope);
+        if (!session.canOpen(envelope)) {
+            throw new IllegalArgumentException("Entry was not saved in this session. Enter its password to reveal it.");
+        }
+        return session.entryKey(envelope.getEntrySalt());
+    }
+
+    // This thread's cipher, initialized for a fresh encryption; the key bytes are copied by the spec.
+    // The provider rejects an init that repeats the previous key and IV of this cipher.
+    Cipher encryptCipher(byte[] key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(AESCrypto.GCM_TAG_LENGTH, iv));
+        return cipher;
+    }
+
+    // This thread's cipher, initialized for decryption
+    Cipher decryptCipher(byte[] key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(AESCrypto.GCM_TAG_LENGTH, iv));
+        return cipher;
+    }
+
+    // Validates the header and returns its KDF; decoding rejects costs beyond each KDF's bounds
+    private static KeyDerivation checkEnvelope(Envelope envelope) {
+        int ivLength;
+        if (envelope.getAeadId() == Envelope.AEAD_AES_256_GCM) {
+            ivLength = AESCrypto.GCM_IV_LENGTH;
+        } else if (envelope.getAeadId() == Envelope.AEAD_AES_256_GCM_STREAM) {
+            ivLength = GcmSegmentOutputStream.NONCE_PREFIX_BYTES;
+            if (envelope.getSegmentSize() < 1 || envelope.getSegmentSize() > AESCrypto.MAX_STREAM_SEGMENT_BYTES) {
+                throw new IllegalArgumentException("Invalid encrypted data format");
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported encryption scheme in image");
+        }
+        KeyDerivation kdf = envelope.getKeyDerivation();
+        if (envelope.getSalt().length != AESCrypto.SALT_LENGTH || envelope.getIv().length != ivLength
+                || (envelope.getEntrySalt() != null && envelope.getEntrySalt().length != AESCrypto.SALT_LENGTH)) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+        return kdf;
+    }
+
+    private static void checkStreamEnvelope(Envelope envelope) {
+        if (envelope.getAeadId() != Envelope.AEAD_AES_256_GCM_STREAM) {
+            throw new IllegalArgumentException("Envelope is not set up for streaming");
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.pixelcloak.core;
+
+/**
+ * Verdict, grayscale entropy score, timing and error of one carrier analysis.
+ * {@link ImageAnalyzer} caches these per file, so the same carrier is analyzed once.
+ */
+public class AnalysisResult {
+
+    private final boolean safe;
+    private final double score;
+    private final long elapsedNanos;
+    private final String error;
+
+    public AnalysisResult(boolean safe, double score, long elapsedNanos, String error) {
+        this.safe = safe;
+        this.score = score;
+        this.elapsedNanos = elapsedNanos;
+        this.error = error;
+    }
+
+    // Analysis that could not produce a score
+    static AnalysisResult failed(String error, long elapsedNanos) {
+        return new AnalysisResult(false, -1.0, elapsedNanos, error);
+    }
+
+    // One line of analyze_image.py output: "SAFE|score", "UNSAFE|score" or "ERROR|message"
+    static AnalysisResult parse(String line, long elapsedNanos) {
+        String[] parts = line != null ? line.split("\\|", 2) : new String[0];
+        if (parts.length < 2 || parts[0].equals("ERROR")) {
+            return failed(parts.length == 2 ? parts[1] : "No result from analyzer", elapsedNanos);
+        }
+        try {
+            return new AnalysisResult(parts[0].equals("SAFE"), Double.parseDouble(parts[1]), elapsedNanos, null);
+        } catch (NumberFormatException e) {
+            return failed("Unexpected analyzer output: " + line, elapsedNanos);
+        }
+    }
+
+    // True if the image has enough texture to hide data in
+    public boolean isSafe() {
+        return safe;
+    }
+
+    // Shannon entropy of the grayscale histogram in bits (0..8), or -1 if it could not be computed
+    public double getScore() {
+        return score;
+    }
+
+    // Time the analysis itself took (a cache hit returns the original timing)
+    public long getElapsedMillis() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // Why no score could be computed, or null
+    public String getError() {
+        return error;
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null) return "ERROR|" + error;
+        return (safe ? "SAFE" : "UNSAFE") + "|" + String.format("%.2f", score);
+    }
+}
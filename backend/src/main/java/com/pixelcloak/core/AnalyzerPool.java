@@ -0,0 +1,261 @@
+package com.pixelcloak.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps N analyzer processes ({@code analyze_image.py --worker}) warm and spreads requests
+ * across them, instead of starting an interpreter per image.
+ *
+ * Protocol: one absolute image path per line on the worker's stdin, one
+ * {@code SAFE|score} / {@code UNSAFE|score} / {@code ERROR|message} line back on stdout.
+ * A worker serves one request at a time. A worker that exits is restarted on its next request,
+ * and one that misses the per-request deadline is killed and restarted; both requests come back
+ * as failed {@link AnalysisResult}s instead of throwing. {@code scripts/stub_analyzer_worker.py}
+ * speaks the same protocol without Pillow, for trying this out locally.
+ */
+public class AnalyzerPool implements AutoCloseable {
+
+    // Marks the end of a worker's stdout in its line queue
+    private static final String EOF = new String("EOF");
+
+    private final List<String> command;
+    private final long timeoutNanos;
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<>();
+    private final ExecutorService dispatcher;
+    private volatile boolean closed;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    // 'command' starts one worker, e.g. [python3, scripts/analyze_image.py, --worker]
+    public AnalyzerPool(List<String> command, int size, Duration timeout) {
+        if (size <= 0) throw new IllegalArgumentException("Pool size must be positive");
+        this.command = List.copyOf(command);
+        this.timeoutNanos = timeout.toNanos();
+        this.idle = new LinkedBlockingQueue<>();
+        this.dispatcher = Executors.newFixedThreadPool(size, r -> {
+            Thread thread = new Thread(r, "analyzer-dispatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Start them all now so the first requests do not pay for interpreter startup
+        for (int i = 0; i < size; i++) {
+            Worker worker = new Worker(i);
+            try {
+                worker.start();
+            } catch (IOException e) {
+                // Retried on first use, where the error is reported with the request
+            }
+            workers.add(worker);
+            idle.add(worker);
+        }
+    }
+
+    // Blocking; safe to call from any number of threads
+    public AnalysisResult analyze(File image) {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        if (closed) return fail("Analyzer pool is closed", start);
+
+        String path = image.getAbsolutePath();
+        if (path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+            return fail("Unsupported file name", start);
+        }
+
+        Worker worker;
+        try {
+            worker = idle.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fail("Interrupted", start);
+        }
+        if (worker == null) {
+            timeouts.incrementAndGet();
+            return fail("No analyzer worker became free in time", start);
+        }
+
+        try {
+            return worker.request(path, start);
+        } finally {
+            if (closed) worker.stop();
+            else idle.add(worker);
+        }
+    }
+
+    // Queues the image on the pool's dispatcher threads (one per worker)
+    public CompletableFuture<AnalysisResult> submit(File image) {
+        return CompletableFuture.supplyAsync(() -> analyze(image), dispatcher);
+    }
+
+    // Analyzes all images concurrently across the workers; results in input order
+    public List<AnalysisResult> analyzeAll(List<File> images) {
+        List<CompletableFuture<AnalysisResult>> futures = new ArrayList<>(images.size());
+        for (File image : images) futures.add(submit(image));
+
+        List<AnalysisResult> results = new ArrayList<>(images.size());
+        for (CompletableFuture<AnalysisResult> future : futures) results.add(future.join());
+        return results;
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getRestarts() {
+        return restarts.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AnalyzerPool[size=" + workers.size() + ", requests=" + requests + ", failures=" + failures
+                + ", timeouts=" + timeouts + ", restarts=" + restarts + "]";
+    }
+
+    // Closes every worker's stdin so it exits on its own; busy workers stop when their request ends
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.shutdownNow();
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.stop();
+        }
+    }
+
+    private AnalysisResult fail(String error, long start) {
+        failures.incrementAndGet();
+        return AnalysisResult.failed(error, System.nanoTime() - start);
+    }
+
+    private final class Worker {
+        private final int index;
+        private Process process;
+        private Writer stdin;
+        private BlockingQueue<String> lines;
+        private boolean started;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        void start() throws IOException {
+            if (started) restarts.incrementAndGet();
+            started = true;
+
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT); // Tracebacks go to our stderr, not into the protocol
+            process = pb.start();
+            stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+
+            // Each process gets its own queue, so a late line from a killed one cannot answer a new request
+            BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+            lines = queue;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            Thread pump = new Thread(() -> {
+                try (reader) {
+                    String line;
+                    while ((line = reader.readLine()) != null) queue.add(line);
+                } catch (IOException e) {
+                    // Process went away
+                }
+                queue.add(EOF);
+            }, "analyzer-worker-" + index);
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        AnalysisResult request(String path, long start) {
+            try {
+                if (process == null || !process.isAlive()) start();
+
+                stdin.write(path);
+                stdin.write('\n');
+                stdin.flush();
+
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                String line = lines.poll(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+                if (line == null) {
+                    timeouts.incrementAndGet();
+                    kill();
+                    return fail("Analyzer did not answer within " + timeoutNanos / 1_000_000 + " ms", start);
+                }
+                if (line == EOF) {
+                    kill();
+                    return fail("Analyzer worker exited", start);
+                }
+
+                AnalysisResult result = AnalysisResult.parse(line, System.nanoTime() - start);
+                if (result.isError()) failures.incrementAndGet();
+                return result;
+            } catch (IOException e) {
+                // Broken pipe: the worker died between requests
+                kill();
+                return fail("Analyzer worker failed: " + e.getMessage(), start);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                kill();
+                return fail("Interrupted", start);
+            }
+        }
+
+        // Lets the worker finish on EOF, then makes sure it is gone
+        void stop() {
+            if (process == null) return;
+            try {
+                stdin.close();
+                if (!process.waitFor(1, TimeUnit.SECONDS)) kill();
+                process = null;
+            } catch (IOException e) {
+                kill();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                kill();
+            }
+        }
+
+        // Dead from here on: isAlive() can still be true while the process dies, and writing to its
+        // pipe would fail the next request, so that request always starts a new one instead
+        void kill() {
+            if (process == null) return;
+            ProcessRunner.killTree(process);
+            process = null;
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                // Pipe already broken
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.pixelcloak.core;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Argon2id version 1.3 (RFC 9106) in pure Java, envelope KDF id 4.
+ * Memory is given in KiB (one Argon2 block each); lanes of a slice are filled in parallel.
+ */
+public class Argon2idKeyDerivation implements KeyDerivation {
+
+    public static final int ID = 4;
+
+    // Hard ceilings for any parameters, including those read from an image: a forged header must
+    // not cost much more than a calibrated entry, once per scan thread under 'scan --unlock'
+    static final int MAX_MEMORY_KIB = 64 * 1024;
+    static final int MAX_PASSES = 8;
+    static final int MAX_LANES = 16;
+    static final int DEFAULT_MAX_MEMORY_KIB = MAX_MEMORY_KIB;
+
+    private static final int MIN_CALIBRATION_KIB = 8 * 1024;
+
+    private static final int VERSION = 0x13;
+    private static final int TYPE_ID = 2;
+    private static final int BLOCK_LONGS = 128;
+    private static final int SYNC_POINTS = 4;
+
+    private final int memoryKib;
+    private final int passes;
+    private final int lanes;
+
+    public Argon2idKeyDerivation(int memoryKib, int passes, int lanes) {
+        if (lanes < 1 || lanes > MAX_LANES || passes < 1 || passes > MAX_PASSES
+                || memoryKib < 8 * lanes || memoryKib > MAX_MEMORY_KIB) {
+            throw new IllegalArgumentException("Invalid Argon2id parameters");
+        }
+        this.memoryKib = memoryKib;
+        this.passes = passes;
+        this.lanes = lanes;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encodeParams() {
+        return ByteBuffer.allocate(12).putInt(memoryKib).putInt(passes).putInt(lanes).array();
+    }
+
+    @Override
+    public byte[] derive(char[] password, byte[] salt, int length) {
+        byte[] passwordBytes = KeyDerivation.passwordBytes(password);
+        try {
+            return argon2id(passwordBytes, salt, new byte[0], new byte[0], passes, memoryKib, lanes, length);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    // Passes (single lane) that take about 'target' with up to 'maxMemoryKib'; memory is halved if one pass is already too slow
+    public static Argon2idKeyDerivation calibrate(Duration target, int maxMemoryKib) {
+        int memory = Math.min(maxMemoryKib, MAX_MEMORY_KIB);
+        byte[] password = "calibration".getBytes();
+        byte[] salt = new byte[AESCrypto.SALT_LENGTH];
+        byte[] none = new byte[0];
+
+        argon2id(password, salt, none, none, 1, MIN_CALIBRATION_KIB, 1, 32); // warm-up
+        while (true) {
+            long start = System.nanoTime();
+            argon2id(password, salt, none, none, 1, memory, 1, 32);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            long passes = target.toNanos() / elapsed;
+            if (passes >= 1 || memory / 2 < MIN_CALIBRATION_KIB) {
+                return new Argon2idKeyDerivation(memory, (int) Math.max(1, Math.min(MAX_PASSES, passes)), 1);
+            }
+            memory /= 2;
+        }
+    }
+
+    // Full Argon2id with optional secret and associated data (both empty for PixelCloak keys)
+    static byte[] argon2id(byte[] password, byte[] salt, byte[] secret, byte[] ad,
+                           int passes, int memoryKib, int lanes, int length) {
+        int segmentLength = memoryKib / (SYNC_POINTS * lanes);
+        int laneLength = segmentLength * SYNC_POINTS;
+        int blockCount = laneLength * lanes;
+
+        Blake2b h = new Blake2b(64);
+        h.updateInt(lanes);
+        h.updateInt(length);
+        h.updateInt(memoryKib);
+        h.updateInt(passes);
+        h.updateInt(VERSION);
+        h.updateInt(TYPE_ID);
+        updateWithLength(h, password);
+        updateWithLength(h, salt);
+        updateWithLength(h, secret);
+        updateWithLength(h, ad);
+        byte[] h0 = Arrays.copyOf(h.digest(), 72);
+
+        long[] memory = new long[blockCount * BLOCK_LONGS];
+        try {
+            // First two blocks of every lane come straight from H0
+            for (int lane = 0; lane < lanes; lane++) {
+                for (int column = 0; column < 2; column++) {
+                    writeIntLe(h0, 64, column);
+                    writeIntLe(h0, 68, lane);
+                    byte[] block = longHash(h0, 1024);
+                    int base = (lane * laneLength + column) * BLOCK_LONGS;
+                    for (int k = 0; k < BLOCK_LONGS; k++) memory[base + k] = Blake2b.readLong(block, 8 * k);
+                    Arrays.fill(block, (byte) 0);
+                }
+            }
+
+            Filler filler = new Filler(memory, passes, lanes, laneLength, segmentLength, blockCount);
+            for (int pass = 0; pass < passes; pass++) {
+                for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                    int p = pass, s = slice;
+                    if (lanes == 1) {
+                        filler.fillSegment(p, 0, s);
+                    } else {
+                        IntStream.range(0, lanes).parallel().forEach(lane -> filler.fillSegment(p, lane, s));
+                    }
+                }
+            }
+
+            // XOR of the last block of every lane
+            long[] last = new long[BLOCK_LONGS];
+            for (int lane = 0; lane < lanes; lane++) {
+                int base = (lane * laneLength + laneLength - 1) * BLOCK_LONGS;
+                for (int k = 0; k < BLOCK_LONGS; k++) last[k] ^= memory[base + k];
+            }
+            byte[] finalBlock = new byte[1024];
+            for (int k = 0; k < BLOCK_LONGS; k++) writeLongLe(finalBlock, 8 * k, last[k]);
+            try {
+                return longHash(finalBlock, length);
+            } finally {
+                Arrays.fill(finalBlock, (byte) 0);
+            }
+        } finally {
+            Arrays.fill(memory, 0L);
+            Arrays.fill(h0, (byte) 0);
+        }
+    }
+
+    // Fills one segment at a time; segments of the same slice touch disjoint blocks
+    private static final class Filler {
+        private final long[] memory;
+        private final int passes;
+        private final int lanes;
+        private final int laneLength;
+        private final int segmentLength;
+        private final int blockCount;
+
+        Filler(long[] memory, int passes, int lanes, int laneLength, int segmentLength, int blockCount) {
+            this.memory = memory;
+            this.passes = passes;
+            this.lanes = lanes;
+            this.laneLength = laneLength;
+            this.segmentLength = segmentLength;
+            this.blockCount = blockCount;
+        }
+
+        void fillSegment(int pass, int lane, int slice) {
+            long[] r = new long[BLOCK_LONGS];
+            long[] z = new long[BLOCK_LONGS];
+
+            // Argon2id uses data-independent addressing for the first half of the first pass
+            boolean independent = pass == 0 && slice < SYNC_POINTS / 2;
+            long[] input = null;
+            long[] addresses = null;
+            if (independent) {
+                input = new long[BLOCK_LONGS];
+                addresses = new long[BLOCK_LONGS];
+                input[0] = pass;
+                input[1] = lane;
+                input[2] = slice;
+                input[3] = blockCount;
+                input[4] = passes;
+                input[5] = TYPE_ID;
+            }
+
+            int start = 0;
+            if (pass == 0 && slice == 0) {
+                start = 2;
+                if (independent) nextAddresses(input, addresses, r, z);
+            }
+
+            int current = lane * laneLength + slice * segmentLength + start;
+            int previous = current % laneLength == 0 ? current + laneLength - 1 : current - 1;
+            for (int i = start; i < segmentLength; i++, current++, previous++) {
+                if (current % laneLength == 1) previous = current - 1;
+
+                long pseudoRandom;
+                if (independent) {
+                    if (i % BLOCK_LONGS == 0) nextAddresses(input, addresses, r, z);
+                    pseudoRandom = addresses[i % BLOCK_LONGS];
+                } else {
+                    pseudoRandom = memory[previous * BLOCK_LONGS];
+                }
+
+                int refLane = (int) ((pseudoRandom >>> 32) % lanes);
+                if (pass == 0 && slice == 0) refLane = lane;
+                int refIndex = indexAlpha(pass, slice, i, pseudoRandom & 0xFFFFFFFFL, refLane == lane);
+                int ref = refLane * laneLength + refIndex;
+
+                fillBlock(memory, previous * BLOCK_LONGS, memory, ref * BLOCK_LONGS,
+                        memory, current * BLOCK_LONGS, pass > 0, r, z);
+            }
+        }
+
+        private int indexAlpha(int pass, int slice, int index, long pseudoRandom, boolean sameLane) {
+            long area;
+            if (pass == 0) {
+                if (slice == 0) {
+                    area = index - 1;
+                } else if (sameLane) {
+                    area = (long) slice * segmentLength + index - 1;
+                } else {
+                    area = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+                }
+            } else if (sameLane) {
+                area = laneLength - segmentLength + index - 1;
+            } else {
+                area = laneLength - segmentLength + (index == 0 ? -1 : 0);
+            }
+
+            long x = (pseudoRandom * pseudoRandom) >>> 32;
+            long relative = area - 1 - ((area * x) >>> 32);
+            long startPosition = pass != 0 && slice != SYNC_POINTS - 1 ? (long) (slice + 1) * segmentLength : 0;
+            return (int) ((startPosition + relative) % laneLength);
+        }
+
+        private static void nextAddresses(long[] input, long[] addresses, long[] r, long[] z) {
+            long[] zero = new long[BLOCK_LONGS];
+            input[6]++;
+            fillBlock(zero, 0, input, 0, addresses, 0, false, r, z);
+            fillBlock(zero, 0, addresses, 0, addresses, 0, false, r, z);
+        }
+    }
+
+    // G(X, Y): out = P(X ^ Y) ^ X ^ Y, XOR-ed into the old block from the second pass on
+    private static void fillBlock(long[] x, int xOff, long[] y, int yOff, long[] out, int outOff,
+                                  boolean xorOld, long[] r, long[] z) {
+        for (int k = 0; k < BLOCK_LONGS; k++) {
+            r[k] = x[xOff + k] ^ y[yOff + k];
+        }
+        System.arraycopy(r, 0, z, 0, BLOCK_LONGS);
+
+        // Rows of 16 words, then columns made of word pairs
+        for (int i = 0; i < 8; i++) {
+            int b = 16 * i;
+            round(z, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        for (int i = 0; i < 8; i++) {
+            int b = 2 * i;
+            round(z, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+
+        if (xorOld) {
+            for (int k = 0; k < BLOCK_LONGS; k++) out[outOff + k] ^= z[k] ^ r[k];
+        } else {
+            for (int k = 0; k < BLOCK_LONGS; k++) out[outOff + k] = z[k] ^ r[k];
+        }
+    }
+
+    private static void round(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                              int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        gb(v, v0, v4, v8, v12);
+        gb(v, v1, v5, v9, v13);
+        gb(v, v2, v6, v10, v14);
+        gb(v, v3, v7, v11, v15);
+        gb(v, v0, v5, v10, v15);
+        gb(v, v1, v6, v11, v12);
+        gb(v, v2, v7, v8, v13);
+        gb(v, v3, v4, v9, v14);
+    }
+
+    // BlaMka: the BLAKE2b G function with an extra 32x32-bit multiplication
+    private static void gb(long[] v, int a, int b, int c, int d) {
+        v[a] = v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFFL) * (v[b] & 0xFFFFFFFFL);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFFL) * (v[d] & 0xFFFFFFFFL);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + 2 * (v[a] & 0xFFFFFFFFL) * (v[b] & 0xFFFFFFFFL);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d] + 2 * (v[c] & 0xFFFFFFFFL) * (v[d] & 0xFFFFFFFFL);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    // H': BLAKE2b stretched to any output length
+    private static byte[] longHash(byte[] input, int length) {
+        Blake2b first = new Blake2b(Math.min(length, 64));
+        first.updateInt(length);
+        first.update(input, 0, input.length);
+        byte[] v = first.digest();
+        if (length <= 64) return v;
+
+        byte[] out = new byte[length];
+        int done = 0;
+        while (length - done > 64) {
+            System.arraycopy(v, 0, out, done, 32);
+            done += 32;
+            v = Blake2b.hash(Math.min(64, length - done), v);
+        }
+        System.arraycopy(v, 0, out, done, length - done);
+        return out;
+    }
+
+    private static void updateWithLength(Blake2b h, byte[] data) {
+        h.updateInt(data.length);
+        h.update(data, 0, data.length);
+    }
+
+    private static void writeIntLe(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    private static void writeLongLe(byte[] b, int off, long value) {
+        for (int i = 0; i < 8; i++) b[off + i] = (byte) (value >>> (8 * i));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Argon2idKeyDerivation)) return false;
+        Argon2idKeyDerivation other = (Argon2idKeyDerivation) o;
+        return other.memoryKib == memoryKib && other.passes == passes && other.lanes == lanes;
+    }
+
+    @Override
+    public int hashCode() {
+        return (memoryKib * 31 + passes) * 31 + lanes;
+    }
+
+    @Override
+    public String toString() {
+        return "argon2id:m=" + memoryKib + ",t=" + passes + ",p=" + lanes;
+    }
+}
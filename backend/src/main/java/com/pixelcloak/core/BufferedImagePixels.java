@@ -0,0 +1,80 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * {@link PixelStore} over a BufferedImage. A packed TYPE_INT_RGB/TYPE_INT_ARGB image is read and
+ * written through its backing array; any other image is read through {@link LsbEngine#readPixels}
+ * and cannot be written.
+ */
+final class BufferedImagePixels implements PixelStore {
+
+    private final BufferedImage image;
+    private final int[] packed;
+
+    BufferedImagePixels(BufferedImage image) {
+        this.image = image;
+        this.packed = LsbEngine.packedPixels(image);
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return image.getColorModel().hasAlpha();
+    }
+
+    @Override
+    public void read(long first, int[] dst, int off, int count) {
+        checkRange(first, count);
+        if (packed != null) {
+            System.arraycopy(packed, (int) first, dst, off, count);
+        } else {
+            LsbEngine.readPixels(image, (int) first, count, dst, off);
+        }
+    }
+
+    @Override
+    public void write(long first, int[] src, int off, int count) {
+        checkRange(first, count);
+        System.arraycopy(src, off, writable(), (int) first, count);
+    }
+
+    @Override
+    public int get(long index) {
+        checkRange(index, 1);
+        if (packed != null) return packed[(int) index];
+        int width = image.getWidth();
+        return image.getRGB((int) (index % width), (int) (index / width));
+    }
+
+    @Override
+    public void set(long index, int pixel) {
+        checkRange(index, 1);
+        writable()[(int) index] = pixel;
+    }
+
+    @Override
+    public int[] packedPixels() {
+        return packed;
+    }
+
+    private int[] writable() {
+        if (packed == null) throw new IllegalArgumentException("Target image must be a packed RGB copy");
+        return packed;
+    }
+
+    private void checkRange(long first, int count) {
+        if (first < 0 || count < 0 || first + count > pixelCount()) {
+            throw new IndexOutOfBoundsException("Pixels " + first + ".." + (first + count) + " are outside the image");
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.pixelcloak.core;
+
+import java.util.BitSet;
+
+/**
+ * Rows of an image that an in-place update may have changed, as reported by
+ * {@link Steganography#update}. {@link PngWriter.Encoded} uses it to recompress only the strips
+ * those rows fall in. Marks are conservative: a marked row may end up unchanged, an unmarked one
+ * never changes. Not thread-safe; rows are marked by the caller's thread.
+ */
+public final class DirtyRows {
+
+    private final int width;
+    private final int height;
+    private final BitSet rows = new BitSet();
+
+    public DirtyRows(int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Image size must be positive");
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Rows [from, to)
+    public void markRows(int from, int to) {
+        if (from < 0 || to > height || from > to) {
+            throw new IndexOutOfBoundsException("Rows " + from + ".." + to + " are outside the image");
+        }
+        rows.set(from, to);
+    }
+
+    // The rows holding the 'count' row-major pixels from linear index 'first'
+    public void markPixels(long first, long count) {
+        if (count <= 0) return;
+        markRows((int) (first / width), (int) ((first + count - 1) / width) + 1);
+    }
+
+    public void markPixel(long index) {
+        markRows((int) (index / width), (int) (index / width) + 1);
+    }
+
+    public boolean isDirty(int row) {
+        return rows.get(row);
+    }
+
+    // First dirty row at or after 'from', or -1
+    public int nextDirtyRow(int from) {
+        int row = rows.nextSetBit(from);
+        return row < 0 || row >= height ? -1 : row;
+    }
+
+    public int dirtyRowCount() {
+        return rows.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder ranges = new StringBuilder();
+        for (int from = rows.nextSetBit(0); from >= 0; ) {
+            int to = rows.nextClearBit(from);
+            if (ranges.length() > 0) ranges.append(", ");
+            ranges.append(from).append("..").append(to - 1);
+            from = rows.nextSetBit(to);
+        }
+        return "dirty rows [" + ranges + "] of " + height;
+    }
+}
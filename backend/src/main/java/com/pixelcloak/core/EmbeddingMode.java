@@ -0,0 +1,441 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * How densely an envelope body is packed into the carrier: 1 to 4 low bits of each selected
+ * channel, optionally including alpha on carriers that have one, and whether body pixels follow
+ * each other or are scattered over the carrier in a key-seeded {@link PixelPermutation} order.
+ * The default, 1 bit of R, G and B in order, is the layout {@link LsbEngine} has always written;
+ * other modes are recorded in the envelope header so a reader picks them up without being told.
+ *
+ * Data is read MSB-first. Each pixel takes bitsPerPixel() bits, spread over the selected channels
+ * in R, G, B, A order, the highest data bit going to the highest of a channel's low bits. With the
+ * default mode this is bit for bit the LsbEngine layout. A body in any other mode starts on the
+ * first whole pixel after the header, which itself is always written in the default mode.
+ *
+ * Whole pixels are packed with one table lookup each (the table maps a pixel's worth of data bits
+ * to its channel bits) and unpacked with one shift and mask per selected channel; only a pixel
+ * split by the start or end of a write is done bit by bit.
+ * Scattered modes gather a chunk of body pixels through the permutation, pack it the same way and
+ * scatter it back, so they need no more memory than sequential ones.
+ */
+public final class EmbeddingMode {
+
+    public static final int RED = 1;
+    public static final int GREEN = 2;
+    public static final int BLUE = 4;
+    public static final int ALPHA = 8;
+    public static final int RGB = RED | GREEN | BLUE;
+
+    private static final int ENCODED_BYTES = 2;
+    private static final int ENCODED_BYTES_WITH_FLAGS = 3;
+
+    // Pixels per pass when the carrier is not one packed int array; a multiple of 8
+    private static final int CHUNK_PIXELS = 8 * 1024;
+
+    // Pixels per parallel stripe; a multiple of 8, so every stripe starts on a byte
+    private static final long STRIPE_PIXELS = 256 * 1024;
+
+    // Channel bit offsets in a packed 0xAARRGGBB pixel, in packing order
+    private static final int[] CHANNEL_MASKS = {RED, GREEN, BLUE, ALPHA};
+    private static final int[] CHANNEL_SHIFTS = {16, 8, 0, 24};
+
+    // After the tables above, which the constructor reads
+    public static final EmbeddingMode DEFAULT = new EmbeddingMode(1, RGB);
+    // The default density, spread over the whole carrier instead of filling it from the top
+    public static final EmbeddingMode SCATTERED = new EmbeddingMode(1, RGB, true);
+
+    // Flag bits of the optional third encoded byte
+    private static final int FLAG_SCATTERED = 1;
+
+    private final int bitsPerChannel;
+    private final int channels;
+    private final boolean scattered;
+    private final int bitsPerPixel;
+    private final int keepMask;
+    // Pixel bit receiving each data bit of a pixel, MSB-first
+    private final int[] slotShifts;
+    // Channel bits for every value of a pixel's data bits
+    private final int[] spread;
+    // Shift of each selected channel, in packing order, and the mask of its low bits
+    private final int[] channelShifts;
+    private final int lowMask;
+
+    // bitsPerChannel: 1 to 4; channels: any non-empty combination of RED, GREEN, BLUE and ALPHA
+    public EmbeddingMode(int bitsPerChannel, int channels) {
+        this(bitsPerChannel, channels, false);
+    }
+
+    // scattered: body pixels are placed in a key-seeded order over the carrier
+    public EmbeddingMode(int bitsPerChannel, int channels, boolean scattered) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 4) {
+            throw new IllegalArgumentException("Bits per channel must be between 1 and 4");
+        }
+        if (channels <= 0 || (channels & ~(RGB | ALPHA)) != 0) {
+            throw new IllegalArgumentException("Select at least one of the red, green, blue and alpha channels");
+        }
+        this.bitsPerChannel = bitsPerChannel;
+        this.channels = channels;
+        this.scattered = scattered;
+        this.bitsPerPixel = Integer.bitCount(channels) * bitsPerChannel;
+
+        int low = (1 << bitsPerChannel) - 1;
+        int touched = 0;
+        slotShifts = new int[bitsPerPixel];
+        channelShifts = new int[Integer.bitCount(channels)];
+        int slot = 0;
+        int selected = 0;
+        for (int c = 0; c < CHANNEL_MASKS.length; c++) {
+            if ((channels & CHANNEL_MASKS[c]) == 0) continue;
+            touched |= low << CHANNEL_SHIFTS[c];
+            channelShifts[selected++] = CHANNEL_SHIFTS[c];
+            for (int b = bitsPerChannel - 1; b >= 0; b--) slotShifts[slot++] = CHANNEL_SHIFTS[c] + b;
+        }
+        this.keepMask = ~touched;
+        this.lowMask = low;
+
+        spread = new int[1 << bitsPerPixel];
+        for (int v = 0; v < spread.length; v++) {
+            int bits = 0;
+            for (int s = 0; s < bitsPerPixel; s++) {
+                bits |= ((v >>> (bitsPerPixel - 1 - s)) & 1) << slotShifts[s];
+            }
+            spread[v] = bits;
+        }
+    }
+
+    public int getBitsPerChannel() {
+        return bitsPerChannel;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int bitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    public boolean usesAlpha() {
+        return (channels & ALPHA) != 0;
+    }
+
+    public boolean isScattered() {
+        return scattered;
+    }
+
+    public boolean isDefault() {
+        return bitsPerChannel == 1 && channels == RGB && !scattered;
+    }
+
+    // Whole data bytes 'pixels' pixels can carry in this mode
+    public long capacityBytes(long pixels) {
+        return pixels * bitsPerPixel / 8;
+    }
+
+    public long capacityBytes(BufferedImage image) {
+        return capacityBytes((long) image.getWidth() * image.getHeight());
+    }
+
+    // Whether 'image' has every channel this mode writes to
+    public boolean fits(PixelStore image) {
+        return !usesAlpha() || image.hasAlpha();
+    }
+
+    // Stored in the envelope's embedding section: bits per channel, channel mask, then flags if any
+    byte[] encode() {
+        if (!scattered) return new byte[]{(byte) bitsPerChannel, (byte) channels};
+        return new byte[]{(byte) bitsPerChannel, (byte) channels, (byte) FLAG_SCATTERED};
+    }
+
+    // Null if the bytes do not describe a mode we can read
+    static EmbeddingMode decode(byte[] encoded) {
+        if (encoded.length != ENCODED_BYTES && encoded.length != ENCODED_BYTES_WITH_FLAGS) return null;
+        int flags = encoded.length == ENCODED_BYTES ? 0 : encoded[2] & 0xFF;
+        if ((flags & ~FLAG_SCATTERED) != 0) return null;
+        try {
+            return new EmbeddingMode(encoded[0] & 0xFF, encoded[1] & 0xFF, flags != 0);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EmbeddingMode)) return false;
+        EmbeddingMode m = (EmbeddingMode) o;
+        return bitsPerChannel == m.bitsPerChannel && channels == m.channels && scattered == m.scattered;
+    }
+
+    @Override
+    public int hashCode() {
+        return (bitsPerChannel * 31 + channels) * 2 + (scattered ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder names = new StringBuilder();
+        if ((channels & RED) != 0) names.append('R');
+        if ((channels & GREEN) != 0) names.append('G');
+        if ((channels & BLUE) != 0) names.append('B');
+        if ((channels & ALPHA) != 0) names.append('A');
+        return bitsPerChannel + "-bit " + names + (scattered ? " scattered" : "");
+    }
+
+    // --- Carriers. The body starts at pixel 'start'; positions are byte offsets from there.
+    // 'order' maps body pixels onto [start, pixels) for scattered modes; null lays them out in turn ---
+
+    // Writes data[off, off+len) into a writable carrier: a packed copy (LsbEngine.copyToIntRgb, or
+    // copyToIntArgb for alpha) or a mapped one, whose chunks of pixels are read, changed and written back
+    public void embed(PixelStore target, long start, PixelPermutation order, long bytePos, byte[] data, int off, int len) {
+        if (!fits(target)) {
+            throw new IllegalArgumentException("This mode hides data in transparency. Use an image with an alpha channel.");
+        }
+        checkRange(target.pixelCount(), start, order, bytePos, len);
+        int[] pixels = target.packedPixels();
+        striped(bytePos, len, (from, to) -> {
+            int at = off + (int) (from - bytePos);
+            if (order == null && pixels != null) {
+                embed(pixels, start, from, data, at, (int) (to - from));
+            } else if (order == null) {
+                chunked(from, to, start, (first, chunk, count) -> target.read(first, chunk, 0, count),
+                        (first, chunk, count) -> target.write(first, chunk, 0, count), data, at, true);
+            } else {
+                long[] where = new long[chunkLength(from, to)];
+                chunked(from, to, 0, (first, chunk, count) -> {
+                    locate(order, start, first, where, count);
+                    gather(target, pixels, where, chunk, count);
+                }, (first, chunk, count) -> {
+                    if (pixels == null) {
+                        for (int k = 0; k < count; k++) target.set(where[k], chunk[k]);
+                    } else {
+                        for (int k = 0; k < count; k++) pixels[(int) where[k]] = chunk[k];
+                    }
+                }, data, at, true);
+            }
+        });
+    }
+
+    public void extract(PixelStore image, long start, PixelPermutation order, long bytePos, byte[] out, int off, int len) {
+        checkRange(image.pixelCount(), start, order, bytePos, len);
+        int[] pixels = image.packedPixels();
+        striped(bytePos, len, (from, to) -> {
+            int at = off + (int) (from - bytePos);
+            if (order == null && pixels != null) {
+                extract(pixels, start, from, out, at, (int) (to - from));
+            } else if (order == null) {
+                chunked(from, to, start, (first, chunk, count) -> image.read(first, chunk, 0, count), null, out, at, false);
+            } else {
+                long[] where = new long[chunkLength(from, to)];
+                chunked(from, to, 0, (first, chunk, count) -> {
+                    locate(order, start, first, where, count);
+                    gather(image, pixels, where, chunk, count);
+                }, null, out, at, false);
+            }
+        });
+    }
+
+    // Marks the rows of the pixels that hold body bytes [bytePos, bytePos+len)
+    void markRows(DirtyRows rows, long start, PixelPermutation order, long bytePos, int len) {
+        if (len <= 0) return;
+        long first = bytePos * 8 / bitsPerPixel;
+        long last = ((bytePos + len) * 8 + bitsPerPixel - 1) / bitsPerPixel;
+        if (order == null) {
+            rows.markPixels(start + first, last - first);
+            return;
+        }
+        for (long p = first; p < last; p++) rows.markPixel(start + order.map(p));
+    }
+
+    private void checkRange(long pixels, long start, PixelPermutation order, long bytePos, int len) {
+        if (start < 0 || bytePos < 0 || len < 0 || start > pixels || bytePos + len > capacityBytes(pixels - start)) {
+            throw new IllegalArgumentException("Data does not fit in this image.");
+        }
+        if (order != null && order.size() != pixels - start) {
+            throw new IllegalArgumentException("Pixel order does not cover this image.");
+        }
+    }
+
+    private interface PixelIo {
+        void apply(long first, int[] chunk, int count);
+    }
+
+    // Carrier pixels of body pixels [first, first+count). Computed before any pixel is touched, so
+    // the gather that follows is a plain run of independent loads and their cache misses overlap.
+    private static void locate(PixelPermutation order, long start, long first, long[] where, int count) {
+        for (int k = 0; k < count; k++) where[k] = start + order.map(first + k);
+    }
+
+    private static void gather(PixelStore image, int[] pixels, long[] where, int[] chunk, int count) {
+        if (pixels == null) {
+            for (int k = 0; k < count; k++) chunk[k] = image.get(where[k]);
+        } else {
+            for (int k = 0; k < count; k++) chunk[k] = pixels[(int) where[k]];
+        }
+    }
+
+    // Pixels in the first chunk chunked() reads for [from, to)
+    private int chunkLength(long from, long to) {
+        long firstPixel = from * 8 / bitsPerPixel / 8 * 8;
+        long lastPixel = (to * 8 + bitsPerPixel - 1) / bitsPerPixel;
+        return (int) Math.min(CHUNK_PIXELS, lastPixel - firstPixel);
+    }
+
+    // Runs [from, to) a chunk of pixels at a time. Chunks start on 8-pixel groups, which always
+    // begin on a whole byte, so no byte is split between two chunks.
+    private void chunked(long from, long to, long start, PixelIo read, PixelIo write, byte[] data, int off, boolean embed) {
+        long firstPixel = from * 8 / bitsPerPixel / 8 * 8;
+        long lastPixel = (to * 8 + bitsPerPixel - 1) / bitsPerPixel;
+        int[] chunk = new int[chunkLength(from, to)];
+
+        for (long p = firstPixel; p < lastPixel; p += CHUNK_PIXELS) {
+            int count = (int) Math.min(CHUNK_PIXELS, lastPixel - p);
+            read.apply(start + p, chunk, count);
+            long byteFrom = Math.max(from, p * bitsPerPixel / 8);
+            long byteTo = Math.min(to, (p + CHUNK_PIXELS) * bitsPerPixel / 8);
+            int at = off + (int) (byteFrom - from);
+            if (embed) {
+                embed(chunk, -p, byteFrom, data, at, (int) (byteTo - byteFrom));
+                write.apply(start + p, chunk, count);
+            } else {
+                extract(chunk, -p, byteFrom, data, at, (int) (byteTo - byteFrom));
+            }
+        }
+    }
+
+    private interface StripeBody {
+        void run(long fromByte, long toByte);
+    }
+
+    // Splits [bytePos, bytePos+len) at whole 8-pixel groups and runs large ranges on the common pool
+    private void striped(long bytePos, int len, StripeBody body) {
+        long end = bytePos + len;
+        if (len < LsbEngine.getParallelThreshold()) {
+            if (len > 0) body.run(bytePos, end);
+            return;
+        }
+        long stripeBytes = STRIPE_PIXELS / 8 * bitsPerPixel;
+        List<ForkJoinTask<?>> stripes = new ArrayList<>();
+        for (long from = bytePos; from < end; ) {
+            long to = Math.min(end, (from / stripeBytes + 1) * stripeBytes);
+            long stripeFrom = from;
+            stripes.add(ForkJoinTask.adapt(() -> body.run(stripeFrom, to)));
+            from = to;
+        }
+        ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(stripes)));
+    }
+
+    // --- Array cores. pixels[base + p] holds body pixel p (base may be negative for chunks) ---
+
+    void embed(int[] pixels, long base, long bytePos, byte[] src, int off, int len) {
+        long bit = bytePos * 8;
+        long end = bit + 8L * len;
+        long acc = 0;
+        int have = 0;
+        int next = off;
+
+        // 1. The rest of a pixel an earlier write started
+        int within = (int) (bit % bitsPerPixel);
+        if (within != 0 && bit < end) {
+            int n = (int) Math.min(bitsPerPixel - within, end - bit);
+            while (have < n) {
+                acc = (acc << 8) | (src[next++] & 0xFF);
+                have += 8;
+            }
+            have -= n;
+            setBits(pixels, (int) (base + bit / bitsPerPixel), within, n, (int) (acc >>> have) & ((1 << n) - 1));
+            bit += n;
+        }
+
+        // 2. Whole pixels: one lookup each
+        int i = (int) (base + bit / bitsPerPixel);
+        int mask = (1 << bitsPerPixel) - 1;
+        long whole = (end - bit) / bitsPerPixel;
+        for (long k = 0; k < whole; k++, i++) {
+            while (have < bitsPerPixel) {
+                acc = (acc << 8) | (src[next++] & 0xFF);
+                have += 8;
+            }
+            have -= bitsPerPixel;
+            pixels[i] = (pixels[i] & keepMask) | spread[(int) (acc >>> have) & mask];
+        }
+        bit += whole * bitsPerPixel;
+
+        // 3. The leading bits of a pixel the next write finishes
+        if (bit < end) {
+            int n = (int) (end - bit);
+            while (have < n) {
+                acc = (acc << 8) | (src[next++] & 0xFF);
+                have += 8;
+            }
+            have -= n;
+            setBits(pixels, i, 0, n, (int) (acc >>> have) & ((1 << n) - 1));
+        }
+    }
+
+    void extract(int[] pixels, long base, long bytePos, byte[] out, int off, int len) {
+        long bit = bytePos * 8;
+        long end = bit + 8L * len;
+        long acc = 0;
+        int have = 0;
+        int next = off;
+
+        int within = (int) (bit % bitsPerPixel);
+        if (within != 0 && bit < end) {
+            int n = (int) Math.min(bitsPerPixel - within, end - bit);
+            acc = getBits(pixels[(int) (base + bit / bitsPerPixel)], within, n);
+            have = n;
+            bit += n;
+        }
+
+        int i = (int) (base + bit / bitsPerPixel);
+        long whole = (end - bit) / bitsPerPixel;
+        for (long k = 0; k < whole; k++, i++) {
+            acc = (acc << bitsPerPixel) | gatherBits(pixels[i]);
+            have += bitsPerPixel;
+            while (have >= 8) {
+                have -= 8;
+                out[next++] = (byte) (acc >>> have);
+            }
+        }
+        bit += whole * bitsPerPixel;
+
+        if (bit < end) {
+            int n = (int) (end - bit);
+            acc = (acc << n) | getBits(pixels[i], 0, n);
+            have += n;
+        }
+        while (have >= 8) {
+            have -= 8;
+            out[next++] = (byte) (acc >>> have);
+        }
+    }
+
+    // All data bits of a pixel: each selected channel's low bits, highest channel first
+    private int gatherBits(int pixel) {
+        int v = 0;
+        for (int shift : channelShifts) v = (v << bitsPerChannel) | ((pixel >>> shift) & lowMask);
+        return v;
+    }
+
+    // Data bits [from, from+n) of a pixel, MSB-first
+    private int getBits(int pixel, int from, int n) {
+        int v = 0;
+        for (int j = from; j < from + n; j++) v = (v << 1) | ((pixel >>> slotShifts[j]) & 1);
+        return v;
+    }
+
+    private void setBits(int[] pixels, int i, int from, int n, int v) {
+        int p = pixels[i];
+        for (int j = 0; j < n; j++) {
+            int shift = slotShifts[from + j];
+            p = (p & ~(1 << shift)) | (((v >>> (n - 1 - j)) & 1) << shift);
+        }
+        pixels[i] = p;
+    }
+}
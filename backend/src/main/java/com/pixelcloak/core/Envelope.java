@@ -0,0 +1,441 @@
+package com.pixelcloak.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binary PixelCloak container, embedded directly into the carrier (no Base64, no extra length prefix).
+ *
+ * <pre>
+ * magic          4  "PXCK"
+ * version        1
+ * header length  2  total header bytes, CRC included
+ * sections       *  type(1) length(1) data
+ *                     KDF  (1): kdf id(1), cost parameters, salt(16)
+ *                               PBKDF2-HMAC-SHA256 (1): iterations(4)
+ *                               scrypt (3): log2 N(1) r(4) p(4)
+ *                               Argon2id (4): memory KiB(4) passes(4) lanes(4)
+ *                     AEAD (2): aead id(1), then
+ *                               AES-256-GCM (1): iv(12)
+ *                               AES-256-GCM in segments (2): segment size(4) nonce prefix(7)
+ *                     ENTRY KEY (3): entry salt(16); the KDF output is a session master key
+ *                               and the AES key is HKDF-SHA256(master key, entry salt)
+ *                     PLACEMENT (4): placement id(1), then
+ *                               textured tiles (1): tile size(1) min entropy(1, 1/16 bit)
+ *                               min variance(1); see TexturePlacement
+ *                     EMBEDDING (5): bits per channel(1) channel mask(1) [flags(1): 1 = scattered];
+ *                               see EmbeddingMode
+ *                     JOURNAL (6): entry slots(2); the body is the entry table of a Journal
+ * body length    4
+ * crc32          4  over every header byte before it
+ * body              ciphertext + tag
+ * </pre>
+ *
+ * The magic, version and CRC let a reader reject a non-PixelCloak image after reading the
+ * header alone, before any key derivation. Everything up to the end of the sections is also
+ * bound to the ciphertext as GCM associated data. Unknown section types are skipped. Without a
+ * placement section the body follows the header in the LSB stream; with one it is spread over
+ * the carrier's textured tiles in an order derived from the key. With an embedding section it
+ * starts on the first whole pixel after the header and is packed in that mode; the two sections
+ * are never combined. A journal index is always sequential, with neither of them.
+ */
+public class Envelope {
+
+    public static final byte[] MAGIC = {'P', 'X', 'C', 'K'};
+    public static final int VERSION = 1;
+
+    // magic + version + header length: enough to know how much header to read
+    public static final int PREFIX_BYTES = 7;
+
+    // body length + crc32
+    private static final int TRAILER_BYTES = 8;
+
+    static final int SECTION_KDF = 1;
+    static final int SECTION_AEAD = 2;
+    static final int SECTION_ENTRY_KEY = 3;
+    static final int SECTION_PLACEMENT = 4;
+    static final int SECTION_EMBEDDING = 5;
+    static final int SECTION_JOURNAL = 6;
+
+    // Most entries one journal table can describe: the slot count is a 16-bit field
+    public static final int MAX_JOURNAL_SLOTS = 0xFFFF;
+
+    public static final int KDF_PBKDF2_SHA256 = Pbkdf2KeyDerivation.ID;
+    public static final int KDF_SCRYPT = ScryptKeyDerivation.ID;
+    public static final int KDF_ARGON2ID = Argon2idKeyDerivation.ID;
+    public static final int AEAD_AES_256_GCM = 1;
+    // STREAM-style segmented GCM, see GcmSegmentOutputStream
+    public static final int AEAD_AES_256_GCM_STREAM = 2;
+
+    /**
+     * Where the body of a new envelope goes in the carrier: straight after the header, over the
+     * textured tiles of a placement, or packed in a non-default mode. Never both.
+     */
+    public static final class BodyLayout {
+
+        public static final BodyLayout SEQUENTIAL = new BodyLayout(null, null);
+
+        private final TexturePlacement placement;
+        private final EmbeddingMode mode;
+
+        private BodyLayout(TexturePlacement placement, EmbeddingMode mode) {
+            this.placement = placement;
+            this.mode = mode;
+        }
+
+        public static BodyLayout textured(TexturePlacement placement) {
+            if (placement == null) throw new IllegalArgumentException("Placement must not be null");
+            return new BodyLayout(placement, null);
+        }
+
+        // The default mode is the sequential layout
+        public static BodyLayout packed(EmbeddingMode mode) {
+            if (mode == null) throw new IllegalArgumentException("Embedding mode must not be null");
+            return mode.isDefault() ? SEQUENTIAL : new BodyLayout(null, mode);
+        }
+
+        public TexturePlacement getPlacement() {
+            return placement;
+        }
+
+        public EmbeddingMode getMode() {
+            return mode;
+        }
+    }
+
+    private final int kdfId;
+    private final byte[] kdfParams;
+    private final byte[] salt;
+    private final byte[] entrySalt;
+    private final int aeadId;
+    private final byte[] iv;
+    private final int segmentSize;
+    private final TexturePlacement placement;
+    private final EmbeddingMode mode;
+    private final int journalSlots;
+
+    // Set from the AES key by AESCrypto when this envelope is sealed or unlocked; never serialized
+    private Long placementSeed;
+
+    // Serialized magic, version, header length and sections: the authenticated part of the header
+    private final byte[] sections;
+    private int bodyLength;
+    private byte[] body;
+
+    public Envelope(KeyDerivation kdf, byte[] salt, int aeadId, byte[] iv) {
+        this(kdf, salt, null, aeadId, iv);
+    }
+
+    // With an entry salt, 'salt' is the session master salt and the key comes from HKDF
+    public Envelope(KeyDerivation kdf, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv) {
+        this(kdf, salt, entrySalt, aeadId, iv, 0);
+    }
+
+    // For AEAD_AES_256_GCM_STREAM, 'iv' is the nonce prefix and segmentSize the plaintext bytes per segment
+    public Envelope(KeyDerivation kdf, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv, int segmentSize) {
+        this(kdf, salt, entrySalt, aeadId, iv, segmentSize, null);
+    }
+
+    // With a placement the body goes into the carrier's textured tiles instead of after the header
+    public Envelope(KeyDerivation kdf, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv, int segmentSize,
+                    TexturePlacement placement) {
+        this(kdf, salt, entrySalt, aeadId, iv, segmentSize, placement, null);
+    }
+
+    // With a non-default mode the body is packed more densely (or into alpha); it cannot be combined with a placement
+    public Envelope(KeyDerivation kdf, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv, int segmentSize,
+                    TexturePlacement placement, EmbeddingMode mode) {
+        this(kdf, salt, entrySalt, aeadId, iv, segmentSize, placement, mode, 0);
+    }
+
+    // With journal slots > 0 this is the index of a Journal, whose body is its entry table
+    Envelope(KeyDerivation kdf, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv, int segmentSize,
+             TexturePlacement placement, EmbeddingMode mode, int journalSlots) {
+        if (mode != null && mode.isDefault()) mode = null;
+        if (placement != null && mode != null) {
+            throw new IllegalArgumentException("Texture placement uses 1 bit of R, G and B. Choose a placement or an embedding mode.");
+        }
+        if (journalSlots < 0 || journalSlots > MAX_JOURNAL_SLOTS || (journalSlots > 0 && (placement != null || mode != null))) {
+            throw new IllegalArgumentException("A journal index needs 1 to " + MAX_JOURNAL_SLOTS + " slots and the default layout.");
+        }
+        this.kdfId = kdf.id();
+        this.kdfParams = kdf.encodeParams();
+        this.salt = salt;
+        this.entrySalt = entrySalt;
+        this.aeadId = aeadId;
+        this.iv = iv;
+        this.segmentSize = segmentSize;
+        this.placement = placement;
+        this.mode = mode;
+        this.journalSlots = journalSlots;
+        this.sections = writeSections();
+    }
+
+    // Parsed header: keeps the sections exactly as read, including any we do not understand
+    private Envelope(int kdfId, byte[] kdfParams, byte[] salt, byte[] entrySalt, int aeadId, byte[] iv, int segmentSize,
+                     TexturePlacement placement, EmbeddingMode mode, int journalSlots, byte[] sections) {
+        this.kdfId = kdfId;
+        this.kdfParams = kdfParams;
+        this.salt = salt;
+        this.entrySalt = entrySalt;
+        this.aeadId = aeadId;
+        this.iv = iv;
+        this.segmentSize = segmentSize;
+        this.placement = placement;
+        this.mode = mode;
+        this.journalSlots = journalSlots;
+        this.sections = sections;
+    }
+
+    public int getKdfId() {
+        return kdfId;
+    }
+
+    public byte[] getKdfParams() {
+        return kdfParams;
+    }
+
+    // The KDF and cost this entry was saved with; IllegalArgumentException if unknown or out of bounds
+    public KeyDerivation getKeyDerivation() {
+        return KeyDerivation.decode(kdfId, kdfParams);
+    }
+
+    public byte[] getSalt() {
+        return salt;
+    }
+
+    public byte[] getEntrySalt() {
+        return entrySalt;
+    }
+
+    public int getAeadId() {
+        return aeadId;
+    }
+
+    public byte[] getIv() {
+        return iv;
+    }
+
+    // Plaintext bytes per segment for AEAD_AES_256_GCM_STREAM, 0 otherwise
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    // How the body is laid out in the carrier, or null when it directly follows the header
+    public TexturePlacement getPlacement() {
+        return placement;
+    }
+
+    // How the body's bits are packed, or null for 1 LSB of R, G and B straight after the header
+    public EmbeddingMode getMode() {
+        return mode;
+    }
+
+    // Entry slots of a journal index, 0 for an ordinary entry
+    public int getJournalSlots() {
+        return journalSlots;
+    }
+
+    public boolean isJournalIndex() {
+        return journalSlots > 0;
+    }
+
+    // Whether the body's position depends on the key: a texture placement or a scattered mode
+    public boolean isKeyPlaced() {
+        return placement != null || (mode != null && mode.isScattered());
+    }
+
+    // Key-derived seed of the placement order, or null until the envelope is sealed or unlocked
+    public Long getPlacementSeed() {
+        return placementSeed;
+    }
+
+    void setPlacementSeed(long seed) {
+        this.placementSeed = seed;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public void setBody(byte[] body) {
+        this.body = body;
+        this.bodyLength = body.length;
+    }
+
+    // Used when the body is streamed rather than held in memory
+    public void setBodyLength(int bodyLength) {
+        this.bodyLength = bodyLength;
+    }
+
+    public int headerLength() {
+        return sections.length + TRAILER_BYTES;
+    }
+
+    // Header plus body
+    public int totalLength() {
+        return headerLength() + bodyLength;
+    }
+
+    // Serialized header, body length and CRC included
+    public byte[] header() {
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength());
+        buffer.put(sections);
+        buffer.putInt(bodyLength);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    // Header bytes that are authenticated with the body: everything but body length and CRC
+    public byte[] associatedData() {
+        return sections.clone();
+    }
+
+    // Total header length announced by the first PREFIX_BYTES bytes, or -1 if they are not ours
+    public static int announcedHeaderLength(byte[] prefix) {
+        if (prefix.length < PREFIX_BYTES) return -1;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (prefix[i] != MAGIC[i]) return -1;
+        }
+        if ((prefix[4] & 0xFF) != VERSION) return -1;
+
+        int length = ((prefix[5] & 0xFF) << 8) | (prefix[6] & 0xFF);
+        return length >= PREFIX_BYTES + TRAILER_BYTES ? length : -1;
+    }
+
+    // Parses a complete header, or returns null if it is not a valid PixelCloak header
+    public static Envelope parseHeader(byte[] header) {
+        int length = announcedHeaderLength(header);
+        if (length < 0 || header.length < length) return null;
+
+        ByteBuffer buffer = ByteBuffer.wrap(header, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, length - 4);
+        if ((int) crc.getValue() != buffer.getInt(length - 4)) return null;
+
+        // Walk the sections
+        buffer.position(PREFIX_BYTES);
+        int sectionsEnd = length - TRAILER_BYTES;
+        Integer kdfId = null, aeadId = null;
+        int segmentSize = 0, journalSlots = 0;
+        byte[] kdfParams = null, salt = null, entrySalt = null, iv = null;
+        TexturePlacement placement = null;
+        EmbeddingMode mode = null;
+
+        while (buffer.position() < sectionsEnd) {
+            if (sectionsEnd - buffer.position() < 2) return null;
+            int type = buffer.get() & 0xFF;
+            int sectionLength = buffer.get() & 0xFF;
+            if (sectionLength > sectionsEnd - buffer.position()) return null;
+            ByteBuffer data = buffer.slice();
+            data.limit(sectionLength);
+            buffer.position(buffer.position() + sectionLength);
+
+            if (type == SECTION_KDF && sectionLength >= 1) {
+                kdfId = data.get() & 0xFF;
+                // An unknown KDF keeps everything as parameters; getKeyDerivation() reports it
+                int paramsLength = KeyDerivation.paramsLength(kdfId);
+                if (paramsLength < 0) paramsLength = data.remaining();
+                if (data.remaining() < paramsLength) return null;
+                kdfParams = new byte[paramsLength];
+                salt = new byte[data.remaining() - paramsLength];
+                data.get(kdfParams).get(salt);
+            } else if (type == SECTION_AEAD && sectionLength >= 1) {
+                aeadId = data.get() & 0xFF;
+                if (aeadId == AEAD_AES_256_GCM_STREAM) {
+                    if (data.remaining() < 4) return null;
+                    segmentSize = data.getInt();
+                }
+                iv = new byte[data.remaining()];
+                data.get(iv);
+            } else if (type == SECTION_ENTRY_KEY) {
+                entrySalt = new byte[sectionLength];
+                data.get(entrySalt);
+            } else if (type == SECTION_PLACEMENT) {
+                // A body we cannot locate is as good as no body
+                byte[] encoded = new byte[sectionLength];
+                data.get(encoded);
+                placement = TexturePlacement.decode(encoded);
+                if (placement == null) return null;
+            } else if (type == SECTION_EMBEDDING) {
+                byte[] encoded = new byte[sectionLength];
+                data.get(encoded);
+                mode = EmbeddingMode.decode(encoded);
+                if (mode == null || mode.isDefault()) return null;
+            } else if (type == SECTION_JOURNAL) {
+                if (sectionLength != 2) return null;
+                journalSlots = data.getShort() & 0xFFFF;
+                if (journalSlots == 0) return null;
+            }
+        }
+        if (kdfId == null || aeadId == null || iv == null) return null;
+        if (placement != null && mode != null) return null;
+        if (journalSlots > 0 && (placement != null || mode != null)) return null;
+
+        Envelope envelope = new Envelope(kdfId, kdfParams, salt, entrySalt, aeadId, iv, segmentSize, placement, mode,
+                journalSlots, Arrays.copyOf(header, sectionsEnd));
+        envelope.bodyLength = buffer.getInt(sectionsEnd);
+        return envelope.bodyLength < 0 ? null : envelope;
+    }
+
+    private byte[] writeSections() {
+        int kdfLength = 1 + kdfParams.length + salt.length;
+        int aeadLength = 1 + (aeadId == AEAD_AES_256_GCM_STREAM ? 4 : 0) + iv.length;
+        byte[] placementBytes = placement != null ? placement.encode() : null;
+        byte[] modeBytes = mode != null ? mode.encode() : null;
+        int length = PREFIX_BYTES + 2 + kdfLength + 2 + aeadLength + (entrySalt != null ? 2 + entrySalt.length : 0)
+                + (placementBytes != null ? 2 + placementBytes.length : 0)
+                + (modeBytes != null ? 2 + modeBytes.length : 0)
+                + (journalSlots > 0 ? 4 : 0);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putShort((short) (length + TRAILER_BYTES));
+
+        buffer.put((byte) SECTION_KDF);
+        buffer.put((byte) kdfLength);
+        buffer.put((byte) kdfId);
+        buffer.put(kdfParams);
+        buffer.put(salt);
+
+        buffer.put((byte) SECTION_AEAD);
+        buffer.put((byte) aeadLength);
+        buffer.put((byte) aeadId);
+        if (aeadId == AEAD_AES_256_GCM_STREAM) buffer.putInt(segmentSize);
+        buffer.put(iv);
+
+        if (entrySalt != null) {
+            buffer.put((byte) SECTION_ENTRY_KEY);
+            buffer.put((byte) entrySalt.length);
+            buffer.put(entrySalt);
+        }
+
+        if (placementBytes != null) {
+            buffer.put((byte) SECTION_PLACEMENT);
+            buffer.put((byte) placementBytes.length);
+            buffer.put(placementBytes);
+        }
+
+        if (modeBytes != null) {
+            buffer.put((byte) SECTION_EMBEDDING);
+            buffer.put((byte) modeBytes.length);
+            buffer.put(modeBytes);
+        }
+
+        if (journalSlots > 0) {
+            buffer.put((byte) SECTION_JOURNAL);
+            buffer.put((byte) 2);
+            buffer.putShort((short) journalSlots);
+        }
+        return buffer.array();
+    }
+}
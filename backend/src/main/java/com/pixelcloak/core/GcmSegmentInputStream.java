@@ -0,0 +1,99 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Reads what {@link GcmSegmentOutputStream} wrote, releasing each segment only after its tag
+ * has been verified. Tampering surfaces as an IOException at the first bad segment; a body
+ * cut short (no segment flagged last) or with data after the last segment is rejected too.
+ */
+final class GcmSegmentInputStream extends InputStream {
+
+    private final AESCryptoEngine engine;
+    private final InputStream in;
+    private final byte[] key;
+    private final byte[] noncePrefix;
+    private final byte[] aad;
+    private final byte[] sealed;
+    private final byte[] plain;
+    private int plainPos;
+    private int plainLen;
+    private int counter;
+    private boolean finished;
+
+    // First byte of the next segment, read ahead to learn whether the current one is the last
+    private int lookahead = -1;
+
+    // Takes ownership of 'key' and zeroes it on close
+    GcmSegmentInputStream(AESCryptoEngine engine, InputStream in, byte[] key, Envelope envelope) {
+        this.engine = engine;
+        this.in = in;
+        this.key = key;
+        this.noncePrefix = envelope.getIv();
+        this.aad = envelope.associatedData();
+        this.sealed = new byte[envelope.getSegmentSize() + GcmSegmentOutputStream.TAG_BYTES];
+        this.plain = new byte[envelope.getSegmentSize()];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (plainPos == plainLen && !nextSegment()) return -1;
+        return plain[plainPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (plainPos == plainLen && !nextSegment()) return -1;
+        int n = Math.min(len, plainLen - plainPos);
+        System.arraycopy(plain, plainPos, b, off, n);
+        plainPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return plainLen - plainPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(key, (byte) 0);
+        Arrays.fill(plain, (byte) 0);
+        in.close();
+    }
+
+    // Decrypts the next segment into 'plain'; false once the last one has been consumed
+    private boolean nextSegment() throws IOException {
+        while (!finished) {
+            int length = 0;
+            if (lookahead >= 0) {
+                sealed[length++] = (byte) lookahead;
+                lookahead = -1;
+            }
+            length += in.readNBytes(sealed, length, sealed.length - length);
+            if (length < GcmSegmentOutputStream.TAG_BYTES) {
+                throw new IOException("Encrypted payload is truncated");
+            }
+
+            boolean last = length < sealed.length || (lookahead = in.read()) < 0;
+            if (counter == -1) throw new IOException("Encrypted payload has too many segments");
+            try {
+                Cipher cipher = engine.decryptCipher(key, GcmSegmentOutputStream.nonce(noncePrefix, counter, last));
+                cipher.updateAAD(aad);
+                plainLen = cipher.doFinal(sealed, 0, length, plain, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Encrypted payload failed authentication at segment " + counter, e);
+            }
+            plainPos = 0;
+            counter++;
+            finished = last;
+            if (plainLen > 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Segmented AES-GCM in the style of STREAM (Hoang et al.) and Tink's streaming AEAD.
+ *
+ * Plaintext is cut into fixed-size segments, each sealed on its own with the nonce
+ * {@code prefix(7) | segment counter(4, big-endian) | last flag(1)} and the envelope header as
+ * associated data. Reordering, dropping or appending segments fails authentication, and a
+ * reader can release each segment as soon as its tag checks out. One segment is held back until
+ * more data or {@link #close()} arrives, because only then is it known whether it is the last.
+ */
+final class GcmSegmentOutputStream extends OutputStream {
+
+    static final int NONCE_PREFIX_BYTES = 7;
+    static final int TAG_BYTES = AESCrypto.GCM_TAG_LENGTH / 8;
+
+    private final AESCryptoEngine engine;
+    private final OutputStream out;
+    private final byte[] key;
+    private final byte[] noncePrefix;
+    private final byte[] aad;
+    private final byte[] segment;
+    private final byte[] sealed;
+    private int buffered;
+    private int counter;
+    private boolean closed;
+
+    // Takes ownership of 'key' and zeroes it on close
+    GcmSegmentOutputStream(AESCryptoEngine engine, OutputStream out, byte[] key, Envelope envelope) {
+        this.engine = engine;
+        this.out = out;
+        this.key = key;
+        this.noncePrefix = envelope.getIv();
+        this.aad = envelope.associatedData();
+        this.segment = new byte[envelope.getSegmentSize()];
+        this.sealed = new byte[envelope.getSegmentSize() + TAG_BYTES];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            // A full segment is only sealed once we know more data follows it
+            if (buffered == segment.length) {
+                sealSegment(false);
+            }
+            int n = Math.min(len, segment.length - buffered);
+            System.arraycopy(b, off, segment, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Seals the final segment (possibly empty) and closes the underlying stream
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            sealSegment(true);
+            out.close();
+        } finally {
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(segment, (byte) 0);
+        }
+    }
+
+    private void sealSegment(boolean last) throws IOException {
+        if (counter == -1) throw new IOException("Payload has too many segments");
+        try {
+            Cipher cipher = engine.encryptCipher(key, nonce(noncePrefix, counter, last));
+            cipher.updateAAD(aad);
+            int n = cipher.doFinal(segment, 0, buffered, sealed, 0);
+            out.write(sealed, 0, n);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt payload segment", e);
+        }
+        buffered = 0;
+        counter++;
+    }
+
+    static byte[] nonce(byte[] prefix, int counter, boolean last) {
+        byte[] nonce = Arrays.copyOf(prefix, AESCrypto.GCM_IV_LENGTH);
+        nonce[NONCE_PREFIX_BYTES] = (byte) (counter >>> 24);
+        nonce[NONCE_PREFIX_BYTES + 1] = (byte) (counter >>> 16);
+        nonce[NONCE_PREFIX_BYTES + 2] = (byte) (counter >>> 8);
+        nonce[NONCE_PREFIX_BYTES + 3] = (byte) counter;
+        nonce[NONCE_PREFIX_BYTES + 4] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+}
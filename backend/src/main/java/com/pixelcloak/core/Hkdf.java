@@ -0,0 +1,58 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Arrays;
+
+/**
+ * HKDF-SHA256 (RFC 5869). Cheap enough to run per entry once a master key exists.
+ */
+public final class Hkdf {
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+    }
+
+    public static byte[] derive(byte[] ikm, byte[] salt, byte[] info, int length) throws Exception {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid HKDF output length");
+        }
+        byte[] prk = extract(salt, ikm);
+        try {
+            return expand(prk, info, length);
+        } finally {
+            Arrays.fill(prk, (byte) 0);
+        }
+    }
+
+    static byte[] extract(byte[] salt, byte[] ikm) throws Exception {
+        // An absent salt is a string of HashLen zeros
+        byte[] key = salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt;
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(key, HMAC));
+        return mac.doFinal(ikm);
+    }
+
+    static byte[] expand(byte[] prk, byte[] info, int length) throws Exception {
+        Mac mac = Mac.getInstance(HMAC);
+        mac.init(new SecretKeySpec(prk, HMAC));
+
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        int done = 0;
+        for (int counter = 1; done < length; counter++) {
+            mac.update(block);
+            if (info != null) mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+
+            int n = Math.min(block.length, length - done);
+            System.arraycopy(block, 0, out, done, n);
+            done += n;
+        }
+        Arrays.fill(block, (byte) 0);
+        return out;
+    }
+}
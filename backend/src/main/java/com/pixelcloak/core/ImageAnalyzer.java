@@ -1,90 +1,274 @@
 package com.pixelcloak.core;
 
-import java.io.BufferedReader;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Decides whether an image has enough texture to hide data in, from the Shannon entropy of its
+ * grayscale histogram (same luminance weights as PIL {@code convert('L')}).
+ *
+ * The analysis runs in-process by default. {@code -Dpixelcloak.analyzer=python} (or
+ * {@link #setBackend(Backend)}) selects the original {@code scripts/analyze_image.py} instead;
+ * the interpreter is taken from {@code -Dpixelcloak.python} and the script from
+ * {@code -Dpixelcloak.analyzer.script}. Python analyses go to a shared {@link AnalyzerPool} of
+ * {@code -Dpixelcloak.analyzer.workers} warm workers (default 2, 0 for one process per call)
+ * with a {@code -Dpixelcloak.analyzer.timeout} deadline in milliseconds (default 10000); the
+ * one-shot path runs under the same deadline through a {@link ProcessRunner}.
+ *
+ * Results for files are cached against path, modification time, size and backend, so saving
+ * the same carrier again costs no analysis at all. Failed analyses are not cached.
+ */
 public class ImageAnalyzer {
 
+    // Images at or below this many bits of grayscale entropy are too flat to hide data in
+    public static final double SAFE_THRESHOLD = 4.5;
+
+    public enum Backend { JAVA, PYTHON }
+
+    private static volatile Backend backend =
+            "python".equalsIgnoreCase(System.getProperty("pixelcloak.analyzer")) ? Backend.PYTHON : Backend.JAVA;
+
+    // Pixels converted per readPixels call
+    private static final int CHUNK_PIXELS = 8192;
+
+    private static final int CACHE_ENTRIES = 64;
+
+    // Least-recently-used results by file identity
+    private static final Map<String, AnalysisResult> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AnalysisResult> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    private static final int DEFAULT_WORKERS = 2;
+    private static final long DEFAULT_TIMEOUT_MS = 10_000;
+
+    // Created on the first Python analysis
+    private static AnalyzerPool pool;
+
+    // Created on the first one-shot Python analysis
+    private static ProcessRunner runner;
+
+    public static void setBackend(Backend selected) {
+        backend = selected;
+    }
+
+    public static Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Analyzes 'file', which the caller has already decoded into 'image' (may be null). The
+     * Java backend uses the image in memory, the Python one the file. Cached per file.
+     */
+    public static AnalysisResult analyze(File file, BufferedImage image) {
+        if (file == null) return analyze(image);
+
+        Backend selected = backend;
+        String key = cacheKey(file, selected);
+        synchronized (CACHE) {
+            AnalysisResult cached = CACHE.get(key);
+            if (cached != null) return cached;
+        }
+
+        AnalysisResult result;
+        if (selected == Backend.PYTHON) {
+            AnalyzerPool workers = pool();
+            result = workers != null ? workers.analyze(file) : analyzeWithPython(file);
+        } else if (image != null) {
+            result = analyze(image);
+        } else {
+            result = analyzeFile(file);
+        }
+
+        if (!result.isError()) {
+            synchronized (CACHE) {
+                CACHE.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    // In-process analysis of a decoded image, whatever the configured backend; not cached
+    public static AnalysisResult analyze(BufferedImage image) {
+        long start = System.nanoTime();
+        double score = entropy(image);
+        return new AnalysisResult(score > SAFE_THRESHOLD, score, System.nanoTime() - start, null);
+    }
+
+    public static AnalysisResult analyze(File imageFile) {
+        return analyze(imageFile, null);
+    }
+
+    // Drops every cached result
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    // Stops the Python workers, if any were started; the next Python analysis starts new ones
+    public static synchronized void shutdownWorkers() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
     public static boolean isImageSafe(File imageFile) {
+        return analyze(imageFile).isSafe();
+    }
+
+    // to return entropy score
+    public static double getEntropyScore(File imageFile) {
+        return analyze(imageFile).getScore();
+    }
+
+    private static AnalysisResult analyzeFile(File imageFile) {
+        long start = System.nanoTime();
         try {
-            File scriptFile = new File("scripts", "analyze_image.py");
-            if (!scriptFile.exists()) {
-                System.err.println("JAVA ERROR: Script not found at " + scriptFile.getAbsolutePath());
-                return false;
-            }
+            BufferedImage image = ImageIO.read(imageFile);
+            if (image == null) return AnalysisResult.failed("Unsupported image format", System.nanoTime() - start);
+            double score = entropy(image);
+            return new AnalysisResult(score > SAFE_THRESHOLD, score, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            return AnalysisResult.failed(e.toString(), System.nanoTime() - start);
+        }
+    }
 
-            // --- CRITICAL FIX: Use the full path you found earlier ---
-            // Replace this string with YOUR specific path: "C:\\Python313\\python.exe"
-            String pythonPath = "C:\\Python313\\python.exe";
+    // Identity of a file's current content as far as the file system tells us
+    private static String cacheKey(File file, Backend selected) {
+        return selected + "|" + file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+    }
 
-            ProcessBuilder pb = new ProcessBuilder(pythonPath, scriptFile.getAbsolutePath(), imageFile.getAbsolutePath());
-            pb.redirectErrorStream(true); // Merges errors so we can read them
+    // Shannon entropy (bits) of the 8-bit luminance histogram
+    static double entropy(BufferedImage image) {
+        int[] histogram = histogram(image);
+        double total = (double) image.getWidth() * image.getHeight();
 
-            Process process = pb.start();
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line = reader.readLine();
+    static int[] histogram(BufferedImage image) {
+        int[] histogram = new int[256];
+        int type = image.getType();
 
-            // Read all lines if there are multiple (useful for debugging errors)
-            StringBuilder fullOutput = new StringBuilder();
-            if (line != null) fullOutput.append(line);
+        // Gray images: the samples are the luminance already (getRGB would gamma-convert them)
+        if (type == BufferedImage.TYPE_BYTE_GRAY || type == BufferedImage.TYPE_USHORT_GRAY) {
+            Raster raster = image.getRaster();
+            int width = image.getWidth();
+            int[] row = new int[width];
+            for (int y = 0; y < image.getHeight(); y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                // PIL clips 16-bit samples to 255 on convert('L')
+                for (int v : row) histogram[Math.min(v, 255)]++;
+            }
+            return histogram;
+        }
 
-            while (reader.ready()) {
-                fullOutput.append("\n").append(reader.readLine());
+        int pixels = image.getWidth() * image.getHeight();
+        int[] packed = LsbEngine.packedPixels(image);
+        int[] chunk = packed != null ? null : new int[Math.min(CHUNK_PIXELS, pixels)];
+        for (int first = 0; first < pixels; first += CHUNK_PIXELS) {
+            int count = Math.min(CHUNK_PIXELS, pixels - first);
+            int[] src = packed;
+            int off = first;
+            if (src == null) {
+                LsbEngine.readPixels(image, first, count, chunk);
+                src = chunk;
+                off = 0;
+            }
+            for (int k = 0; k < count; k++) {
+                histogram[luminance(src[off + k])]++;
             }
+        }
+        return histogram;
+    }
 
-            process.waitFor();
+    // PIL's L = R * 299/1000 + G * 587/1000 + B * 114/1000, in its 16-bit fixed point with rounding
+    static int luminance(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        return (r * 19595 + g * 38470 + b * 7471 + 0x8000) >>> 16;
+    }
 
-            // DEBUGGING: Print exactly what Python said
-            System.out.println("PYTHON SAID: " + fullOutput.toString());
+    // The original analyzer: one interpreter per call, "SAFE|score" / "UNSAFE|score" / "ERROR|..." on stdout
+    private static AnalysisResult analyzeWithPython(File imageFile) {
+        long start = System.nanoTime();
+        File scriptFile = scriptFile();
+        if (!scriptFile.exists()) {
+            return AnalysisResult.failed("Script not found at " + scriptFile.getAbsolutePath(), System.nanoTime() - start);
+        }
 
-            if (line != null && line.startsWith("SAFE")) {
-                return true;
-            } else {
-                return false;
+        try {
+            ProcessRunner.Result run = runner().run(
+                    List.of(pythonPath(), scriptFile.getAbsolutePath(), imageFile.getAbsolutePath()));
+            if (run.isTimedOut()) {
+                return AnalysisResult.failed("Analyzer did not answer within " + run.getElapsedMillis() + " ms", run.getElapsedNanos());
             }
 
+            String line = run.firstLine();
+            if (line == null && run.getExitCode() != 0) {
+                return AnalysisResult.failed("Analyzer exited with code " + run.getExitCode(), run.getElapsedNanos());
+            }
+            return AnalysisResult.parse(line, run.getElapsedNanos());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return AnalysisResult.failed("Interrupted", System.nanoTime() - start);
         } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            return AnalysisResult.failed(e.toString(), System.nanoTime() - start);
         }
+    }
 
+    // Runner of the one-shot path; its counters cover every Python call made without workers
+    static synchronized ProcessRunner runner() {
+        if (runner == null) runner = new ProcessRunner(Duration.ofMillis(timeoutMillis()));
+        return runner;
     }
 
-        // to return entropy score
-        public static double getEntropyScore(File imageFile) {
-            try{
-                File scriptFile = new File( "scripts",  "analyze_image.py");
-                
-                if (!scriptFile.exists()) {
-                    System.err.println("JAVA ERROR: Script not found at " + scriptFile.getAbsolutePath());
-                    return -1.0;
-                }
-
-                String pythonPath = "C:\\Python313\\python.exe";
-
-                ProcessBuilder pb = new ProcessBuilder(pythonPath, scriptFile.getAbsolutePath(), imageFile.getAbsolutePath());
-                pb.redirectErrorStream(true);
-
-                Process process = pb.start();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String line = reader.readLine(); 
-                process.waitFor();      
-                
-                
-                if (line != null && line.contains("|")) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length > 1) {
-                        return Double.parseDouble(parts[1]);
-                    }
-                }
-                return -1.0;            
-            }catch (Exception e){
-                e.printStackTrace();
-                return -1.0;
-            }   
-        }
+    private static long timeoutMillis() {
+        return Long.getLong("pixelcloak.analyzer.timeout", DEFAULT_TIMEOUT_MS);
+    }
+
+    // The shared worker pool, or null when workers are disabled or the script is missing
+    private static synchronized AnalyzerPool pool() {
+        if (pool != null) return pool;
+
+        int workers = Integer.getInteger("pixelcloak.analyzer.workers", DEFAULT_WORKERS);
+        File script = scriptFile();
+        if (workers <= 0 || !script.exists()) return null; // The one-shot path reports the missing script
+
+        pool = new AnalyzerPool(List.of(pythonPath(), script.getAbsolutePath(), "--worker"),
+                workers, Duration.ofMillis(timeoutMillis()));
+        return pool;
+    }
+
+    // -Dpixelcloak.analyzer.script, else scripts/analyze_image.py under the working directory
+    private static File scriptFile() {
+        String configured = System.getProperty("pixelcloak.analyzer.script");
+        if (configured != null && !configured.isBlank()) return new File(configured);
+        return new File("scripts", "analyze_image.py");
+    }
 
-        
-}
\ No newline at end of file
+    // -Dpixelcloak.python, else whatever "python" resolves to on the PATH
+    private static String pythonPath() {
+        String configured = System.getProperty("pixelcloak.python");
+        if (configured != null && !configured.isBlank()) return configured;
+        return System.getProperty("os.name", "").startsWith("Windows") ? "python" : "python3";
+    }
+}
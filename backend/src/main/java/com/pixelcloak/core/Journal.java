@@ -0,0 +1,317 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Many dated entries in one carrier, each readable on its own. The carrier's LSB stream (1 bit of
+ * R, G and B, in order) holds an index envelope followed by one ordinary {@link Envelope} per entry:
+ *
+ * <pre>
+ * stream byte 0   index envelope: JOURNAL section with the slot count, body = sealed entry table
+ * index end       entry envelopes, back to back in the order they were appended
+ *
+ * entry table     count(2), then per slot: id(4) timestamp(8, ms since the epoch)
+ *                 offset(8, stream byte of the entry envelope) length(4, envelope bytes)
+ *                 entry salt(16); unused slots are zero
+ * </pre>
+ *
+ * The table always has every slot, so the index keeps the same length and entries start at a
+ * fixed place. Every envelope is keyed by an HKDF subkey of one master key under the journal's
+ * master salt (see {@link Session}), so opening with the password runs the KDF once. Reading an
+ * entry then costs the table's and that entry's pixels and one HKDF plus GCM each, however many
+ * entries there are. Appending seals the new entry and a fresh table; no other entry is read or
+ * re-encrypted. The table records each entry's salt and reading checks it, so entry envelopes
+ * cannot be swapped between slots unnoticed.
+ *
+ * The image is changed in place; {@link #append} returns the rows it touched for
+ * {@link PngWriter.Encoded#update}. Not thread-safe.
+ */
+public final class Journal implements AutoCloseable {
+
+    public static final int DEFAULT_SLOTS = 256;
+
+    // id + timestamp + offset + length + entry salt
+    static final int SLOT_BYTES = 4 + 8 + 8 + 4 + AESCrypto.SALT_LENGTH;
+
+    /** One row of the entry table. */
+    public static final class Entry {
+        private final int id;
+        private final long timestamp;
+        private final long offset;
+        private final int length;
+        private final byte[] entrySalt;
+
+        Entry(int id, long timestamp, long offset, int length, byte[] entrySalt) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.offset = offset;
+            this.length = length;
+            this.entrySalt = entrySalt;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Instant getTimestamp() {
+            return Instant.ofEpochMilli(timestamp);
+        }
+
+        // Stream byte the entry's envelope starts at
+        public long getOffset() {
+            return offset;
+        }
+
+        // Envelope bytes, header included
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + id + " " + getTimestamp();
+        }
+    }
+
+    private BufferedImage image;
+    private final Session session;
+    // Closed with the journal when it was derived from the password here
+    private final boolean ownsSession;
+    private final int slots;
+    private final int indexLength;
+    private final List<Entry> entries;
+
+    private Journal(BufferedImage image, Session session, boolean ownsSession, int slots, int indexLength,
+                    List<Entry> entries) {
+        this.image = image;
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.slots = slots;
+        this.indexLength = indexLength;
+        this.entries = entries;
+    }
+
+    // Starts an empty journal in a copy of 'carrier', under a new master key derived from the password
+    public static Journal create(BufferedImage carrier, char[] password, int slots) throws Exception {
+        Session session = Session.open(password);
+        try {
+            return create(carrier, session, slots, true);
+        } catch (Exception e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    // Under the login session's master key: its entries open in this session without the KDF
+    public static Journal create(BufferedImage carrier, Session session, int slots) throws Exception {
+        return create(carrier, session, slots, false);
+    }
+
+    private static Journal create(BufferedImage carrier, Session session, int slots, boolean ownsSession)
+            throws Exception {
+        if (slots < 1 || slots > Envelope.MAX_JOURNAL_SLOTS) {
+            throw new IllegalArgumentException("A journal needs 1 to " + Envelope.MAX_JOURNAL_SLOTS + " entry slots");
+        }
+        Envelope index = AESCrypto.engine().encryptJournalIndex(new byte[tableBytes(slots)], session, slots);
+        if (index.totalLength() > LsbEngine.capacityBytes(carrier)) {
+            throw new IllegalArgumentException("Image is too small for a journal of " + slots + " entries.");
+        }
+        Journal journal = new Journal(LsbEngine.copyToIntRgb(carrier), session, ownsSession, slots,
+                index.totalLength(), new ArrayList<>());
+        journal.writeIndex(index, null);
+        return journal;
+    }
+
+    // The journal in 'image', or null if it does not carry one; runs the password KDF once
+    public static Journal open(BufferedImage image, char[] password) throws Exception {
+        Envelope index = readIndex(image);
+        if (index == null) return null;
+        Session session = Session.resume(password, index);
+        try {
+            return open(image, index, session, true);
+        } catch (Exception e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    // For a journal created or last opened with this session's master key; no KDF runs
+    public static Journal open(BufferedImage image, Session session) throws Exception {
+        Envelope index = readIndex(image);
+        if (index == null) return null;
+        return open(image, index, session, false);
+    }
+
+    private static Journal open(BufferedImage image, Envelope index, Session session, boolean ownsSession)
+            throws Exception {
+        byte[] body = new byte[index.getBodyLength()];
+        LsbEngine.extract(image, index.headerLength(), body, 0, body.length);
+        index.setBody(body);
+
+        int slots = index.getJournalSlots();
+        byte[] table = AESCrypto.engine().decryptJournalIndex(index, session);
+        if (table.length != tableBytes(slots)) throw new IllegalArgumentException("Journal index is damaged");
+
+        ByteBuffer buffer = ByteBuffer.wrap(table);
+        int count = buffer.getShort() & 0xFFFF;
+        if (count > slots) throw new IllegalArgumentException("Journal index is damaged");
+        List<Entry> entries = new ArrayList<>(count);
+        long end = index.totalLength();
+        for (int i = 0; i < count; i++) {
+            int id = buffer.getInt();
+            long timestamp = buffer.getLong();
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            byte[] entrySalt = new byte[AESCrypto.SALT_LENGTH];
+            buffer.get(entrySalt);
+            // Entries are packed in append order; anything else is not a table we wrote
+            if (offset != end || length <= 0 || offset + length > LsbEngine.capacityBytes(image)) {
+                throw new IllegalArgumentException("Journal index is damaged");
+            }
+            entries.add(new Entry(id, timestamp, offset, length, entrySalt));
+            end = offset + length;
+        }
+        Arrays.fill(table, (byte) 0);
+        return new Journal(image, session, ownsSession, slots, index.totalLength(), entries);
+    }
+
+    // Index header at the start of the stream, or null if 'image' holds no journal
+    private static Envelope readIndex(BufferedImage image) {
+        Envelope index = Steganography.readEnvelopeHeader(image);
+        return index != null && index.isJournalIndex() ? index : null;
+    }
+
+    // Whether 'image' starts with a journal index; reads only its header
+    public static boolean isJournal(BufferedImage image) {
+        return readIndex(image) != null;
+    }
+
+    // The carrier with the journal in it; a packed copy once something has been appended to a loaded image
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    // Entry with this id, or null
+    public Entry find(int id) {
+        for (Entry entry : entries) {
+            if (entry.id == id) return entry;
+        }
+        return null;
+    }
+
+    // Entries dated in [from, to), in append order
+    public List<Entry> entriesBetween(Instant from, Instant to) {
+        List<Entry> found = new ArrayList<>();
+        for (Entry entry : entries) {
+            Instant timestamp = entry.getTimestamp();
+            if (!timestamp.isBefore(from) && timestamp.isBefore(to)) found.add(entry);
+        }
+        return found;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    // Stream bytes left for entry envelopes (each adds a header and a 16-byte tag to its text)
+    public long freeBytes() {
+        return LsbEngine.capacityBytes(image) - end();
+    }
+
+    // Decrypts one entry, reading only its own pixels
+    public String read(Entry entry) throws Exception {
+        byte[] blob = new byte[entry.length];
+        LsbEngine.extract(image, entry.offset, blob, 0, blob.length);
+        Envelope envelope = Envelope.parseHeader(blob);
+        if (envelope == null || envelope.totalLength() != blob.length || envelope.isJournalIndex()
+                || envelope.getPlacement() != null || envelope.getMode() != null
+                || !Arrays.equals(envelope.getEntrySalt(), entry.entrySalt)) {
+            throw new IllegalArgumentException("Journal entry #" + entry.id + " is damaged");
+        }
+        envelope.setBody(Arrays.copyOfRange(blob, envelope.headerLength(), blob.length));
+        return AESCrypto.decrypt(envelope, session);
+    }
+
+    /**
+     * Seals 'text' as a new entry after the last one and rewrites the index; no other entry is
+     * touched. Returns the rows that changed.
+     */
+    public DirtyRows append(String text, Instant timestamp) throws Exception {
+        if (text == null || text.isEmpty()) throw new IllegalArgumentException("Entry text must not be empty");
+        if (entries.size() == slots) {
+            throw new IllegalArgumentException("Journal is full: all " + slots + " entries are used. Start a new image.");
+        }
+        Envelope envelope = AESCrypto.encryptEnvelope(text, session, Envelope.BodyLayout.SEQUENTIAL);
+        long offset = end();
+        if (offset + envelope.totalLength() > LsbEngine.capacityBytes(image)) {
+            throw new IllegalArgumentException("Text is too long for the space left in this journal image.");
+        }
+        if (LsbEngine.packedPixels(image) == null) image = LsbEngine.copyToIntRgb(image);
+
+        // Entry first: until the index names it, it is just unused stream bytes
+        DirtyRows dirty = new DirtyRows(image.getWidth(), image.getHeight());
+        byte[] header = envelope.header();
+        write(offset, header, header.length, dirty);
+        write(offset + header.length, envelope.getBody(), envelope.getBodyLength(), dirty);
+
+        int id = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).id + 1;
+        entries.add(new Entry(id, timestamp.toEpochMilli(), offset, envelope.totalLength(), envelope.getEntrySalt()));
+        try {
+            writeIndex(AESCrypto.engine().encryptJournalIndex(table(), session, slots), dirty);
+        } catch (Exception e) {
+            entries.remove(entries.size() - 1);
+            throw e;
+        }
+        return dirty;
+    }
+
+    // Closes the master key if the journal derived it from a password
+    @Override
+    public void close() {
+        if (ownsSession) session.close();
+    }
+
+    // Stream byte after the last entry
+    private long end() {
+        if (entries.isEmpty()) return indexLength;
+        Entry last = entries.get(entries.size() - 1);
+        return last.offset + last.length;
+    }
+
+    private byte[] table() {
+        ByteBuffer buffer = ByteBuffer.allocate(tableBytes(slots));
+        buffer.putShort((short) entries.size());
+        for (Entry entry : entries) {
+            buffer.putInt(entry.id).putLong(entry.timestamp).putLong(entry.offset).putInt(entry.length).put(entry.entrySalt);
+        }
+        return buffer.array();
+    }
+
+    private void writeIndex(Envelope index, DirtyRows dirty) {
+        if (index.totalLength() != indexLength) throw new IllegalStateException("Journal index changed length");
+        byte[] header = index.header();
+        write(0, header, header.length, dirty);
+        write(header.length, index.getBody(), index.getBodyLength(), dirty);
+    }
+
+    private void write(long at, byte[] data, int len, DirtyRows dirty) {
+        LsbEngine.embed(image, at, data, 0, len);
+        if (dirty == null) return;
+        long first = at * 8 / LsbEngine.BITS_PER_PIXEL;
+        dirty.markPixels(first, LsbEngine.pixelsFor(at + len) - first);
+    }
+
+    private static int tableBytes(int slots) {
+        return 2 + slots * SLOT_BYTES;
+    }
+}
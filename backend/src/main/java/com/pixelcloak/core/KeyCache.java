@@ -0,0 +1,149 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded session cache of derived keys, so repeated operations with the same password and
+ * salt skip the KDF. Opt in with {@link AESCrypto#enableKeyCache(KeyCache)}.
+ *
+ * Entries are keyed by an HMAC of the password under a random per-cache secret (the password
+ * itself is never stored), plus the salt, KDF and its cost parameters. They are evicted least-recently-used
+ * once the cache is full and after a fixed time to live; key bytes are zeroed whenever an
+ * entry leaves the cache, including on {@link #clear()}.
+ */
+public class KeyCache {
+
+    // Computes a key on a miss
+    public interface Loader {
+        byte[] derive() throws Exception;
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final byte[] secret = new byte[32];
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class Entry {
+        final byte[] key;
+        final long created;
+
+        Entry(byte[] key, long created) {
+            this.key = key;
+            this.created = created;
+        }
+    }
+
+    public KeyCache(int maxEntries, Duration ttl) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttl.toNanos();
+        new SecureRandom().nextBytes(secret);
+    }
+
+    // Returns a copy of the cached key for (password, salt, kdf), deriving and caching it on a miss
+    public byte[] get(char[] password, byte[] salt, KeyDerivation kdf, Loader loader) throws Exception {
+        String id = entryId(password, salt, kdf);
+
+        synchronized (this) {
+            evictExpired();
+            Entry entry = entries.get(id);
+            if (entry != null) {
+                hits++;
+                return entry.key.clone();
+            }
+            misses++;
+        }
+
+        // Derive outside the lock: a slow KDF must not block hits for other entries
+        byte[] key = loader.derive();
+
+        synchronized (this) {
+            Entry previous = entries.put(id, new Entry(key.clone(), System.nanoTime()));
+            if (previous != null) Arrays.fill(previous.key, (byte) 0);
+            while (entries.size() > maxEntries) {
+                Iterator<Entry> eldest = entries.values().iterator();
+                Arrays.fill(eldest.next().key, (byte) 0);
+                eldest.remove();
+                evictions++;
+            }
+        }
+        return key;
+    }
+
+    // Zeroes and drops every cached key (logout)
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            Arrays.fill(entry.key, (byte) 0);
+        }
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyCache[size=" + entries.size() + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (now - entry.created >= ttlNanos) {
+                Arrays.fill(entry.key, (byte) 0);
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private String entryId(char[] password, byte[] salt, KeyDerivation kdf) throws Exception {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] passwordBytes = new byte[encoded.remaining()];
+        encoded.get(passwordBytes);
+        // The encoder's backing array still holds the password; wipe it along with our copy
+        Arrays.fill(encoded.array(), (byte) 0);
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(passwordBytes);
+            Base64.Encoder base64 = Base64.getEncoder();
+            return base64.encodeToString(mac.doFinal()) + ':' + base64.encodeToString(salt)
+                    + ':' + kdf.id() + ':' + base64.encodeToString(kdf.encodeParams());
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.pixelcloak.core;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Password-based key derivation with its cost parameters.
+ *
+ * The id and {@link #encodeParams()} are written into the envelope's KDF section, so a reveal
+ * always uses the cost the entry was saved with, whatever the current default is. Pick the
+ * default with {@link AESCrypto#setKeyDerivation(KeyDerivation)}, typically from
+ * {@link #parse(String)} so each deployment can choose its own algorithm and cost.
+ */
+public interface KeyDerivation {
+
+    int id();
+
+    // Cost parameters as stored in the envelope, in front of the salt
+    byte[] encodeParams();
+
+    byte[] derive(char[] password, byte[] salt, int length) throws Exception;
+
+    // Rebuilds a KDF from an envelope header, rejecting costs a forged header could use to stall a reveal
+    static KeyDerivation decode(int id, byte[] params) {
+        ByteBuffer buffer = ByteBuffer.wrap(params);
+        try {
+            switch (id) {
+                case Pbkdf2KeyDerivation.ID:
+                    return new Pbkdf2KeyDerivation(buffer.getInt());
+                case ScryptKeyDerivation.ID:
+                    return new ScryptKeyDerivation(buffer.get() & 0xFF, buffer.getInt(), buffer.getInt());
+                case Argon2idKeyDerivation.ID:
+                    return new Argon2idKeyDerivation(buffer.getInt(), buffer.getInt(), buffer.getInt());
+                default:
+                    throw new IllegalArgumentException("Unsupported key derivation in image");
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Invalid encrypted data format");
+        }
+    }
+
+    // Length of the cost parameters for a KDF id, or -1 if the id is unknown
+    static int paramsLength(int id) {
+        switch (id) {
+            case Pbkdf2KeyDerivation.ID:
+                return 4;
+            case ScryptKeyDerivation.ID:
+                return 9;
+            case Argon2idKeyDerivation.ID:
+                return 12;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Parses a deployment setting such as {@code pbkdf2:iterations=600000},
+     * {@code scrypt:logN=17,r=8,p=1} or {@code argon2id:m=65536,t=3,p=4}.
+     * {@code <name>:target=500ms} calibrates that algorithm for the current machine instead.
+     */
+    static KeyDerivation parse(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        String name = parts[0].toLowerCase();
+        Map<String, String> options = new HashMap<>();
+        if (parts.length > 1 && !parts[1].isBlank()) {
+            for (String option : parts[1].split(",")) {
+                String[] kv = option.split("=", 2);
+                if (kv.length != 2) throw new IllegalArgumentException("Invalid KDF option: " + option);
+                options.put(kv[0].trim(), kv[1].trim());
+            }
+        }
+
+        Duration target = options.containsKey("target") ? parseDuration(options.get("target")) : null;
+        switch (name) {
+            case "pbkdf2":
+                return target != null ? Pbkdf2KeyDerivation.calibrate(target)
+                        : new Pbkdf2KeyDerivation(intOption(options, "iterations", AESCrypto.ITERATION_COUNT));
+            case "scrypt":
+                return target != null ? ScryptKeyDerivation.calibrate(target, ScryptKeyDerivation.DEFAULT_MAX_MEMORY)
+                        : new ScryptKeyDerivation(intOption(options, "logN", 17), intOption(options, "r", 8), intOption(options, "p", 1));
+            case "argon2id":
+                return target != null ? Argon2idKeyDerivation.calibrate(target, Argon2idKeyDerivation.DEFAULT_MAX_MEMORY_KIB)
+                        : new Argon2idKeyDerivation(intOption(options, "m", 64 * 1024), intOption(options, "t", 3), intOption(options, "p", 1));
+            default:
+                throw new IllegalArgumentException("Unknown key derivation: " + name);
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        String value = options.get(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static Duration parseDuration(String value) {
+        String millis = value.endsWith("ms") ? value.substring(0, value.length() - 2) : value;
+        return Duration.ofMillis(Long.parseLong(millis));
+    }
+
+    // UTF-8 bytes of the password, the encoding PBKDF2WithHmacSHA256 uses too. Caller zeroes the result.
+    static byte[] passwordBytes(char[] password) {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] bytes = Arrays.copyOfRange(encoded.array(), encoded.position(), encoded.limit());
+        Arrays.fill(encoded.array(), (byte) 0);
+        return bytes;
+    }
+}
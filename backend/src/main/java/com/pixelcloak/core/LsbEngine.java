@@ -0,0 +1,354 @@
+package com.pixelcloak.core;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Raster-direct LSB engine behind {@link Steganography}.
+ *
+ * The bit layout is the original PixelCloak one: the data is read MSB-first and written
+ * into the LSB of Red, then Green, then Blue of each pixel in row-major order. Three data
+ * bytes (24 bits) therefore land on exactly eight pixels, which is the unit the fast paths
+ * work in. Positions are expressed as byte offsets into that bit stream.
+ */
+public final class LsbEngine {
+
+    public static final int BITS_PER_PIXEL = 3;
+
+    // 3 data bytes <-> 8 pixels
+    private static final int GROUP_BYTES = 3;
+    private static final int GROUP_PIXELS = 8;
+
+    // Pixels converted per pass when the image is not backed by a packed int array
+    private static final int CHUNK_PIXELS = 8 * 1024;
+
+    // Rough stripe size for parallel runs, in pixels; stripes are whole rows snapped to a group
+    private static final long STRIPE_PIXELS = 256 * 1024;
+
+    // Below this many payload bytes a single thread wins over fork-join overhead
+    private static volatile long parallelThreshold = 1 << 20;
+
+    // Bits of a packed pixel left alone by an embed. The top byte is kept: it is always zero in a
+    // TYPE_INT_RGB copy, and it is the alpha an EmbeddingMode header must not disturb in an ARGB one.
+    private static final int KEEP_MASK = 0xFFFEFEFE;
+
+    // Spreads 3 data bits (R, G, B order) onto the channel LSBs
+    private static final int[] SPREAD = new int[8];
+
+    static {
+        for (int i = 0; i < 8; i++) {
+            SPREAD[i] = ((i & 4) << 14) | ((i & 2) << 7) | (i & 1);
+        }
+    }
+
+    private LsbEngine() {
+    }
+
+    // Number of whole data bytes the image can carry
+    public static long capacityBytes(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * BITS_PER_PIXEL / 8;
+    }
+
+    public static long capacityBytes(PixelStore image) {
+        return image.pixelCount() * BITS_PER_PIXEL / 8;
+    }
+
+    // Number of pixels touched by the first 'bytes' bytes of the stream
+    public static long pixelsFor(long bytes) {
+        return (bytes * 8 + BITS_PER_PIXEL - 1) / BITS_PER_PIXEL;
+    }
+
+    // Returns an opaque TYPE_INT_RGB copy of the image with 'data' written from the start of the stream
+    public static BufferedImage embed(BufferedImage image, byte[] data) {
+        BufferedImage newImage = copyToIntRgb(image);
+        embed(newImage, 0, data, 0, data.length);
+        return newImage;
+    }
+
+    // Writes data[off, off+len) at stream byte 'bytePos' of an image created by copyToIntRgb
+    public static void embed(BufferedImage target, long bytePos, byte[] data, int off, int len) {
+        if (packedPixels(target) == null) {
+            throw new IllegalArgumentException("Target image must be a packed RGB copy");
+        }
+        embed(PixelStore.of(target), bytePos, data, off, len);
+    }
+
+    // Reads 'len' bytes starting at stream byte 'bytePos' into out[off, off+len)
+    public static void extract(BufferedImage image, long bytePos, byte[] out, int off, int len) {
+        extract(PixelStore.of(image), bytePos, out, off, len);
+    }
+
+    // Same on any pixel store: straight on a packed array, else a chunk of pixels at a time
+    public static void embed(PixelStore target, long bytePos, byte[] data, int off, int len) {
+        transfer(target, bytePos, data, off, len, true);
+    }
+
+    public static void extract(PixelStore image, long bytePos, byte[] out, int off, int len) {
+        transfer(image, bytePos, out, off, len, false);
+    }
+
+    // Payloads of at least this many bytes are embedded/extracted on the fork-join pool
+    public static void setParallelThreshold(long bytes) {
+        parallelThreshold = bytes;
+    }
+
+    public static long getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    private static void transfer(PixelStore image, long bytePos, byte[] data, int off, int len, boolean write) {
+        checkRange(image, bytePos, len);
+        if (len == 0) return;
+
+        int[] pixels = image.packedPixels();
+        if (len < parallelThreshold) {
+            transfer(image, pixels, bytePos, bytePos + len, data, off, write);
+            return;
+        }
+        runStriped(image.getWidth(), bytePos, len, (from, to) ->
+                transfer(image, pixels, from, to, data, off + (int) (from - bytePos), write));
+    }
+
+    private static void transfer(PixelStore image, int[] pixels, long from, long to, byte[] data, int off, boolean write) {
+        if (pixels == null) {
+            chunked(image, from, to, data, off, write);
+        } else if (write) {
+            embed(pixels, 0, from, data, off, (int) (to - from));
+        } else {
+            extract(pixels, 0, from, data, off, (int) (to - from));
+        }
+    }
+
+    // Not one packed array: a chunk of pixels at a time through a reusable buffer. Chunks start on a
+    // group boundary so every chunk covers whole bytes; an embed reads each chunk first to keep the other bits.
+    private static void chunked(PixelStore image, long from, long to, byte[] data, int off, boolean write) {
+        long firstPixel = from / GROUP_BYTES * GROUP_PIXELS;
+        long lastPixel = pixelsFor(to);
+        int[] chunk = new int[(int) Math.min(CHUNK_PIXELS, lastPixel - firstPixel)];
+
+        for (long p = firstPixel; p < lastPixel; p += CHUNK_PIXELS) {
+            int count = (int) Math.min(CHUNK_PIXELS, lastPixel - p);
+            image.read(p, chunk, 0, count);
+
+            long start = Math.max(from, p / GROUP_PIXELS * GROUP_BYTES);
+            long end = Math.min(to, (p + CHUNK_PIXELS) / GROUP_PIXELS * GROUP_BYTES);
+            // Chunk-relative positions keep the int-indexed cores valid past 2^31 pixels
+            long base = p / GROUP_PIXELS * GROUP_BYTES;
+            if (write) {
+                embed(chunk, 0, start - base, data, off + (int) (start - from), (int) (end - start));
+                image.write(p, chunk, 0, count);
+            } else {
+                extract(chunk, 0, start - base, data, off + (int) (start - from), (int) (end - start));
+            }
+        }
+    }
+
+    // --- Parallel stripes ---
+
+    private interface StripeBody {
+        void run(long fromByte, long toByte);
+    }
+
+    // Cuts [bytePos, bytePos+len) into stripes of whole image rows and runs them on the common pool.
+    // Every cut is snapped to a group boundary, so stripes never share a pixel and each one
+    // starts on a byte the serial path would also have started a group with.
+    private static void runStriped(int width, long bytePos, int len, StripeBody body) {
+        long end = bytePos + len;
+        long rowsPerStripe = Math.max(1, STRIPE_PIXELS / width);
+        long stripeBytes = Math.max(GROUP_BYTES, rowsPerStripe * width / GROUP_PIXELS * GROUP_BYTES);
+
+        List<ForkJoinTask<?>> stripes = new ArrayList<>();
+        long from = bytePos;
+        while (from < end) {
+            long to = Math.min(end, (from / stripeBytes + 1) * stripeBytes);
+            long stripeFrom = from;
+            stripes.add(ForkJoinTask.adapt(() -> body.run(stripeFrom, to)));
+            from = to;
+        }
+        ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(stripes)));
+    }
+
+    // Legacy-compatible copy: draws the source into a fresh opaque TYPE_INT_RGB image
+    public static BufferedImage copyToIntRgb(BufferedImage image) {
+        BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics g = newImage.getGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return newImage;
+    }
+
+    // Same for modes that write alpha: a TYPE_INT_ARGB copy with the source's alpha and colours unchanged
+    public static BufferedImage copyToIntArgb(BufferedImage image) {
+        int width = image.getWidth();
+        BufferedImage newImage = new BufferedImage(width, image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            newImage.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return newImage;
+    }
+
+    // --- Array cores. pixels[base + p] holds stream pixel p (base may be negative for chunks) ---
+
+    static void embed(int[] pixels, int base, long bytePos, byte[] src, int off, int len) {
+        int end = off + len;
+
+        // 1. Leading bytes that do not start on a group boundary
+        while (off < end && bytePos % GROUP_BYTES != 0) {
+            embedByte(pixels, base, bytePos++, src[off++]);
+        }
+
+        // 2. Whole groups: 24 bits into 8 pixels per pass
+        int p = base + (int) (bytePos / GROUP_BYTES * GROUP_PIXELS);
+        while (end - off >= GROUP_BYTES) {
+            int bits = ((src[off] & 0xFF) << 16) | ((src[off + 1] & 0xFF) << 8) | (src[off + 2] & 0xFF);
+            for (int shift = 21; shift >= 0; shift -= 3) {
+                pixels[p] = (pixels[p] & KEEP_MASK) | SPREAD[(bits >>> shift) & 7];
+                p++;
+            }
+            off += GROUP_BYTES;
+            bytePos += GROUP_BYTES;
+        }
+
+        // 3. Trailing bytes
+        while (off < end) {
+            embedByte(pixels, base, bytePos++, src[off++]);
+        }
+    }
+
+    static void extract(int[] pixels, int base, long bytePos, byte[] dst, int off, int len) {
+        int end = off + len;
+
+        while (off < end && bytePos % GROUP_BYTES != 0) {
+            dst[off++] = extractByte(pixels, base, bytePos++);
+        }
+
+        int p = base + (int) (bytePos / GROUP_BYTES * GROUP_PIXELS);
+        while (end - off >= GROUP_BYTES) {
+            int bits = 0;
+            for (int i = 0; i < GROUP_PIXELS; i++) {
+                int v = pixels[p++];
+                bits = (bits << 3) | ((v >> 14) & 4) | ((v >> 7) & 2) | (v & 1);
+            }
+            dst[off] = (byte) (bits >> 16);
+            dst[off + 1] = (byte) (bits >> 8);
+            dst[off + 2] = (byte) bits;
+            off += GROUP_BYTES;
+            bytePos += GROUP_BYTES;
+        }
+
+        while (off < end) {
+            dst[off++] = extractByte(pixels, base, bytePos++);
+        }
+    }
+
+    private static void embedByte(int[] pixels, int base, long bytePos, byte value) {
+        long bit = bytePos * 8;
+        for (int i = 7; i >= 0; i--, bit++) {
+            int index = base + (int) (bit / BITS_PER_PIXEL);
+            int shift = 16 - 8 * (int) (bit % BITS_PER_PIXEL);
+            pixels[index] = (pixels[index] & ~(1 << shift)) | (((value >> i) & 1) << shift);
+        }
+    }
+
+    private static byte extractByte(int[] pixels, int base, long bytePos) {
+        long bit = bytePos * 8;
+        int value = 0;
+        for (int i = 0; i < 8; i++, bit++) {
+            int index = base + (int) (bit / BITS_PER_PIXEL);
+            int shift = 16 - 8 * (int) (bit % BITS_PER_PIXEL);
+            value = (value << 1) | ((pixels[index] >> shift) & 1);
+        }
+        return (byte) value;
+    }
+
+    // --- Raster access ---
+
+    // Backing array of a TYPE_INT_RGB/TYPE_INT_ARGB image laid out as width*height packed pixels, else null
+    static int[] packedPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) return null;
+
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || !isUntranslated(raster)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        if (sm.getScanlineStride() != image.getWidth() || buffer.getOffset() != 0) return null;
+        return buffer.getData();
+    }
+
+    // Copies 'count' row-major pixels starting at linear index 'first' into dst as packed pixels,
+    // with alpha when the image has it
+    static void readPixels(BufferedImage image, int first, int count, int[] dst) {
+        readPixels(image, first, count, dst, 0);
+    }
+
+    static void readPixels(BufferedImage image, int first, int count, int[] dst, int off) {
+        int type = image.getType();
+        WritableRaster raster = image.getRaster();
+        int width = image.getWidth();
+
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && isUntranslated(raster)) {
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            int stride = sm.getPixelStride();
+            int[] bands = sm.getBandOffsets();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            if (sm.getScanlineStride() == width * stride && buffer.getOffset() == 0) {
+                byte[] data = buffer.getData();
+                // Band offsets are listed in R, G, B(, A) order whatever the byte order
+                int r = bands[0], g = bands[1], b = bands[2];
+                int i = first * stride;
+                if (bands.length > 3) {
+                    int a = bands[3];
+                    for (int k = off; k < off + count; k++, i += stride) {
+                        dst[k] = ((data[i + a] & 0xFF) << 24) | ((data[i + r] & 0xFF) << 16)
+                                | ((data[i + g] & 0xFF) << 8) | (data[i + b] & 0xFF);
+                    }
+                } else {
+                    for (int k = off; k < off + count; k++, i += stride) {
+                        dst[k] = ((data[i + r] & 0xFF) << 16) | ((data[i + g] & 0xFF) << 8) | (data[i + b] & 0xFF);
+                    }
+                }
+                return;
+            }
+        }
+
+        // Generic path: one getRGB call per (partial) row
+        int done = 0;
+        while (done < count) {
+            int index = first + done;
+            int y = index / width;
+            int x = index % width;
+            int n = Math.min(width - x, count - done);
+            image.getRGB(x, y, n, 1, dst, off + done, n);
+            done += n;
+        }
+    }
+
+    private static boolean isUntranslated(WritableRaster raster) {
+        return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+
+    private static void checkRange(PixelStore image, long bytePos, int len) {
+        if (bytePos < 0 || len < 0 || bytePos + len > capacityBytes(image)) {
+            throw new IllegalArgumentException("Data does not fit in this image.");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.pixelcloak.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A carrier whose pixels live in a memory-mapped temporary file instead of the heap, for images
+ * too large to decode into a BufferedImage (twice, as embedding works on a copy).
+ *
+ * Pixels are packed 0x00RRGGBB ints in row-major order behind the {@link PixelStore} interface,
+ * so embedding and extracting run the same code and give the same bits as on a BufferedImage. The store is filled from
+ * a PNG row by row and written back the same way; heap use stays at a few rows plus whatever
+ * tile buffers the caller works with. The file is deleted when the image is closed; the mapping
+ * itself is released once it is garbage collected.
+ */
+public final class MappedImage implements PixelStore, AutoCloseable {
+
+    // Largest mapping per band (a MappedByteBuffer is int-indexed), in whole rows
+    private static final long BAND_BYTES = 1L << 30;
+
+    private final int width;
+    private final int height;
+    private final int rowsPerBand;
+    private final FileChannel channel;
+    private final IntBuffer[] bands;
+
+    private MappedImage(int width, int height, FileChannel channel) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.channel = channel;
+        this.rowsPerBand = (int) Math.max(1, BAND_BYTES / 4 / width);
+
+        int count = (height + rowsPerBand - 1) / rowsPerBand;
+        this.bands = new IntBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long firstRow = (long) i * rowsPerBand;
+            long rows = Math.min(rowsPerBand, height - firstRow);
+            bands[i] = channel.map(FileChannel.MapMode.READ_WRITE, firstRow * width * 4, rows * width * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+        }
+    }
+
+    // A black image backed by a new temporary file in the default temp directory
+    public static MappedImage create(int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Image size must be positive");
+        Path file = Files.createTempFile("pixelcloak-", ".pixels");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            return new MappedImage(width, height, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a PNG straight into a mapped store. Transparent pixels are composited over black,
+     * as the BufferedImage path does when it copies the carrier to opaque RGB.
+     */
+    public static MappedImage readPng(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+             PngReader reader = PngReader.open(in)) {
+            if (reader == null) {
+                throw new IllegalArgumentException("Large images must be 8-bit RGB, RGBA or palette PNGs without interlacing or tRNS transparency.");
+            }
+
+            MappedImage image = create(reader.getWidth(), reader.getHeight());
+            try {
+                int[] row = new int[reader.getWidth()];
+                for (int y = 0; y < image.height; y++) {
+                    reader.readRow(row, 0);
+                    for (int x = 0; x < row.length; x++) row[x] = opaque(row[x]);
+                    image.write((long) y * image.width, row, 0, row.length);
+                }
+                return image;
+            } catch (IOException | RuntimeException e) {
+                image.close();
+                throw e;
+            }
+        }
+    }
+
+    // Encodes the pixels as an 8-bit RGB PNG, row by row
+    public void writePng(Path file) throws IOException {
+        writePng(file, PngWriter.Options.DEFAULT);
+    }
+
+    public void writePng(Path file, PngWriter.Options options) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+            writePng(out, options);
+        }
+    }
+
+    public void writePng(OutputStream out, PngWriter.Options options) throws IOException {
+        int[] row = new int[width];
+        try (PngWriter writer = new PngWriter(out, width, height, options)) {
+            for (int y = 0; y < height; y++) {
+                read((long) y * width, row, 0, width);
+                writer.writeRow(row, 0);
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public long pixelCount() {
+        return (long) width * height;
+    }
+
+    // Opaque: readPng composites transparency away
+    @Override
+    public boolean hasAlpha() {
+        return false;
+    }
+
+    // Copies 'count' row-major pixels starting at linear index 'first' into dst[off, off+count)
+    @Override
+    public void read(long first, int[] dst, int off, int count) {
+        checkRange(first, count);
+        while (count > 0) {
+            int band = (int) (first / width / rowsPerBand);
+            int at = (int) (first - (long) band * rowsPerBand * width);
+            int n = Math.min(count, bands[band].limit() - at);
+            // Absolute bulk access: safe for threads working on disjoint ranges
+            bands[band].get(at, dst, off, n);
+            first += n;
+            off += n;
+            count -= n;
+        }
+    }
+
+    // Stores src[off, off+count) as the pixels from linear index 'first' on
+    @Override
+    public void write(long first, int[] src, int off, int count) {
+        checkRange(first, count);
+        while (count > 0) {
+            int band = (int) (first / width / rowsPerBand);
+            int at = (int) (first - (long) band * rowsPerBand * width);
+            int n = Math.min(count, bands[band].limit() - at);
+            bands[band].put(at, src, off, n);
+            first += n;
+            off += n;
+            count -= n;
+        }
+    }
+
+    // Single pixels, for layouts that do not visit the image in row order
+    @Override
+    public int get(long index) {
+        checkRange(index, 1);
+        int band = (int) (index / width / rowsPerBand);
+        return bands[band].get((int) (index - (long) band * rowsPerBand * width));
+    }
+
+    @Override
+    public void set(long index, int pixel) {
+        checkRange(index, 1);
+        int band = (int) (index / width / rowsPerBand);
+        bands[band].put((int) (index - (long) band * rowsPerBand * width), pixel);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void checkRange(long first, int count) {
+        if (first < 0 || count < 0 || first + count > pixelCount()) {
+            throw new IndexOutOfBoundsException("Pixels " + first + ".." + (first + count) + " are outside the image");
+        }
+    }
+
+    // Alpha over black, rounded like the 8-bit blend loops
+    private static int opaque(int argb) {
+        int a = argb >>> 24;
+        if (a == 0xFF) return argb & 0xFFFFFF;
+        int r = ((argb >> 16) & 0xFF) * a + 127;
+        int g = ((argb >> 8) & 0xFF) * a + 127;
+        int b = (argb & 0xFF) * a + 127;
+        return ((r / 255) << 16) | ((g / 255) << 8) | (b / 255);
+    }
+}
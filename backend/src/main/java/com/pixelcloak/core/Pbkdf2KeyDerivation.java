@@ -0,0 +1,126 @@
+package com.pixelcloak.core;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+
+/**
+ * PBKDF2-HMAC-SHA256, the original PixelCloak KDF (envelope KDF id 1).
+ */
+public class Pbkdf2KeyDerivation implements KeyDerivation {
+
+    public static final int ID = 1;
+
+    // Accepted range; the upper bound keeps a forged header from stalling a reveal
+    static final int MIN_ITERATIONS = 1;
+    static final int MAX_ITERATIONS = 10_000_000;
+
+    // Calibration never goes below this, however slow the machine
+    static final int CALIBRATION_FLOOR = 100_000;
+
+    // Provider lookup is not free and SecretKeyFactory is not thread-safe: one per thread
+    private static final ThreadLocal<SecretKeyFactory> FACTORIES = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        }
+    });
+
+    private final int iterations;
+
+    public Pbkdf2KeyDerivation(int iterations) {
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("Invalid PBKDF2 iteration count");
+        }
+        this.iterations = iterations;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encodeParams() {
+        return ByteBuffer.allocate(4).putInt(iterations).array();
+    }
+
+    @Override
+    public byte[] derive(char[] password, byte[] salt, int length) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+        try {
+            return FACTORIES.get().generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // Iteration count that takes about 'target' here, never below CALIBRATION_FLOOR
+    public static Pbkdf2KeyDerivation calibrate(Duration target) {
+        int probe = 50_000;
+        char[] password = "calibration".toCharArray();
+        byte[] salt = new byte[AESCrypto.SALT_LENGTH];
+        try {
+            Pbkdf2KeyDerivation kdf = new Pbkdf2KeyDerivation(probe);
+            kdf.derive(password, salt, 32); // warm-up
+            long start = System.nanoTime();
+            kdf.derive(password, salt, 32);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            long iterations = probe * target.toNanos() / elapsed;
+            return new Pbkdf2KeyDerivation((int) Math.max(CALIBRATION_FLOOR, Math.min(MAX_ITERATIONS, iterations)));
+        } catch (Exception e) {
+            throw new IllegalStateException("PBKDF2 calibration failed", e);
+        }
+    }
+
+    // PBKDF2-HMAC-SHA256 over raw bytes, used inside scrypt (which only ever needs one iteration)
+    static byte[] hmacSha256(byte[] password, byte[] salt, int iterations, int length) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        // HMAC pads its key with zeros, so an empty password is the same as a single zero byte
+        mac.init(new SecretKeySpec(password.length == 0 ? new byte[1] : password, "HmacSHA256"));
+
+        byte[] out = new byte[length];
+        byte[] u = new byte[32];
+        byte[] t = new byte[32];
+        for (int block = 1, done = 0; done < length; block++) {
+            mac.update(salt);
+            mac.update(new byte[]{(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            mac.doFinal(u, 0);
+            System.arraycopy(u, 0, t, 0, 32);
+            for (int i = 1; i < iterations; i++) {
+                mac.update(u);
+                mac.doFinal(u, 0);
+                for (int k = 0; k < 32; k++) t[k] ^= u[k];
+            }
+            int n = Math.min(32, length - done);
+            System.arraycopy(t, 0, out, done, n);
+            done += n;
+        }
+        return out;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Pbkdf2KeyDerivation && ((Pbkdf2KeyDerivation) o).iterations == iterations;
+    }
+
+    @Override
+    public int hashCode() {
+        return iterations;
+    }
+
+    @Override
+    public String toString() {
+        return "pbkdf2:iterations=" + iterations;
+    }
+}
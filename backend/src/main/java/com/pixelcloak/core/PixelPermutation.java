@@ -0,0 +1,84 @@
+package com.pixelcloak.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Key-seeded bijection over the pixel indexes [0, size), used by a scattered {@link EmbeddingMode}
+ * to decide which carrier pixel holds body pixel i. Nothing is materialised: {@link #map(long)}
+ * computes one index in O(1), so any stripe of the body can be placed independently and in
+ * parallel, and a 50 MP carrier costs no more memory than a 50 px one.
+ *
+ * The permutation is a balanced Feistel network over the smallest even-bit domain 2^(2h) holding
+ * size, with a SplitMix64-finalised round function keyed from the seed. Indexes that land outside
+ * [0, size) are walked through the network again until they fall inside (cycle walking), which
+ * keeps it a bijection on [0, size). The domain is less than 4x size, so that takes under four
+ * rounds of the network on average.
+ */
+public final class PixelPermutation {
+
+    // Luby-Rackoff: four rounds already give a strong pseudo-random permutation; two more are cheap
+    static final int ROUNDS = 6;
+
+    private static final byte[] SEED_INFO = "PixelCloak scatter v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final long size;
+    private final int halfBits;
+    private final long halfMask;
+    private final long[] roundKeys = new long[ROUNDS];
+
+    public PixelPermutation(long seed, long size) {
+        if (size < 0) throw new IllegalArgumentException("Size must not be negative");
+        this.size = size;
+        int bits = size <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(size - 1);
+        this.halfBits = Math.max(1, (bits + 1) / 2);
+        this.halfMask = (1L << halfBits) - 1;
+
+        long state = seed;
+        for (int r = 0; r < ROUNDS; r++) {
+            state += 0x9E3779B97F4A7C15L;
+            roundKeys[r] = mix(state);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Position of index i in the permuted order; a bijection on [0, size)
+    public long map(long i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Index " + i + " is outside 0.." + size);
+        long x = i;
+        do {
+            x = encrypt(x);
+        } while (x >= size);
+        return x;
+    }
+
+    private long encrypt(long x) {
+        long left = x >>> halfBits;
+        long right = x & halfMask;
+        for (long key : roundKeys) {
+            long t = right;
+            right = left ^ (mix(right ^ key) & halfMask);
+            left = t;
+        }
+        return (left << halfBits) | right;
+    }
+
+    // SplitMix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Permutation seed for an AES key, independent of the texture placement seed
+    static long seed(byte[] key) throws Exception {
+        byte[] okm = Hkdf.derive(key, null, SEED_INFO, 8);
+        long seed = 0;
+        for (byte b : okm) seed = (seed << 8) | (b & 0xFF);
+        Arrays.fill(okm, (byte) 0);
+        return seed;
+    }
+}
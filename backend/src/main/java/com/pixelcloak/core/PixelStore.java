@@ -0,0 +1,44 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The pixels of a carrier as packed 0xAARRGGBB ints in row-major order, read and written a run
+ * at a time. {@link LsbEngine}, {@link EmbeddingMode}, {@link TexturePlacement} and
+ * {@link TextureMap} work on this, so a decoded image ({@link #of(BufferedImage)}) and a
+ * {@link MappedImage} go through the same code.
+ */
+public interface PixelStore {
+
+    int getWidth();
+
+    int getHeight();
+
+    default long pixelCount() {
+        return (long) getWidth() * getHeight();
+    }
+
+    // Whether the alpha byte is a channel of this carrier; without one it carries nothing and is never changed
+    boolean hasAlpha();
+
+    // Copies 'count' pixels starting at linear index 'first' into dst[off, off+count)
+    void read(long first, int[] dst, int off, int count);
+
+    // Stores src[off, off+count) as the pixels from linear index 'first' on
+    void write(long first, int[] src, int off, int count);
+
+    // Single pixels, for layouts that do not visit the image in row order
+    int get(long index);
+
+    void set(long index, int pixel);
+
+    // The pixels as one array indexed like 'first' when they are held that way, else null
+    default int[] packedPixels() {
+        return null;
+    }
+
+    // View of a decoded image; only a packed copy (LsbEngine.copyToIntRgb or copyToIntArgb) can be written
+    static PixelStore of(BufferedImage image) {
+        return new BufferedImagePixels(image);
+    }
+}
@@ -0,0 +1,193 @@
+package com.pixelcloak.core;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads the PixelCloak headers of a PNG without decoding the image: scanlines are decoded with a
+ * {@link PngReader} only until the pixels that hold the headers are known. For a typical carrier
+ * that is the first row or two, i.e. a few kilobytes of the file.
+ *
+ * Only the PNGs PngReader handles are probed here, which covers every image PixelCloak writes.
+ * Anything else reports {@link Result#isSupported()} false, and the caller falls back to a full
+ * decode.
+ */
+public final class PngProbe {
+
+    // Payload bytes after the legacy length prefix handed back for a plausibility check
+    private static final int LEGACY_PREFIX_BYTES = 64;
+
+    // IHDR sizes come from untrusted files: a probe never allocates rows from more than this, and
+    // wider or larger images are left to the caller's bounded full decode as UNSUPPORTED
+    static final int MAX_ROW_BYTES = 256 * 1024;
+    static final long MAX_PIXELS = 512L * 1024 * 1024;
+
+    private static final Result UNSUPPORTED = new Result(false, 0, 0, null, -1, null, 0);
+
+    private PngProbe() {
+    }
+
+    public static Result probe(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return probe(in);
+        }
+    }
+
+    // Reads only as much of 'in' as the headers need; the stream is left part-way through
+    public static Result probe(InputStream in) throws IOException {
+        CountingInput counted = new CountingInput(in);
+        PngReader reader = PngReader.open(new BufferedInputStream(counted, 8 * 1024), MAX_ROW_BYTES, MAX_PIXELS);
+        if (reader == null) return UNSUPPORTED;
+
+        try (reader) {
+            Prefix lines = new Prefix(reader);
+            int width = reader.getWidth(), height = reader.getHeight();
+            long pixels = (long) width * height;
+            long capacity = EmbeddingMode.DEFAULT.capacityBytes(pixels);
+
+            // Same checks as Steganography.readEnvelopeHeader, on the decoded prefix only
+            Envelope envelope = null;
+            if (capacity >= Envelope.PREFIX_BYTES) {
+                byte[] prefix = lines.bytes(0, Envelope.PREFIX_BYTES);
+                int headerLength = Envelope.announcedHeaderLength(prefix);
+                if (headerLength >= 0 && headerLength <= capacity) {
+                    envelope = Envelope.parseHeader(lines.bytes(0, headerLength));
+                    if (envelope != null && envelope.getBodyLength() > Steganography.bodyCapacityBytes(pixels, envelope)) {
+                        envelope = null;
+                    }
+                }
+            }
+
+            // And the legacy length prefix, as Steganography.readLength
+            int legacyLength = -1;
+            byte[] legacyPrefix = null;
+            if (envelope == null && capacity >= Steganography.HEADER_BYTES) {
+                byte[] b = lines.bytes(0, Steganography.HEADER_BYTES);
+                int len = ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+                if (len >= 0 && len <= capacity - Steganography.HEADER_BYTES) {
+                    legacyLength = len;
+                    legacyPrefix = lines.bytes(Steganography.HEADER_BYTES, Math.min(len, LEGACY_PREFIX_BYTES));
+                }
+            }
+            return new Result(true, width, height, envelope, legacyLength, legacyPrefix, counted.count);
+        } catch (PngReader.CorruptException e) {
+            // Image data ended before the pixels we need; let the full decoder report it
+            return UNSUPPORTED;
+        }
+    }
+
+    /** What the first pixels of a PNG say. */
+    public static final class Result {
+        private final boolean supported;
+        private final int width;
+        private final int height;
+        private final Envelope envelope;
+        private final int legacyLength;
+        private final byte[] legacyPrefix;
+        private final long bytesRead;
+
+        private Result(boolean supported, int width, int height, Envelope envelope, int legacyLength,
+                       byte[] legacyPrefix, long bytesRead) {
+            this.supported = supported;
+            this.width = width;
+            this.height = height;
+            this.envelope = envelope;
+            this.legacyLength = legacyLength;
+            this.legacyPrefix = legacyPrefix;
+            this.bytesRead = bytesRead;
+        }
+
+        // False if this is not a PNG we can probe; nothing else in the result is meaningful then
+        public boolean isSupported() {
+            return supported;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        // Envelope header (no body), or null if the image carries none
+        public Envelope getEnvelope() {
+            return envelope;
+        }
+
+        // Pre-envelope length prefix when it describes a payload that fits, else -1
+        public int getLegacyLength() {
+            return legacyLength;
+        }
+
+        // First bytes (up to 64) of that legacy payload, else null
+        public byte[] getLegacyPrefix() {
+            return legacyPrefix == null ? null : legacyPrefix.clone();
+        }
+
+        // File bytes consumed by the probe
+        public long getBytesRead() {
+            return bytesRead;
+        }
+    }
+
+    // The first pixels of the image, decoded a row at a time as far as asked for
+    private static final class Prefix {
+        final PngReader reader;
+        int[] pixels = new int[0];
+
+        Prefix(PngReader reader) {
+            this.reader = reader;
+        }
+
+        // Bytes [pos, pos+len) of the LSB stream
+        byte[] bytes(long pos, int len) throws IOException {
+            long needed = LsbEngine.pixelsFor(pos + len);
+            int width = reader.getWidth();
+            if (needed > pixels.length) {
+                long rows = (needed + width - 1) / width;
+                pixels = Arrays.copyOf(pixels, (int) (rows * width));
+            }
+            while ((long) reader.rowsRead() * width < needed) {
+                reader.readRow(pixels, reader.rowsRead() * width);
+            }
+            byte[] out = new byte[len];
+            LsbEngine.extract(pixels, 0, pos, out, 0, len);
+            return out;
+        }
+    }
+
+    private static final class CountingInput extends FilterInputStream {
+        long count;
+
+        CountingInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.pixelcloak.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming PNG decoder: IDAT data is inflated and unfiltered one scanline at a time, so callers
+ * only pay for the rows they read and never hold more than two rows of samples.
+ *
+ * Handles the PNGs whose samples ImageIO reports unchanged: 8-bit RGB, RGBA and palette images,
+ * non-interlaced and without an ICC profile or tRNS chunk. Rows come out as packed 0xAARRGGBB
+ * pixels (alpha is 0xFF for RGB and palette images).
+ */
+final class PngReader implements AutoCloseable {
+
+    /** The image data ends early or does not inflate. */
+    static final class CorruptException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptException(String message) {
+            super(message);
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_RGBA = 6;
+
+    // Widest row of samples open() accepts by default; wider IHDRs are treated as unsupported
+    static final int MAX_ROW_BYTES = 64 * 1024 * 1024;
+
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private final int width;
+    private final int height;
+    private final int bpp;
+    private final int[] palette;
+
+    // Raw row being inflated (filter byte + samples) and the previous, unfiltered row
+    private byte[] row;
+    private byte[] previous;
+    private int filled;
+    private int rows;
+
+    private int chunkLeft;
+    private final byte[] chunk = new byte[8 * 1024];
+
+    private PngReader(DataInputStream in, int width, int height, int bpp, int[] palette, int idatLength) {
+        this.in = in;
+        this.width = width;
+        this.height = height;
+        this.bpp = bpp;
+        this.palette = palette;
+        this.row = new byte[1 + width * bpp];
+        this.previous = new byte[row.length];
+        this.chunkLeft = idatLength;
+    }
+
+    // Reads the chunks up to the first IDAT; null if this is not a PNG we decode
+    static PngReader open(DataInputStream in) throws IOException {
+        return open(in, MAX_ROW_BYTES, Long.MAX_VALUE);
+    }
+
+    /**
+     * As open(in), and also null when the IHDR announces rows over 'maxRowBytes' samples or more than
+     * 'maxPixels' pixels: the size comes from the file, and the two row buffers are allocated from it.
+     */
+    static PngReader open(DataInputStream in, int maxRowBytes, long maxPixels) throws IOException {
+        byte[] signature = new byte[SIGNATURE.length];
+        if (in.readNBytes(signature, 0, signature.length) != signature.length
+                || !Arrays.equals(signature, SIGNATURE)) {
+            return null;
+        }
+
+        int width = 0, height = 0, bpp = 0;
+        int[] palette = null;
+        boolean colorMapped = false;
+        try {
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (length < 0) return null;
+
+                if (type == chunkType("IHDR")) {
+                    if (length != 13) return null;
+                    width = in.readInt();
+                    height = in.readInt();
+                    int depth = in.readUnsignedByte();
+                    int color = in.readUnsignedByte();
+                    in.skipNBytes(2);
+                    int interlace = in.readUnsignedByte();
+                    if (width <= 0 || height <= 0 || depth != 8 || interlace != 0) return null;
+                    if (color == COLOR_RGB) bpp = 3;
+                    else if (color == COLOR_RGBA) bpp = 4;
+                    else if (color == COLOR_PALETTE) bpp = 1;
+                    else return null;
+                    colorMapped = color == COLOR_PALETTE;
+                    if ((long) width * bpp > maxRowBytes || (long) width * height > maxPixels) return null;
+                    in.skipNBytes(4);
+                } else if (type == chunkType("PLTE")) {
+                    palette = new int[256];
+                    Arrays.fill(palette, 0xFF000000);
+                    for (int i = 0; i < Math.min(256, length / 3); i++) {
+                        palette[i] = 0xFF000000 | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                    }
+                    in.skipNBytes(length - Math.min(256, length / 3) * 3 + 4L);
+                } else if (type == chunkType("iCCP")) {
+                    // ImageIO may convert through the profile; the raw samples would not match
+                    return null;
+                } else if (type == chunkType("tRNS")) {
+                    // ImageIO gives these pixels alpha, which the opaque copy composites away
+                    return null;
+                } else if (type == chunkType("IDAT")) {
+                    if (bpp == 0 || (colorMapped && palette == null)) return null;
+                    return new PngReader(in, width, height, bpp, colorMapped ? palette : null, length);
+                } else if (type == chunkType("IEND")) {
+                    return null;
+                } else {
+                    in.skipNBytes((long) length + 4);
+                }
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    static PngReader open(InputStream in) throws IOException {
+        return open(in, MAX_ROW_BYTES, Long.MAX_VALUE);
+    }
+
+    static PngReader open(InputStream in, int maxRowBytes, long maxPixels) throws IOException {
+        return open(in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in), maxRowBytes, maxPixels);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    // Rows decoded so far
+    int rowsRead() {
+        return rows;
+    }
+
+    // Decodes the next row into dst[off, off+width)
+    void readRow(int[] dst, int off) throws IOException {
+        if (rows == height) throw new CorruptException("No rows left in this PNG");
+        try {
+            while (filled < row.length) {
+                int n = inflater.inflate(row, filled, row.length - filled);
+                filled += n;
+                if (n > 0) continue;
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new CorruptException("PNG image data ends early");
+                }
+                if (inflater.needsInput()) feed();
+            }
+        } catch (DataFormatException e) {
+            throw new CorruptException("Corrupt PNG image data: " + e.getMessage());
+        }
+        filled = 0;
+        unfilter();
+        byte[] t = previous;
+        previous = row;
+        row = t;
+        rows++;
+        unpack(previous, dst, off);
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+
+    // Next piece of IDAT data; consecutive IDAT chunks form one zlib stream
+    private void feed() throws IOException {
+        try {
+            while (chunkLeft == 0) {
+                in.skipNBytes(4);
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type != chunkType("IDAT") || length < 0) throw new CorruptException("PNG image data ends early");
+                chunkLeft = length;
+            }
+            int n = in.read(chunk, 0, Math.min(chunk.length, chunkLeft));
+            if (n < 0) throw new CorruptException("PNG image data ends early");
+            chunkLeft -= n;
+            inflater.setInput(chunk, 0, n);
+        } catch (EOFException e) {
+            throw new CorruptException("PNG image data ends early");
+        }
+    }
+
+    private void unfilter() throws CorruptException {
+        int filter = row[0];
+        boolean first = rows == 0;
+        for (int i = 1; i < row.length; i++) {
+            int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+            int b = first ? 0 : previous[i] & 0xFF;
+            int c = i > bpp && !first ? previous[i - bpp] & 0xFF : 0;
+            int x = row[i] & 0xFF;
+            switch (filter) {
+                case 0: break;
+                case 1: x += a; break;
+                case 2: x += b; break;
+                case 3: x += (a + b) >>> 1; break;
+                case 4: x += paeth(a, b, c); break;
+                default: throw new CorruptException("Unknown PNG filter type " + filter);
+            }
+            row[i] = (byte) x;
+        }
+    }
+
+    private void unpack(byte[] samples, int[] dst, int off) {
+        for (int x = 0, i = 1; x < width; x++, i += bpp) {
+            int value;
+            if (palette != null) {
+                value = palette[samples[i] & 0xFF];
+            } else {
+                value = ((samples[i] & 0xFF) << 16) | ((samples[i + 1] & 0xFF) << 8) | (samples[i + 2] & 0xFF);
+                value |= bpp == 4 ? (samples[i + 3] & 0xFF) << 24 : 0xFF000000;
+            }
+            dst[off + x] = value;
+        }
+    }
+
+    static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    static int chunkType(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+}
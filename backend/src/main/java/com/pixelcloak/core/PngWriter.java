@@ -0,0 +1,510 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder for stego output. It writes 8-bit RGB, or RGBA for carriers with alpha, so every
+ * channel LSB reaches the file exactly as embedded: no palette reduction, no colour conversion.
+ *
+ * Rows are written one at a time and collected into strips of about 1 MiB of samples. Each strip
+ * is filtered and deflated on its own, pigz-style: a raw deflate stream ending in a sync flush (the
+ * last one is finished instead), so the strips concatenate into one valid zlib stream. The
+ * Adler-32 checksums of the strips are combined in order. With more than one thread, up to
+ * 'threads' strips are compressed at once on the common pool, and finished strips are written
+ * out in order. Strips do not share a deflate dictionary; at this strip length that only costs
+ * the first few matches of each strip. Heap use stays at a few strips, so {@link MappedImage} streams through the
+ * same writer. The same independence lets {@link Encoded} keep an image's strips and recompress only
+ * those with changed rows.
+ */
+public final class PngWriter implements AutoCloseable {
+
+    /** Per-row PNG filter; ADAPTIVE picks the smallest sum of absolute differences, as ImageIO does. */
+    public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+    /** Deflate level, filter and parallelism for one encode. */
+    public static final class Options {
+
+        public static final Options DEFAULT =
+                new Options(DEFAULT_LEVEL, Filter.ADAPTIVE, Runtime.getRuntime().availableProcessors());
+
+        private final int level;
+        private final Filter filter;
+        private final int threads;
+
+        // level: 0 (stored) to 9; threads: strips compressed at once, 1 for the calling thread only
+        public Options(int level, Filter filter, int threads) {
+            if (level < 0 || level > 9) throw new IllegalArgumentException("Deflate level must be between 0 and 9");
+            if (filter == null) throw new IllegalArgumentException("Filter must not be null");
+            if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1");
+            this.level = level;
+            this.filter = filter;
+            this.threads = threads;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_RGBA = 6;
+    private static final int IDAT_BYTES = 32 * 1024;
+
+    // ImageIO's default; higher levels cost far more time than they save on photos
+    static final int DEFAULT_LEVEL = 4;
+
+    // Samples per strip; large enough that the missing shared dictionary does not show
+    private static final int STRIP_BYTES = 1 << 20;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Options options;
+    private final boolean alpha;
+    // Bytes per pixel: 3, or 4 with alpha
+    private final int bpp;
+    private final int rowBytes;
+    private final int stripRows;
+    private final CRC32 crc = new CRC32();
+
+    // Raw samples of the strip being filled (allocated on its first row), and the last row of the strip before it
+    private byte[] strip;
+    private byte[] above;
+    private int stripFill;
+    private int rows;
+
+    // Strips being compressed, oldest first
+    private final ArrayDeque<ForkJoinTask<Strip>> pending = new ArrayDeque<>();
+    private long adler = 1;
+    private boolean started;
+    // Every strip emitted, in order, when encoding for an Encoded
+    private List<Strip> retained;
+
+    private final byte[] idat = new byte[IDAT_BYTES];
+    private int idatFill;
+
+    PngWriter(OutputStream out, int width, int height) throws IOException {
+        this(out, width, height, Options.DEFAULT);
+    }
+
+    public PngWriter(OutputStream out, int width, int height, Options options) throws IOException {
+        this(out, width, height, false, options);
+    }
+
+    // alpha: write RGBA and keep the top byte of each packed pixel
+    public PngWriter(OutputStream out, int width, int height, boolean alpha, Options options) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Image size must be positive");
+        this.alpha = alpha;
+        this.bpp = alpha ? 4 : 3;
+        if ((long) width * bpp + 1 > Integer.MAX_VALUE) throw new IllegalArgumentException("Image is too wide for a PNG row");
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.options = options;
+        this.rowBytes = width * bpp;
+        this.stripRows = Math.max(1, Math.min(height, STRIP_BYTES / rowBytes));
+        Math.multiplyExact(stripRows, rowBytes);
+
+        this.out.write(SIGNATURE);
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = (byte) (alpha ? COLOR_RGBA : COLOR_RGB);
+        writeChunk("IHDR", ihdr, ihdr.length);
+    }
+
+    // Encodes a whole image as an 8-bit PNG: RGBA if its colour model has alpha, RGB otherwise
+    public static void write(BufferedImage image, OutputStream out, Options options) throws IOException {
+        try (PngWriter writer = new PngWriter(out, image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha(), options)) {
+            writer.writeRows(image);
+        }
+    }
+
+    // Compresses an image without writing it, keeping the strips for Encoded.update and writeTo
+    public static Encoded encode(BufferedImage image, Options options) throws IOException {
+        PngWriter writer = new PngWriter(OutputStream.nullOutputStream(), image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha(), options);
+        writer.retained = new ArrayList<>();
+        try (writer) {
+            writer.writeRows(image);
+        }
+        return new Encoded(writer, writer.retained.toArray(new Strip[0]));
+    }
+
+    private void writeRows(BufferedImage image) throws IOException {
+        int[] packed = LsbEngine.packedPixels(image);
+        int[] row = packed != null ? null : new int[width];
+        for (int y = 0; y < height; y++) {
+            if (packed != null) {
+                writeRow(packed, y * width);
+            } else {
+                readRow(image, y, row);
+                writeRow(row, 0);
+            }
+        }
+    }
+
+    // One row of a non-packed image as packed pixels, with alpha when this writer keeps it
+    private void readRow(BufferedImage image, int y, int[] row) {
+        if (alpha) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+        } else {
+            LsbEngine.readPixels(image, y * width, width, row);
+        }
+    }
+
+    public static void write(BufferedImage image, OutputStream out) throws IOException {
+        write(image, out, Options.DEFAULT);
+    }
+
+    public static void write(BufferedImage image, Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+            write(image, out, Options.DEFAULT);
+        }
+    }
+
+    // Writes the next row from packed pixels src[off, off+width); alpha is dropped unless enabled
+    public void writeRow(int[] src, int off) throws IOException {
+        if (rows == height) throw new IllegalStateException("All " + height + " rows are written");
+        if (strip == null) strip = new byte[stripRows * rowBytes];
+        toSamples(src, off, strip, stripFill * rowBytes);
+        stripFill++;
+        rows++;
+        if (stripFill == stripRows || rows == height) submitStrip();
+    }
+
+    private void toSamples(int[] src, int off, byte[] dst, int at) {
+        for (int x = 0; x < width; x++, at += bpp) {
+            int p = src[off + x];
+            dst[at] = (byte) (p >> 16);
+            dst[at + 1] = (byte) (p >> 8);
+            dst[at + 2] = (byte) p;
+            if (alpha) dst[at + 3] = (byte) (p >>> 24);
+        }
+    }
+
+    // Writes the remaining strips, the checksum and IEND; fails if rows are missing
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rows != height) throw new IOException("Only " + rows + " of " + height + " rows were written");
+            while (!pending.isEmpty()) emit(pending.poll().join());
+            byte[] trailer = new byte[4];
+            putInt(trailer, 0, (int) adler);
+            appendIdat(trailer, trailer.length);
+            if (idatFill > 0) writeChunk("IDAT", idat, idatFill);
+            writeChunk("IEND", idat, 0);
+            out.flush();
+        } finally {
+            // Let strips still running finish on their own; their output is dropped
+            pending.clear();
+        }
+    }
+
+    // Hands the filled strip to a compressor and starts a new one
+    private void submitStrip() throws IOException {
+        byte[] samples = strip;
+        byte[] previous = above;
+        int count = stripFill;
+        boolean last = rows == height;
+        above = Arrays.copyOfRange(samples, (count - 1) * rowBytes, count * rowBytes);
+        stripFill = 0;
+        strip = null;
+
+        if (options.getThreads() == 1) {
+            emit(compress(samples, count, previous, last));
+            return;
+        }
+        // Bounded window: at most 'threads' strips held and compressing
+        while (pending.size() >= options.getThreads()) emit(pending.poll().join());
+        pending.add(ForkJoinPool.commonPool().submit(() -> compress(samples, count, previous, last)));
+    }
+
+    private void emit(Strip s) throws IOException {
+        if (!started) {
+            started = true;
+            byte[] header = zlibHeader(options.getLevel());
+            appendIdat(header, header.length);
+        }
+        appendIdat(s.data, s.length);
+        adler = adlerCombine(adler, s.adler, s.rawLength);
+        if (retained != null) retained.add(s);
+    }
+
+    /**
+     * A PNG held as its compressed strips, for an image saved again after small in-place changes
+     * (see {@link Steganography#update}). {@link #update} recompresses only the strips holding dirty
+     * rows, plus the strip after any whose last row changed, since its first row is filtered against
+     * that row. Every other strip is reused as it is, and {@link #writeTo} only frames the strips
+     * into IDAT chunks and combines their checksums.
+     */
+    public static final class Encoded {
+
+        // The writer that produced the strips; closed, kept for its format and compression settings
+        private final PngWriter encoder;
+        private final Strip[] strips;
+
+        private Encoded(PngWriter encoder, Strip[] strips) {
+            this.encoder = encoder;
+            this.strips = strips;
+        }
+
+        // Recompresses the strips 'rows' touches from the current pixels of 'image'; returns how many
+        public int update(BufferedImage image, DirtyRows rows) throws IOException {
+            PngWriter e = encoder;
+            if (image.getWidth() != e.width || image.getHeight() != e.height
+                    || image.getColorModel().hasAlpha() != e.alpha) {
+                throw new IllegalArgumentException("Image does not match the encoded PNG");
+            }
+            int[] packed = LsbEngine.packedPixels(image);
+            int[] row = new int[e.width];
+
+            ArrayDeque<ForkJoinTask<Strip>> window = new ArrayDeque<>();
+            ArrayDeque<Integer> indexes = new ArrayDeque<>();
+            int redone = 0;
+            for (int s = 0; s < strips.length; s++) {
+                int first = s * e.stripRows;
+                int end = Math.min(e.height, first + e.stripRows);
+                int next = rows.nextDirtyRow(first == 0 ? 0 : first - 1);
+                if (next < 0 || next >= end) continue;
+
+                byte[] samples = new byte[(end - first) * e.rowBytes];
+                for (int y = first; y < end; y++) e.rowSamples(image, packed, y, row, samples, (y - first) * e.rowBytes);
+                byte[] previous = first == 0 ? null : new byte[e.rowBytes];
+                if (previous != null) e.rowSamples(image, packed, first - 1, row, previous, 0);
+                boolean last = s == strips.length - 1;
+                int count = end - first;
+                redone++;
+                if (e.options.getThreads() == 1) {
+                    strips[s] = e.compress(samples, count, previous, last);
+                    continue;
+                }
+                while (window.size() >= e.options.getThreads()) strips[indexes.poll()] = window.poll().join();
+                window.add(ForkJoinPool.commonPool().submit(() -> e.compress(samples, count, previous, last)));
+                indexes.add(s);
+            }
+            while (!window.isEmpty()) strips[indexes.poll()] = window.poll().join();
+            return redone;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            PngWriter writer = new PngWriter(out, encoder.width, encoder.height, encoder.alpha, encoder.options);
+            for (Strip s : strips) writer.emit(s);
+            writer.rows = encoder.height;
+            writer.close();
+        }
+
+        public void writeTo(Path file) throws IOException {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)) {
+                writeTo(out);
+            }
+        }
+    }
+
+    // Samples of row y of 'image' (packed: its backing array, else null) into dst from 'at'
+    private void rowSamples(BufferedImage image, int[] packed, int y, int[] row, byte[] dst, int at) {
+        if (packed != null) {
+            toSamples(packed, y * width, dst, at);
+        } else {
+            readRow(image, y, row);
+            toSamples(row, 0, dst, at);
+        }
+    }
+
+    // A compressed strip: raw deflate data plus the Adler-32 of its input
+    private static final class Strip {
+        final byte[] data;
+        final int length;
+        final long adler;
+        final long rawLength;
+
+        Strip(byte[] data, int length, long adler, long rawLength) {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+
+    private Strip compress(byte[] samples, int count, byte[] previous, boolean last) {
+        byte[] filtered = new byte[count * (rowBytes + 1)];
+        // One candidate row per filter type, only needed to choose adaptively
+        byte[][] candidates = options.getFilter() == Filter.ADAPTIVE ? new byte[5][rowBytes] : null;
+        for (int r = 0; r < count; r++) {
+            byte[] prior = r == 0 ? previous : samples;
+            int priorAt = r == 0 ? 0 : (r - 1) * rowBytes;
+            int dstAt = r * (rowBytes + 1);
+            int filter;
+            if (candidates != null) {
+                filter = filterAll(samples, r * rowBytes, prior, priorAt, candidates);
+                System.arraycopy(candidates[filter], 0, filtered, dstAt + 1, rowBytes);
+            } else {
+                filter = options.getFilter().ordinal();
+                filterRow(filter, samples, r * rowBytes, prior, priorAt, filtered, dstAt + 1);
+            }
+            filtered[dstAt] = (byte) filter;
+        }
+
+        Adler32 sum = new Adler32();
+        sum.update(filtered);
+
+        Deflater deflater = new Deflater(options.getLevel(), true);
+        try {
+            deflater.setInput(filtered);
+            if (last) deflater.finish();
+            byte[] buffer = new byte[Math.max(64, filtered.length / 2)];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                int n = deflater.deflate(buffer, length, buffer.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                length += n;
+                // A sync flush is complete once it leaves room in the buffer
+                if (last ? deflater.finished() : length < buffer.length) break;
+            }
+            return new Strip(buffer, length, sum.getValue(), filtered.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Applies one filter to a row of samples; 'prior' is null for the first row of the image
+    private void filterRow(int filter, byte[] cur, int at, byte[] prior, int priorAt, byte[] dst, int dstAt) {
+        if (filter == 0) {
+            System.arraycopy(cur, at, dst, dstAt, rowBytes);
+            return;
+        }
+        for (int i = 0; i < rowBytes; i++) {
+            int a = i >= bpp ? cur[at + i - bpp] & 0xFF : 0;
+            int b = prior == null ? 0 : prior[priorAt + i] & 0xFF;
+            int c = i >= bpp && prior != null ? prior[priorAt + i - bpp] & 0xFF : 0;
+            int predicted;
+            switch (filter) {
+                case 1: predicted = a; break;
+                case 2: predicted = b; break;
+                case 3: predicted = (a + b) >>> 1; break;
+                default: predicted = PngReader.paeth(a, b, c); break;
+            }
+            dst[dstAt + i] = (byte) (cur[at + i] - predicted);
+        }
+    }
+
+    // Fills all five candidates and returns the one with the smallest sum of absolute values
+    private int filterAll(byte[] cur, int at, byte[] prior, int priorAt, byte[][] candidates) {
+        byte[] none = candidates[0], sub = candidates[1], up = candidates[2], avg = candidates[3], paeth = candidates[4];
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = cur[at + i] & 0xFF;
+            int a = i >= bpp ? cur[at + i - bpp] & 0xFF : 0;
+            int b = prior == null ? 0 : prior[priorAt + i] & 0xFF;
+            int c = i >= bpp && prior != null ? prior[priorAt + i - bpp] & 0xFF : 0;
+
+            byte v0 = (byte) x;
+            byte v1 = (byte) (x - a);
+            byte v2 = (byte) (x - b);
+            byte v3 = (byte) (x - ((a + b) >>> 1));
+            byte v4 = (byte) (x - PngReader.paeth(a, b, c));
+            none[i] = v0;
+            sub[i] = v1;
+            up[i] = v2;
+            avg[i] = v3;
+            paeth[i] = v4;
+            s0 += Math.abs(v0);
+            s1 += Math.abs(v1);
+            s2 += Math.abs(v2);
+            s3 += Math.abs(v3);
+            s4 += Math.abs(v4);
+        }
+
+        long[] sums = {s0, s1, s2, s3, s4};
+        int best = 0;
+        for (int f = 1; f < sums.length; f++) {
+            if (sums[f] < sums[best]) best = f;
+        }
+        return best;
+    }
+
+    // Adds compressed bytes to the IDAT stream, emitting each chunk as it fills
+    private void appendIdat(byte[] data, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = Math.min(length - off, idat.length - idatFill);
+            System.arraycopy(data, off, idat, idatFill, n);
+            idatFill += n;
+            off += n;
+            if (idatFill == idat.length) {
+                writeChunk("IDAT", idat, idatFill);
+                idatFill = 0;
+            }
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        int tag = PngReader.chunkType(type);
+        out.writeInt(length);
+        out.writeInt(tag);
+        out.write(data, 0, length);
+
+        crc.reset();
+        crc.update(new byte[]{(byte) (tag >> 24), (byte) (tag >> 16), (byte) (tag >> 8), (byte) tag});
+        crc.update(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // zlib CMF/FLG for a 32 KiB window, with the level hint zlib itself would write
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78;
+        int hint = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = hint << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    // Adler-32 of A followed by B, from the checksums of each (zlib's adler32_combine)
+    static long adlerCombine(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void putInt(byte[] b, int at, int v) {
+        b[at] = (byte) (v >> 24);
+        b[at + 1] = (byte) (v >> 16);
+        b[at + 2] = (byte) (v >> 8);
+        b[at + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,185 @@
+package com.pixelcloak.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a short-lived subprocess with a deadline. Output (stdout and stderr merged) is drained on a
+ * separate thread while the process runs, so a chatty process cannot block on a full pipe and
+ * nothing that arrives late is lost. A process that misses the deadline is killed together with
+ * its children. Every run reports its exit code and latency, and the runner keeps totals.
+ */
+public class ProcessRunner {
+
+    // Output kept per run; the rest is read and discarded so the process never blocks
+    private static final int MAX_OUTPUT_BYTES = 64 * 1024;
+
+    // How long to wait for the output thread after the process is gone
+    private static final long DRAIN_MILLIS = 1000;
+
+    private final Duration timeout;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failedExits = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public ProcessRunner(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) throw new IllegalArgumentException("Timeout must be positive");
+        this.timeout = timeout;
+    }
+
+    /** Outcome of one run. */
+    public static class Result {
+        private final int exitCode;
+        private final String output;
+        private final long elapsedNanos;
+        private final boolean timedOut;
+
+        Result(int exitCode, String output, long elapsedNanos, boolean timedOut) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.elapsedNanos = elapsedNanos;
+            this.timedOut = timedOut;
+        }
+
+        // Process exit code, or -1 if it was killed on timeout
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        // Everything the process printed, up to 64 KiB
+        public String getOutput() {
+            return output;
+        }
+
+        // First non-blank line of output, or null
+        public String firstLine() {
+            for (String line : output.split("\\R")) {
+                if (!line.isBlank()) return line.strip();
+            }
+            return null;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return timedOut ? "timed out after " + getElapsedMillis() + " ms"
+                    : "exit " + exitCode + " in " + getElapsedMillis() + " ms";
+        }
+    }
+
+    // Starts 'command' and waits for it up to the deadline; IOException if it cannot be started
+    public Result run(List<String> command) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        process.getOutputStream().close(); // Nothing to send; a process reading stdin sees EOF
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thread drain = new Thread(() -> drain(process.getInputStream(), output), "process-output-" + process.pid());
+        drain.setDaemon(true);
+        drain.start();
+
+        boolean finished;
+        try {
+            finished = process.waitFor(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            killTree(process);
+            throw e;
+        }
+        if (!finished) killTree(process);
+
+        // Children that inherited the pipe can keep it open; do not wait on them forever
+        drain.join(DRAIN_MILLIS);
+
+        long elapsed = System.nanoTime() - start;
+        String text;
+        synchronized (output) {
+            text = output.toString(StandardCharsets.UTF_8);
+        }
+
+        runs.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+        maxNanos.accumulateAndGet(elapsed, Math::max);
+        if (!finished) {
+            timeouts.incrementAndGet();
+            return new Result(-1, text, elapsed, true);
+        }
+        int exitCode = process.exitValue();
+        if (exitCode != 0) failedExits.incrementAndGet();
+        return new Result(exitCode, text, elapsed, false);
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    // Runs that finished with a non-zero exit code
+    public long getFailedExits() {
+        return failedExits.get();
+    }
+
+    public long getAverageMillis() {
+        long count = runs.get();
+        return count == 0 ? 0 : totalNanos.get() / count / 1_000_000;
+    }
+
+    public long getMaxMillis() {
+        return maxNanos.get() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessRunner[runs=" + runs + ", timeouts=" + timeouts + ", failedExits=" + failedExits
+                + ", avgMs=" + getAverageMillis() + ", maxMs=" + getMaxMillis() + "]";
+    }
+
+    // Kills the process and everything it started (an interpreter may spawn helpers)
+    static void killTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static void drain(InputStream in, ByteArrayOutputStream output) {
+        byte[] buffer = new byte[8192];
+        try (in) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                synchronized (output) {
+                    int keep = Math.min(n, MAX_OUTPUT_BYTES - output.size());
+                    if (keep > 0) output.write(buffer, 0, keep);
+                }
+            }
+        } catch (IOException e) {
+            // Stream closed because the process was killed
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.pixelcloak.core;
+
+import java.util.stream.IntStream;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8), used to add parity shards to a {@link ShardSet}.
+ *
+ * The coding matrix is an n x k Vandermonde matrix multiplied by the inverse of its top k x k
+ * square, so the first k rows are the identity (data shards are stored as they are) and any k
+ * rows are linearly independent. Any k of the n equally sized shards therefore give back the
+ * data: the decoder inverts the k x k submatrix of the rows it has. Shards must be known to be
+ * present or missing; callers detect damaged shards by checksum and pass them as missing.
+ */
+final class ReedSolomon {
+
+    // Field polynomial x^8 + x^4 + x^3 + x^2 + 1, generator 2
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    // MUL[a][b] = a * b; 64 KiB, and a row of it is all an inner loop needs
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) x ^= POLYNOMIAL;
+        }
+        for (int i = 255; i < EXP.length; i++) EXP[i] = EXP[i - 255];
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    // Largest total shard count; Vandermonde rows need distinct field elements
+    static final int MAX_SHARDS = 255;
+
+    private final int dataShards;
+    private final int totalShards;
+    private final byte[][] matrix;
+
+    ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard counts must be at least 1 data shard and at most " + MAX_SHARDS + " in total");
+        }
+        this.dataShards = dataShards;
+        this.totalShards = dataShards + parityShards;
+
+        byte[][] vandermonde = new byte[totalShards][dataShards];
+        for (int r = 0; r < totalShards; r++) {
+            for (int c = 0; c < dataShards; c++) vandermonde[r][c] = power(r, c);
+        }
+        byte[][] top = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) top[r] = vandermonde[r].clone();
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    // Fills shards[k..n) from shards[0..k); every shard is 'length' bytes
+    void encodeParity(byte[][] shards, int length) {
+        byte[][] inputs = new byte[dataShards][];
+        System.arraycopy(shards, 0, inputs, 0, dataShards);
+        IntStream.range(dataShards, totalShards).parallel()
+                .forEach(r -> combine(matrix[r], inputs, shards[r], length));
+    }
+
+    // Rebuilds every missing shard from any k present ones; false if fewer than k are present
+    boolean reconstruct(byte[][] shards, boolean[] present, int length) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < totalShards && found < dataShards; i++) {
+            if (present[i]) rows[found++] = i;
+        }
+        if (found < dataShards) return false;
+
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            sub[i] = matrix[rows[i]].clone();
+            inputs[i] = shards[rows[i]];
+        }
+        byte[][] decode = invert(sub);
+
+        // Missing data shards straight from the inverse, then missing parity from the data
+        IntStream.range(0, dataShards).parallel().filter(d -> !present[d]).forEach(d -> {
+            shards[d] = new byte[length];
+            combine(decode[d], inputs, shards[d], length);
+        });
+        byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+        IntStream.range(dataShards, totalShards).parallel().filter(p -> !present[p]).forEach(p -> {
+            shards[p] = new byte[length];
+            combine(matrix[p], data, shards[p], length);
+        });
+        return true;
+    }
+
+    // out = sum of coefficients[i] * inputs[i]
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] out, int length) {
+        for (int i = 0; i < inputs.length; i++) {
+            byte[] table = MUL[coefficients[i] & 0xFF];
+            byte[] in = inputs[i];
+            if (i == 0) {
+                for (int j = 0; j < length; j++) out[j] = table[in[j] & 0xFF];
+            } else {
+                for (int j = 0; j < length; j++) out[j] ^= table[in[j] & 0xFF];
+            }
+        }
+    }
+
+    private static byte power(int a, int n) {
+        if (n == 0) return 1;
+        if (a == 0) return 0;
+        return EXP[(LOG[a] * n) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] out = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                int v = 0;
+                for (int i = 0; i < b.length; i++) v ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+                out[r][c] = (byte) v;
+            }
+        }
+        return out;
+    }
+
+    // Gauss-Jordan over GF(256); the input rows are left modified
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] inverse = new byte[n][n];
+        for (int i = 0; i < n; i++) inverse[i][i] = 1;
+
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && m[pivot][col] == 0) pivot++;
+            if (pivot == n) throw new IllegalStateException("Coding matrix is singular");
+            swap(m, col, pivot);
+            swap(inverse, col, pivot);
+
+            byte[] scale = MUL[EXP[255 - LOG[m[col][col] & 0xFF]] & 0xFF];
+            for (int c = 0; c < n; c++) {
+                m[col][c] = scale[m[col][c] & 0xFF];
+                inverse[col][c] = scale[inverse[col][c] & 0xFF];
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = m[r][col] & 0xFF;
+                if (r == col || factor == 0) continue;
+                byte[] times = MUL[factor];
+                for (int c = 0; c < n; c++) {
+                    m[r][c] ^= times[m[col][c] & 0xFF];
+                    inverse[r][c] ^= times[inverse[col][c] & 0xFF];
+                }
+            }
+        }
+        return inverse;
+    }
+
+    private static void swap(byte[][] m, int a, int b) {
+        byte[] t = m[a];
+        m[a] = m[b];
+        m[b] = t;
+    }
+}
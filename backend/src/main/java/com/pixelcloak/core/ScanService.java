@@ -0,0 +1,372 @@
+package com.pixelcloak.core;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds the PixelCloak images in a folder tree: which files carry an envelope (and with which
+ * KDF, AEAD and placement), which look like pre-envelope entries, and, given a password, which
+ * of them it opens.
+ *
+ * Every file gets its own I/O task for reading, decoding and probing the header. PNGs are probed
+ * from their first scanlines ({@link PngProbe}) and only fully decoded to try a password. On Java 21+
+ * those run on virtual threads; on older runtimes on a platform pool as large as the in-flight
+ * limit. Key derivation and full extraction, which are CPU-bound, go to a fixed pool of one
+ * thread per core. Headers are probed in parallel, but a file is only loaded and decoded under the
+ * decode limit, so at most two files or rasters per CPU thread are in memory at a time. Files no
+ * ImageIO reader recognises are skipped before they are loaded.
+ *
+ * Results come back as a Stream in completion order. At most 'maxInFlight' files are being read
+ * or waiting to be consumed, so a slow consumer slows the directory walk instead of buffering
+ * the archive. Closing the stream stops the walk. An enabled {@link KeyCache} spares the password
+ * KDF for images that share a master salt.
+ */
+public class ScanService implements AutoCloseable {
+
+    public enum Status { ENVELOPE, LEGACY, NONE, ERROR }
+
+    private static final int DEFAULT_IN_FLIGHT = 64;
+
+    // Payload bytes checked against the Base64 alphabet to tell a legacy entry from noise
+    private static final int LEGACY_PROBE_BYTES = 64;
+
+    private static final ScanResult END = new ScanResult(null, Status.NONE, null, null, -1, null, 0);
+
+    private final ExecutorService io;
+    private final ExecutorService cpu;
+    private final boolean virtual;
+    private final int maxInFlight;
+    private final Semaphore decoding;
+
+    public ScanService() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_IN_FLIGHT);
+    }
+
+    // cpuThreads: KDF / extraction workers (and concurrent decodes); maxInFlight: files read or awaiting the consumer
+    public ScanService(int cpuThreads, int maxInFlight) {
+        if (cpuThreads <= 0 || maxInFlight <= 0) throw new IllegalArgumentException("Thread counts must be positive");
+        this.maxInFlight = maxInFlight;
+        this.decoding = new Semaphore(cpuThreads * 2);
+        this.cpu = Executors.newFixedThreadPool(cpuThreads, daemon("pixelcloak-scan-cpu"));
+
+        ExecutorService perTask = virtualThreadPerTaskExecutor();
+        this.virtual = perTask != null;
+        this.io = perTask != null ? perTask : Executors.newFixedThreadPool(maxInFlight, daemon("pixelcloak-scan-io"));
+    }
+
+    // True when the I/O tasks run on virtual threads (Java 21+)
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    // Probes every regular file under 'root' for a payload
+    public Stream<ScanResult> scan(Path root) {
+        return scan(root, null);
+    }
+
+    // As scan(root), and tries 'password' on every payload found; the caller keeps and clears the password
+    public Stream<ScanResult> scan(Path root, char[] password) {
+        BlockingQueue<ScanResult> results = new LinkedBlockingQueue<>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        // One token for the walk itself, one per submitted file; whoever drops it to zero ends the stream
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<ScanResult> walkError = new AtomicReference<>();
+        Runnable finish = () -> {
+            if (pending.decrementAndGet() == 0) results.add(END);
+        };
+
+        Thread walker = new Thread(() -> {
+            try (Stream<Path> files = Files.walk(root)) {
+                Iterator<Path> it = files.filter(Files::isRegularFile).iterator();
+                while (it.hasNext() && !Thread.currentThread().isInterrupted()) {
+                    Path file = it.next();
+                    inFlight.acquire();
+                    pending.incrementAndGet();
+                    io.execute(() -> {
+                        // Every file must queue a result, or its permit is never released and the walk stalls
+                        ScanResult result;
+                        try {
+                            result = probe(file, password);
+                        } catch (Throwable t) {
+                            result = new ScanResult(file, Status.ERROR, null, null, -1, t.toString(), 0);
+                        }
+                        try {
+                            results.add(result);
+                        } finally {
+                            finish.run();
+                        }
+                    });
+                }
+            } catch (IOException | RuntimeException e) {
+                walkError.set(new ScanResult(root, Status.ERROR, null, null, -1, e.toString(), 0));
+                results.add(walkError.get());
+            } catch (InterruptedException e) {
+                // Stream closed
+            } finally {
+                finish.run();
+            }
+        }, "pixelcloak-scan-walk");
+        walker.setDaemon(true);
+        walker.start();
+
+        Iterator<ScanResult> iterator = new Iterator<>() {
+            private ScanResult next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = results.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        next = END;
+                    }
+                    // The walk error is not tied to a file permit
+                    if (next != END && next != walkError.get()) inFlight.release();
+                }
+                return next != END;
+            }
+
+            @Override
+            public ScanResult next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                ScanResult result = next;
+                next = null;
+                return result;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(walker::interrupt);
+    }
+
+    // Probes one file on the calling thread; with a password the unlock attempt still runs on the CPU pool
+    public ScanResult probe(Path file, char[] password) {
+        long start = System.nanoTime();
+        try {
+            // Most carriers are PNGs: their headers come from the first rows, without a full read
+            PngProbe.Result png = PngProbe.probe(file);
+            if (png.isSupported()) {
+                Envelope header = png.getEnvelope();
+                byte[] legacy = png.getLegacyPrefix();
+                Status status = header != null ? Status.ENVELOPE
+                        : legacy != null && looksLikeBase64(legacy, legacy.length) ? Status.LEGACY : Status.NONE;
+                if (status == Status.NONE || password == null) {
+                    return result(file, status, header, null, -1, null, start);
+                }
+            }
+
+            // Nothing to decode; decided from the first bytes, before the file is loaded
+            if (!png.isSupported() && !hasImageReader(file)) {
+                return result(file, Status.NONE, null, null, -1, null, start);
+            }
+
+            decoding.acquire();
+            try {
+                return probe(file, file.toFile(), password, start);
+            } finally {
+                decoding.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result(file, Status.ERROR, null, null, -1, "Interrupted", start);
+        } catch (Exception e) {
+            return result(file, Status.ERROR, null, null, -1, e.toString(), start);
+        }
+    }
+
+    private ScanResult probe(Path file, File data, char[] password, long start) throws Exception {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(data);
+        } catch (IOException e) {
+            // Not an image we can decode, which is not an error for a scan
+            image = null;
+        }
+        if (image == null) return result(file, Status.NONE, null, null, -1, null, start);
+
+        Envelope header = Steganography.readEnvelopeHeader(image);
+        Status status = header != null ? Status.ENVELOPE : isLegacy(image) ? Status.LEGACY : Status.NONE;
+        if (status == Status.NONE || password == null) {
+            return result(file, status, header, null, -1, null, start);
+        }
+
+        BufferedImage decoded = image;
+        Future<Long> opened = cpu.submit(() -> open(decoded, header, password));
+        long size;
+        try {
+            size = opened.get();
+        } catch (ExecutionException e) {
+            // Wrong password, tampered image or a KDF we refuse: reported as not opened
+            size = -1;
+        }
+        return result(file, status, header, size >= 0, size, null, start);
+    }
+
+    @Override
+    public void close() {
+        io.shutdownNow();
+        cpu.shutdownNow();
+    }
+
+    // Decrypts the payload and returns its plaintext size; throws if the password does not open it
+    private static long open(BufferedImage image, Envelope header, char[] password) throws Exception {
+        if (header == null) {
+            String legacy = Steganography.extract(image);
+            return AESCrypto.decrypt(legacy, password).getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        Envelope envelope = Steganography.extractEnvelope(image, password);
+        if (envelope.getAeadId() == Envelope.AEAD_AES_256_GCM_STREAM) {
+            try (InputStream in = AESCrypto.decryptingStream(new ByteArrayInputStream(envelope.getBody()), envelope, password)) {
+                return in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return AESCrypto.decrypt(envelope, password).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static boolean hasImageReader(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            return in != null && ImageIO.getImageReaders(in).hasNext();
+        }
+    }
+
+    // A plausible length prefix followed by Base64 text, as written before the envelope format
+    private static boolean isLegacy(BufferedImage image) throws IOException {
+        StegoInputStream in = Steganography.openPayload(image);
+        if (in == null || in.length() == 0) return false;
+
+        byte[] probe = new byte[(int) Math.min(LEGACY_PROBE_BYTES, in.length())];
+        return looksLikeBase64(probe, in.readNBytes(probe, 0, probe.length));
+    }
+
+    private static boolean looksLikeBase64(byte[] bytes, int n) {
+        if (n == 0) return false;
+        for (int i = 0; i < n; i++) {
+            int c = bytes[i];
+            boolean base64 = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '+' || c == '/' || c == '=';
+            if (!base64) return false;
+        }
+        return true;
+    }
+
+    private static ScanResult result(Path file, Status status, Envelope header, Boolean opened, long size, String error,
+                                     long start) {
+        return new ScanResult(file, status, header, opened, size, error, System.nanoTime() - start);
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() where the runtime has it, else null
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** What a scan found in one file. */
+    public static class ScanResult {
+        private final Path path;
+        private final Status status;
+        private final Envelope header;
+        private final Boolean opened;
+        private final long payloadBytes;
+        private final String error;
+        private final long elapsedNanos;
+
+        ScanResult(Path path, Status status, Envelope header, Boolean opened, long payloadBytes, String error,
+                   long elapsedNanos) {
+            this.path = path;
+            this.status = status;
+            this.header = header;
+            this.opened = opened;
+            this.payloadBytes = payloadBytes;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        // Parsed envelope header (no body) for ENVELOPE results, else null
+        public Envelope getHeader() {
+            return header;
+        }
+
+        // Whether the password opened the payload, or null if no password was tried
+        public Boolean getOpened() {
+            return opened;
+        }
+
+        // Plaintext size when opened, else -1
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder(status.name()).append('\t').append(path);
+            if (header != null) {
+                line.append("\tkdf=").append(header.getKdfId())
+                        .append(" aead=").append(header.getAeadId())
+                        .append(" body=").append(header.getBodyLength());
+                if (header.getPlacement() != null) line.append(" placement=textured");
+                if (header.getMode() != null) line.append(" mode=").append(header.getMode());
+            }
+            if (opened != null) line.append(opened ? "\topened " + payloadBytes + " bytes" : "\tnot opened");
+            if (error != null) line.append('\t').append(error);
+            line.append(String.format(Locale.ROOT, "\t%d ms", getElapsedMillis()));
+            return line.toString();
+        }
+    }
+}
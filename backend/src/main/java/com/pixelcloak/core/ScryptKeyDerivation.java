@@ -0,0 +1,205 @@
+package com.pixelcloak.core;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * scrypt (RFC 7914) in pure Java, envelope KDF id 3. Memory use is 128 * r * N bytes per lane.
+ */
+public class ScryptKeyDerivation implements KeyDerivation {
+
+    public static final int ID = 3;
+
+    // Hard ceilings for any parameters, including those read from an image (see Argon2idKeyDerivation)
+    static final long MAX_MEMORY = 256L << 20;
+    static final int MAX_PARALLELISM = 4;
+    static final long DEFAULT_MAX_MEMORY = MAX_MEMORY;
+
+    private static final int MIN_LOG_N = 10;
+
+    private final int logN;
+    private final int r;
+    private final int p;
+
+    public ScryptKeyDerivation(int logN, int r, int p) {
+        if (logN < 1 || logN > 24 || r < 1 || r > 32 || p < 1 || p > MAX_PARALLELISM || memory(logN, r) > MAX_MEMORY) {
+            throw new IllegalArgumentException("Invalid scrypt parameters");
+        }
+        this.logN = logN;
+        this.r = r;
+        this.p = p;
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encodeParams() {
+        return ByteBuffer.allocate(9).put((byte) logN).putInt(r).putInt(p).array();
+    }
+
+    @Override
+    public byte[] derive(char[] password, byte[] salt, int length) throws Exception {
+        byte[] passwordBytes = KeyDerivation.passwordBytes(password);
+        try {
+            return scrypt(passwordBytes, salt, 1 << logN, r, p, length);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    // Largest N (with r = 8, p = 1) whose derivation stays around 'target' and within 'maxMemory'
+    public static ScryptKeyDerivation calibrate(Duration target, long maxMemory) {
+        int r = 8;
+        int probeLogN = 14;
+        byte[] password = "calibration".getBytes();
+        byte[] salt = new byte[AESCrypto.SALT_LENGTH];
+        try {
+            scrypt(password, salt, 1 << probeLogN, r, 1, 32); // warm-up
+            long start = System.nanoTime();
+            scrypt(password, salt, 1 << probeLogN, r, 1, 32);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            // Cost is linear in N
+            double scale = (double) target.toNanos() / elapsed;
+            int logN = probeLogN + (int) Math.floor(Math.log(scale) / Math.log(2));
+            while (logN > MIN_LOG_N && memory(logN, r) > Math.min(maxMemory, MAX_MEMORY)) logN--;
+            return new ScryptKeyDerivation(Math.max(MIN_LOG_N, logN), r, 1);
+        } catch (Exception e) {
+            throw new IllegalStateException("scrypt calibration failed", e);
+        }
+    }
+
+    private static long memory(int logN, int r) {
+        return 128L * r << logN;
+    }
+
+    static byte[] scrypt(byte[] password, byte[] salt, int n, int r, int p, int length) throws Exception {
+        int blockBytes = 128 * r;
+        byte[] b = Pbkdf2KeyDerivation.hmacSha256(password, salt, 1, p * blockBytes);
+
+        int words = 32 * r;
+        int[] x = new int[words];
+        int[] v = new int[words * n];
+        int[] scratch = new int[words + 16];
+        for (int i = 0; i < p; i++) {
+            int off = i * blockBytes;
+            for (int k = 0; k < words; k++) x[k] = readIntLe(b, off + 4 * k);
+            roMix(x, v, scratch, n, r);
+            for (int k = 0; k < words; k++) writeIntLe(b, off + 4 * k, x[k]);
+        }
+        Arrays.fill(v, 0);
+
+        try {
+            return Pbkdf2KeyDerivation.hmacSha256(password, b, 1, length);
+        } finally {
+            Arrays.fill(b, (byte) 0);
+        }
+    }
+
+    private static void roMix(int[] x, int[] v, int[] scratch, int n, int r) {
+        int words = 32 * r;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(x, 0, v, i * words, words);
+            blockMix(x, scratch, r);
+        }
+        for (int i = 0; i < n; i++) {
+            // Integerify: first word of the last 64-byte chunk, mod N (N is a power of two)
+            int j = x[words - 16] & (n - 1);
+            int base = j * words;
+            for (int k = 0; k < words; k++) x[k] ^= v[base + k];
+            blockMix(x, scratch, r);
+        }
+    }
+
+    // BlockMix with Salsa20/8; 'scratch' holds the shuffled output followed by the 16-word Salsa state
+    private static void blockMix(int[] b, int[] scratch, int r) {
+        int words = 32 * r;
+        int t = words;
+        System.arraycopy(b, words - 16, scratch, t, 16);
+
+        for (int i = 0; i < 2 * r; i++) {
+            for (int k = 0; k < 16; k++) scratch[t + k] ^= b[i * 16 + k];
+            salsa208(scratch, t);
+            // Even chunks go to the first half, odd ones to the second
+            int dst = (i % 2 == 0 ? i / 2 : r + i / 2) * 16;
+            System.arraycopy(scratch, t, scratch, dst, 16);
+        }
+        System.arraycopy(scratch, 0, b, 0, words);
+    }
+
+    private static void salsa208(int[] b, int o) {
+        int x0 = b[o], x1 = b[o + 1], x2 = b[o + 2], x3 = b[o + 3], x4 = b[o + 4], x5 = b[o + 5], x6 = b[o + 6], x7 = b[o + 7];
+        int x8 = b[o + 8], x9 = b[o + 9], x10 = b[o + 10], x11 = b[o + 11];
+        int x12 = b[o + 12], x13 = b[o + 13], x14 = b[o + 14], x15 = b[o + 15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[o] += x0; b[o + 1] += x1; b[o + 2] += x2; b[o + 3] += x3;
+        b[o + 4] += x4; b[o + 5] += x5; b[o + 6] += x6; b[o + 7] += x7;
+        b[o + 8] += x8; b[o + 9] += x9; b[o + 10] += x10; b[o + 11] += x11;
+        b[o + 12] += x12; b[o + 13] += x13; b[o + 14] += x14; b[o + 15] += x15;
+    }
+
+    private static int readIntLe(byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+    }
+
+    private static void writeIntLe(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ScryptKeyDerivation)) return false;
+        ScryptKeyDerivation other = (ScryptKeyDerivation) o;
+        return other.logN == logN && other.r == r && other.p == p;
+    }
+
+    @Override
+    public int hashCode() {
+        return (logN * 31 + r) * 31 + p;
+    }
+
+    @Override
+    public String toString() {
+        return "scrypt:logN=" + logN + ",r=" + r + ",p=" + p;
+    }
+}
@@ -0,0 +1,80 @@
+package com.pixelcloak.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Login session holding one master key, derived once with the configured {@link KeyDerivation}.
+ *
+ * Entries saved through a session get their own AES key from HKDF-SHA256 over a fresh
+ * per-entry salt (see {@link AESCrypto#encryptEnvelope(String, Session, Envelope.BodyLayout)}), so bulk saves and
+ * reveals after login do not run the password KDF again. The master salt and KDF cost are
+ * written into every entry's header, which lets a later session holding only the password
+ * re-derive the same master key.
+ */
+public class Session implements AutoCloseable {
+
+    static final byte[] ENTRY_KEY_INFO = "PixelCloak entry key v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] masterSalt;
+    private final KeyDerivation kdf;
+    private final byte[] masterKey;
+    private boolean closed;
+
+    private Session(byte[] masterSalt, KeyDerivation kdf, byte[] masterKey) {
+        this.masterSalt = masterSalt;
+        this.kdf = kdf;
+        this.masterKey = masterKey;
+    }
+
+    // Runs the password KDF once for this login, under a fresh master salt
+    public static Session open(char[] password) throws Exception {
+        byte[] salt = AESCrypto.randomBytes(AESCrypto.SALT_LENGTH);
+        KeyDerivation kdf = AESCrypto.getKeyDerivation();
+        return new Session(salt, kdf, AESCrypto.deriveKeyBytes(password, salt, kdf));
+    }
+
+    // Re-derives the master key of the session that sealed 'envelope', so its sibling entries (a
+    // Journal's) open with one KDF run
+    static Session resume(char[] password, Envelope envelope) throws Exception {
+        if (envelope.getEntrySalt() == null) throw new IllegalArgumentException("Invalid encrypted data format");
+        KeyDerivation kdf = envelope.getKeyDerivation();
+        byte[] salt = envelope.getSalt().clone();
+        return new Session(salt, kdf, AESCrypto.deriveKeyBytes(password, salt, kdf));
+    }
+
+    public byte[] getMasterSalt() {
+        return masterSalt.clone();
+    }
+
+    public KeyDerivation getKeyDerivation() {
+        return kdf;
+    }
+
+    // True if the envelope was sealed under this session's master key
+    public synchronized boolean canOpen(Envelope envelope) {
+        return !closed
+                && envelope.getEntrySalt() != null
+                && envelope.getKdfId() == kdf.id()
+                && Arrays.equals(envelope.getKdfParams(), kdf.encodeParams())
+                && MessageDigest.isEqual(envelope.getSalt(), masterSalt);
+    }
+
+    // Per-entry AES key: HKDF-SHA256(master key, entry salt)
+    synchronized byte[] entryKey(byte[] entrySalt) throws Exception {
+        if (closed) throw new IllegalStateException("Session is closed");
+        return entryKey(masterKey, entrySalt);
+    }
+
+    static byte[] entryKey(byte[] masterKey, byte[] entrySalt) throws Exception {
+        return Hkdf.derive(masterKey, entrySalt, ENTRY_KEY_INFO, AESCrypto.AES_KEY_SIZE / 8);
+    }
+
+    // Zeroes the master key (logout)
+    @Override
+    public synchronized void close() {
+        Arrays.fill(masterKey, (byte) 0);
+        closed = true;
+    }
+}
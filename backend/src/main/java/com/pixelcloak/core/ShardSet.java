@@ -0,0 +1,334 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Spreads one payload over a set of carriers, so an entry is no longer limited by the size of a
+ * single image. Each carrier gets a shard header at the start of its LSB stream, followed by its
+ * part of the payload:
+ *
+ * <pre>
+ * magic          4  "PXSH"
+ * version        1
+ * set id         8  random, the same in every shard of one set
+ * index          1  0..count-1; data shards first, then parity shards
+ * data shards    1  k
+ * count          1  n, data plus parity shards
+ * payload length 8
+ * offset         8  payload byte this shard starts at (0 for parity shards)
+ * shard length   4
+ * shard crc32    4  over the shard data
+ * crc32          4  over every header byte before it
+ * shard data
+ * </pre>
+ *
+ * Without parity the payload is split in proportion to each carrier's capacity, and every shard
+ * is needed. With parity shards, the payload is cut into k equal shards (the last one padded with
+ * zeros) and {@link ReedSolomon} adds n - k parity shards, so any k of the n images give the
+ * payload back. A shard whose data fails its CRC counts as missing. Shards are embedded and read
+ * in parallel, one carrier per task, and the images can be passed to extract in any order.
+ *
+ * The payload is usually a sealed {@link Envelope}, header and body together; its body must then
+ * be placed sequentially in the default mode, since texture placement and embedding modes work
+ * per carrier.
+ */
+public final class ShardSet {
+
+    public static final byte[] MAGIC = {'P', 'X', 'S', 'H'};
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 44;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ShardSet() {
+    }
+
+    /** A parsed shard header. */
+    public static final class Shard {
+        private final long setId;
+        private final int index;
+        private final int dataShards;
+        private final int count;
+        private final long payloadLength;
+        private final long offset;
+        private final int length;
+        private final int dataCrc;
+
+        Shard(long setId, int index, int dataShards, int count, long payloadLength, long offset, int length, int dataCrc) {
+            this.setId = setId;
+            this.index = index;
+            this.dataShards = dataShards;
+            this.count = count;
+            this.payloadLength = payloadLength;
+            this.offset = offset;
+            this.length = length;
+            this.dataCrc = dataCrc;
+        }
+
+        public long getSetId() {
+            return setId;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getDataShards() {
+            return dataShards;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getPayloadLength() {
+            return payloadLength;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public boolean isParity() {
+            return index >= dataShards;
+        }
+
+        byte[] encode() {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+            buffer.put(MAGIC).put((byte) VERSION).putLong(setId)
+                    .put((byte) index).put((byte) dataShards).put((byte) count)
+                    .putLong(payloadLength).putLong(offset).putInt(length).putInt(dataCrc);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, buffer.position());
+            buffer.putInt((int) crc.getValue());
+            return buffer.array();
+        }
+
+        // Null unless 'header' is a well-formed shard header
+        static Shard decode(byte[] header) {
+            if (header.length < HEADER_BYTES) return null;
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header[i] != MAGIC[i]) return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header, 0, HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(header, 0, HEADER_BYTES - 4);
+            if ((int) crc.getValue() != buffer.getInt(HEADER_BYTES - 4)) return null;
+
+            buffer.position(MAGIC.length);
+            if ((buffer.get() & 0xFF) != VERSION) return null;
+            long setId = buffer.getLong();
+            int index = buffer.get() & 0xFF;
+            int dataShards = buffer.get() & 0xFF;
+            int count = buffer.get() & 0xFF;
+            long payloadLength = buffer.getLong();
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            int dataCrc = buffer.getInt();
+            if (dataShards < 1 || count < dataShards || index >= count || length < 0
+                    || payloadLength < 0 || offset < 0 || offset > payloadLength) {
+                return null;
+            }
+            return new Shard(setId, index, dataShards, count, payloadLength, offset, length, dataCrc);
+        }
+    }
+
+    // Payload bytes a set over these carriers can hold with the given number of parity shards
+    public static long capacityBytes(List<BufferedImage> carriers, int parityShards) {
+        checkCounts(carriers.size(), parityShards);
+        long[] room = room(carriers);
+        if (parityShards == 0) return Arrays.stream(room).sum();
+        long smallest = Arrays.stream(room).min().orElse(0);
+        return smallest * (carriers.size() - parityShards);
+    }
+
+    /**
+     * Returns one stego copy per carrier, in the same order, holding 'payload' between them.
+     * 'parityShards' of the carriers hold Reed-Solomon parity instead of payload.
+     */
+    public static List<BufferedImage> embed(List<BufferedImage> carriers, byte[] payload, int parityShards) {
+        int count = carriers.size();
+        checkCounts(count, parityShards);
+        if (payload.length > capacityBytes(carriers, parityShards)) {
+            throw new IllegalArgumentException("Text is too long for these images. Need more or larger images, or shorter text.");
+        }
+
+        long setId = RANDOM.nextLong();
+        int dataShards = count - parityShards;
+        byte[][] shards = new byte[count][];
+        long[] offsets = new long[count];
+        if (parityShards == 0) {
+            int[] lengths = proportionalLengths(room(carriers), payload.length);
+            for (int i = 0, at = 0; i < count; at += lengths[i], i++) {
+                offsets[i] = at;
+                shards[i] = Arrays.copyOfRange(payload, at, at + lengths[i]);
+            }
+        } else {
+            int length = (payload.length + dataShards - 1) / dataShards;
+            for (int i = 0; i < count; i++) {
+                int from = (int) Math.min(payload.length, (long) i * length);
+                offsets[i] = i < dataShards ? from : 0;
+                // Copies past the payload end are zero padding; parity shards start out empty
+                shards[i] = i < dataShards ? Arrays.copyOfRange(payload, from, from + length) : new byte[length];
+            }
+            new ReedSolomon(dataShards, parityShards).encodeParity(shards, length);
+        }
+
+        return IntStream.range(0, count).parallel().mapToObj(i -> {
+            CRC32 crc = new CRC32();
+            crc.update(shards[i]);
+            byte[] header = new Shard(setId, i, dataShards, count, payload.length, offsets[i],
+                    shards[i].length, (int) crc.getValue()).encode();
+            BufferedImage copy = LsbEngine.copyToIntRgb(carriers.get(i));
+            LsbEngine.embed(copy, 0, header, 0, header.length);
+            LsbEngine.embed(copy, HEADER_BYTES, shards[i], 0, shards[i].length);
+            return copy;
+        }).collect(Collectors.toList());
+    }
+
+    // Shards a sealed envelope, header and body together
+    public static List<BufferedImage> embed(List<BufferedImage> carriers, Envelope envelope, int parityShards) {
+        if (envelope.getPlacement() != null || envelope.getMode() != null) {
+            throw new IllegalArgumentException("Entries spanning several images are placed sequentially. Seal the envelope without a placement or mode.");
+        }
+        byte[] header = envelope.header();
+        byte[] payload = Arrays.copyOf(header, envelope.totalLength());
+        System.arraycopy(envelope.getBody(), 0, payload, header.length, envelope.getBodyLength());
+        return embed(carriers, payload, parityShards);
+    }
+
+    // The shard header of an image, or null if it carries none
+    public static Shard readHeader(BufferedImage image) {
+        if (LsbEngine.capacityBytes(image) < HEADER_BYTES) return null;
+        byte[] header = new byte[HEADER_BYTES];
+        LsbEngine.extract(image, 0, header, 0, header.length);
+        Shard shard = Shard.decode(header);
+        if (shard == null || shard.length > LsbEngine.capacityBytes(image) - HEADER_BYTES) return null;
+        return shard;
+    }
+
+    /**
+     * Reassembles the payload from the images of one set, given in any order. Images without a
+     * shard header are ignored. Returns null if none of the images holds a shard, and throws if
+     * the images mix sets or too few shards are intact.
+     */
+    public static byte[] extract(List<BufferedImage> images) {
+        Shard[] headers = images.parallelStream().map(ShardSet::readHeader).toArray(Shard[]::new);
+        Shard first = Arrays.stream(headers).filter(Objects::nonNull).findFirst().orElse(null);
+        if (first == null) return null;
+        for (Shard s : headers) {
+            if (s != null && (s.setId != first.setId || s.count != first.count
+                    || s.dataShards != first.dataShards || s.payloadLength != first.payloadLength)) {
+                throw new IllegalArgumentException("These images belong to more than one set. Pass the images of one entry only.");
+            }
+        }
+
+        // One image per shard index; a duplicate or damaged copy is simply not used
+        int count = first.count;
+        byte[][] shards = new byte[count][];
+        Shard[] byIndex = new Shard[count];
+        boolean[] present = new boolean[count];
+        IntStream.range(0, images.size()).parallel().forEach(i -> {
+            Shard s = headers[i];
+            if (s == null) return;
+            byte[] data = new byte[s.length];
+            LsbEngine.extract(images.get(i), HEADER_BYTES, data, 0, data.length);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != s.dataCrc) return;
+            synchronized (shards) {
+                if (!present[s.index]) {
+                    shards[s.index] = data;
+                    byIndex[s.index] = s;
+                    present[s.index] = true;
+                }
+            }
+        });
+
+        int dataShards = first.dataShards;
+        int have = 0;
+        for (boolean p : present) if (p) have++;
+        boolean allData = IntStream.range(0, dataShards).allMatch(i -> present[i]);
+        if (!allData) {
+            int length = Arrays.stream(byIndex).filter(Objects::nonNull).mapToInt(s -> s.length).findFirst().orElse(0);
+            boolean equal = Arrays.stream(byIndex).filter(Objects::nonNull).allMatch(s -> s.length == length);
+            if (count == dataShards || !equal || !new ReedSolomon(dataShards, count - dataShards).reconstruct(shards, present, length)) {
+                throw new IllegalStateException("Only " + have + " of the " + dataShards + " images needed for this entry were found intact.");
+            }
+        }
+
+        // Data shards in index order; offsets follow from the lengths, padding is cut off
+        long total = first.payloadLength;
+        if (total > Integer.MAX_VALUE) throw new IllegalStateException("This entry is too large to reassemble in memory.");
+        byte[] payload = new byte[(int) total];
+        long at = 0;
+        for (int i = 0; i < dataShards && at < total; i++) {
+            if (byIndex[i] != null && byIndex[i].offset != at) {
+                throw new IllegalStateException("Shard " + i + " of this entry does not line up with the others.");
+            }
+            int n = (int) Math.min(shards[i].length, total - at);
+            System.arraycopy(shards[i], 0, payload, (int) at, n);
+            at += n;
+        }
+        if (at != total) throw new IllegalStateException("The shards of this entry are shorter than the entry.");
+        return payload;
+    }
+
+    // Reassembles a sharded envelope with its body; null if the images hold no shard or no envelope
+    public static Envelope extractEnvelope(List<BufferedImage> images) {
+        byte[] payload = extract(images);
+        if (payload == null) return null;
+        int headerLength = Envelope.announcedHeaderLength(payload);
+        if (headerLength < 0 || headerLength > payload.length) return null;
+        Envelope envelope = Envelope.parseHeader(Arrays.copyOf(payload, headerLength));
+        if (envelope == null || envelope.getBodyLength() != payload.length - headerLength) return null;
+        envelope.setBody(Arrays.copyOfRange(payload, headerLength, payload.length));
+        return envelope;
+    }
+
+    private static void checkCounts(int count, int parityShards) {
+        if (count < 1 || count > ReedSolomon.MAX_SHARDS) {
+            throw new IllegalArgumentException("A set needs between 1 and " + ReedSolomon.MAX_SHARDS + " images");
+        }
+        if (parityShards < 0 || parityShards >= count) {
+            throw new IllegalArgumentException("Parity shards must leave at least one image for data");
+        }
+    }
+
+    // Payload bytes each carrier has after its shard header
+    private static long[] room(List<BufferedImage> carriers) {
+        return carriers.stream()
+                .mapToLong(c -> Math.max(0, Math.min(Integer.MAX_VALUE, LsbEngine.capacityBytes(c) - HEADER_BYTES)))
+                .toArray();
+    }
+
+    // Splits 'total' bytes in proportion to room, never past any carrier's room
+    private static int[] proportionalLengths(long[] room, int total) {
+        long sum = Arrays.stream(room).sum();
+        int[] lengths = new int[room.length];
+        long left = total;
+        for (int i = 0; i < room.length; i++) {
+            lengths[i] = sum == 0 ? 0 : (int) Math.min(room[i], (long) ((double) total * room[i] / sum));
+            left -= lengths[i];
+        }
+        // Rounding leftovers go wherever there is room
+        for (int i = 0; i < room.length && left > 0; i++) {
+            int extra = (int) Math.min(left, room[i] - lengths[i]);
+            lengths[i] += extra;
+            left -= extra;
+        }
+        return lengths;
+    }
+}
@@ -1,10 +1,21 @@
 package com.pixelcloak.core;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 public class Steganography {
 
+    // Bytes of the big-endian length prefix written in front of the message
+    static final int HEADER_BYTES = 4;
+
+    // Differing bytes closer than this are rewritten as one run by update: one call beats many tiny ones
+    private static final int RUN_GAP = 16;
+
     // Embeds the message string into the image
     public static BufferedImage embed(BufferedImage image, String message) {
         if (message == null || image == null) return null;
@@ -12,150 +23,497 @@ public class Steganography {
         byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
         int len = messageBytes.length;
 
-        // Check if image is big enough: 3 channels (RGB) * Width * Height = Total Bits Available
-        // We need 32 bits (header) + (message length * 8) bits
-        long requiredBits = 32L + (len * 8L);
-        long availableBits = (long) image.getWidth() * image.getHeight() * 3;
-
-        if (requiredBits > availableBits) {
+        // Length prefix plus message, against the whole bytes the RGB LSBs can hold
+        if (HEADER_BYTES + (long) len > LsbEngine.capacityBytes(image)) {
             throw new IllegalArgumentException("Text is too long for this image. Need larger image or shorter text.");
         }
 
-        // 4 bytes for length + message bytes
-        byte[] dataToHide = new byte[4 + len];
+        // Length in the first 4 bytes, message bytes right after; no combined copy needed
+        byte[] lengthBytes = {(byte) (len >> 24), (byte) (len >> 16), (byte) (len >> 8), (byte) len};
 
-        // Encode length in first 4 bytes
-        dataToHide[0] = (byte) ((len >> 24) & 0xFF);
-        dataToHide[1] = (byte) ((len >> 16) & 0xFF);
-        dataToHide[2] = (byte) ((len >> 8) & 0xFF);
-        dataToHide[3] = (byte) (len & 0xFF);
+        BufferedImage newImage = LsbEngine.copyToIntRgb(image);
+        LsbEngine.embed(newImage, 0, lengthBytes, 0, HEADER_BYTES);
+        LsbEngine.embed(newImage, HEADER_BYTES, messageBytes, 0, len);
+        return newImage;
+    }
 
-        System.arraycopy(messageBytes, 0, dataToHide, 4, len);
+    /**
+     * Embeds a binary PixelCloak envelope, header first. The body follows the header, packed in the
+     * envelope's EmbeddingMode, or with a TexturePlacement goes into the textured tiles in the order
+     * seeded when the envelope was sealed. Any mode other than the default keeps the carrier's
+     * transparency, changing alpha only if the mode writes to it.
+     */
+    public static BufferedImage embed(BufferedImage image, Envelope envelope) {
+        if (envelope == null || image == null) return null;
+
+        checkCarrier(PixelStore.of(image), envelope);
+        BufferedImage newImage = copyFor(image, envelope);
+        embedInto(PixelStore.of(newImage), envelope);
+        return newImage;
+    }
 
-        return embedBytes(image, dataToHide);
+    // The checks that need no copy of the carrier: mode channels and sequential capacity
+    private static void checkCarrier(PixelStore image, Envelope envelope) {
+        checkMode(image, envelope);
+        if (envelope.getPlacement() == null && envelope.getBodyLength() > bodyCapacityBytes(image.pixelCount(), envelope)) {
+            throw new IllegalArgumentException("Text is too long for this image. Need larger image or shorter text.");
+        }
     }
 
-    // Extracts the message string from the image
-    public static String extract(BufferedImage image) {
-        if (image == null) return null;
+    // Header and body into a writable carrier; a texture map is taken from it, as that is what the reader will see
+    private static void embedInto(PixelStore target, Envelope envelope) {
+        byte[] header = envelope.header();
+        TexturePlacement placement = envelope.getPlacement();
+        if (placement == null) {
+            LsbEngine.embed(target, 0, header, 0, header.length);
+            embedBody(target, envelope, 0, envelope.getBody(), 0, envelope.getBodyLength());
+            return;
+        }
+
+        TexturePlacement.Layout layout = placementLayout(target, envelope);
+        if (header.length > placement.headerCapacityBytes(target) || envelope.getBodyLength() > layout.capacityBytes()) {
+            throw new IllegalArgumentException("Text is too long for the textured area of this image. Need a busier image or shorter text.");
+        }
+        LsbEngine.embed(target, 0, header, 0, header.length);
+        layout.embed(target, 0, envelope.getBody(), 0, envelope.getBodyLength());
+    }
 
-        // 1. Extract the length header (first 32 bits / 4 bytes)
-        byte[] lengthBytes = extractBytes(image, 4);
-        if (lengthBytes == null) return null;
+    /**
+     * Re-embeds an envelope into a stego image in place, for saving an edited entry again without
+     * copying the carrier. The bytes the image already holds at the new positions are read first,
+     * and only runs that differ are written. The rows those runs touch are returned, so
+     * {@link PngWriter.Encoded#update} recompresses just their strips. 'stego' must be a packed
+     * image as returned by embed. As when embedding over a loaded stego image, a body shorter
+     * than the last one leaves the rest of the old one in place.
+     */
+    public static DirtyRows update(BufferedImage stego, Envelope envelope) {
+        if (LsbEngine.packedPixels(stego) == null) {
+            throw new IllegalArgumentException("Only an image returned by embed can be updated in place.");
+        }
+        PixelStore pixels = PixelStore.of(stego);
+        checkCarrier(pixels, envelope);
+
+        DirtyRows dirty = new DirtyRows(stego.getWidth(), stego.getHeight());
+        byte[] header = envelope.header();
+        byte[] body = envelope.getBody();
+        int bodyLength = envelope.getBodyLength();
+        TexturePlacement placement = envelope.getPlacement();
+        EmbeddingMode mode = envelope.getMode();
+
+        if (placement != null) {
+            TexturePlacement.Layout layout = placementLayout(pixels, envelope);
+            if (header.length > placement.headerCapacityBytes(pixels) || bodyLength > layout.capacityBytes()) {
+                throw new IllegalArgumentException("Text is too long for the textured area of this image. Need a busier image or shorter text.");
+            }
+            rewriteStream(pixels, 0, header, header.length, dirty);
+            rewrite(body, bodyLength,
+                    (pos, b, off, len) -> layout.extract(pixels, pos, b, off, len),
+                    (pos, b, off, len) -> layout.embed(pixels, pos, b, off, len),
+                    (pos, len) -> layout.markRows(dirty, pos, len));
+        } else if (mode == null) {
+            rewriteStream(pixels, 0, header, header.length, dirty);
+            rewriteStream(pixels, header.length, body, bodyLength, dirty);
+        } else {
+            rewriteStream(pixels, 0, header, header.length, dirty);
+            long start = bodyStart(envelope);
+            PixelPermutation order = pixelOrder(envelope, pixels.pixelCount());
+            rewrite(body, bodyLength,
+                    (pos, b, off, len) -> mode.extract(pixels, start, order, pos, b, off, len),
+                    (pos, b, off, len) -> mode.embed(pixels, start, order, pos, b, off, len),
+                    (pos, len) -> mode.markRows(dirty, start, order, pos, len));
+        }
+        return dirty;
+    }
 
-        int len = ((lengthBytes[0] & 0xFF) << 24) |
-                ((lengthBytes[1] & 0xFF) << 16) |
-                ((lengthBytes[2] & 0xFF) << 8) |
-                (lengthBytes[3] & 0xFF);
+    private interface ByteRange {
+        void apply(long pos, byte[] b, int off, int len);
+    }
 
-        // Safety check: Don't try to allocate massive arrays if reading garbage
-        if (len < 0 || len > image.getWidth() * image.getHeight() * 3 / 8) {
-            // This usually happens if you try to "reveal" an image that has no secret data
-            return null;
+    private interface RowMarker {
+        void mark(long pos, int len);
+    }
+
+    // Writes data[0, len) where it differs from what 'read' finds at the same positions
+    private static void rewrite(byte[] data, int len, ByteRange read, ByteRange write, RowMarker mark) {
+        byte[] old = new byte[len];
+        read.apply(0, old, 0, len);
+        int i = 0;
+        while (i < len) {
+            if (old[i] == data[i]) {
+                i++;
+                continue;
+            }
+            int last = i;
+            for (int j = i + 1; j < len && j - last <= RUN_GAP; j++) {
+                if (old[j] != data[j]) last = j;
+            }
+            write.apply(i, data, i, last + 1 - i);
+            mark.mark(i, last + 1 - i);
+            i = last + 1;
         }
+    }
+
+    // Same for bytes in the sequential LSB stream from stream byte 'at'
+    private static void rewriteStream(PixelStore stego, long at, byte[] data, int len, DirtyRows dirty) {
+        rewrite(data, len,
+                (pos, b, off, n) -> LsbEngine.extract(stego, at + pos, b, off, n),
+                (pos, b, off, n) -> LsbEngine.embed(stego, at + pos, b, off, n),
+                (pos, n) -> {
+                    long first = (at + pos) * 8 / LsbEngine.BITS_PER_PIXEL;
+                    dirty.markPixels(first, LsbEngine.pixelsFor(at + pos + n) - first);
+                });
+    }
+
+    // Body bytes 'placement' can hide in this image, from its texture rather than its pixel count
+    public static long textureCapacityBytes(BufferedImage image, TexturePlacement placement) {
+        return placement.capacityBytes(PixelStore.of(LsbEngine.copyToIntRgb(image)));
+    }
+
+    // For a carrier that is embedded in place, such as a MappedImage
+    public static long textureCapacityBytes(PixelStore image, TexturePlacement placement) {
+        return placement.capacityBytes(image);
+    }
 
-        // 2. Extract the actual message content
-        // We read (4 + len) bytes to keep offsets simple, then substring the result
-        byte[] allData = extractBytes(image, 4 + len);
-        if (allData == null) return null;
+    // Body bytes that fit after this envelope's header, in its mode; for placed bodies see textureCapacityBytes
+    public static long bodyCapacityBytes(BufferedImage image, Envelope envelope) {
+        return bodyCapacityBytes((long) image.getWidth() * image.getHeight(), envelope);
+    }
 
-        return new String(allData, 4, len, StandardCharsets.UTF_8);
+    static long bodyCapacityBytes(long pixels, Envelope envelope) {
+        EmbeddingMode mode = envelope.getMode();
+        if (mode == null) return pixels * LsbEngine.BITS_PER_PIXEL / 8 - envelope.headerLength();
+        return mode.capacityBytes(Math.max(0, pixels - bodyStart(envelope)));
     }
 
-    private static BufferedImage embedBytes(BufferedImage image, byte[] data) {
-        int width = image.getWidth();
-        int height = image.getHeight();
+    // First pixel of a body in a non-default mode: the header keeps the default layout, the body
+    // starts on the next whole pixel
+    private static long bodyStart(Envelope envelope) {
+        return LsbEngine.pixelsFor(envelope.headerLength());
+    }
 
-        int dataIndex = 0;
-        int bitIndex = 0; // 0 to 7
+    private static void checkMode(PixelStore image, Envelope envelope) {
+        EmbeddingMode mode = envelope.getMode();
+        if (mode != null && !mode.fits(image)) {
+            throw new IllegalArgumentException("This mode hides data in transparency. Use an image with an alpha channel.");
+        }
+    }
 
-        // Use a copy of the image to avoid modifying the original UI reference unexpectedly
-        BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        // Note: For simplicity in this specific project, we can modify in place,
-        // but creating a copy is often safer for "Undo" functionality.
-        // If you prefer modifying the original, just remove the line above and 'Graphics' copy below.
+    // Any non-default mode keeps a transparent carrier's alpha as it is; only the default layout gets
+    // the opaque legacy copy, which is what readers of that format have always been given
+    private static BufferedImage copyFor(BufferedImage image, Envelope envelope) {
+        return envelope.getMode() != null && image.getColorModel().hasAlpha()
+                ? LsbEngine.copyToIntArgb(image) : LsbEngine.copyToIntRgb(image);
+    }
 
-        java.awt.Graphics g = newImage.getGraphics();
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
+    private static void embedBody(PixelStore target, Envelope envelope, long pos, byte[] b, int off, int len) {
+        EmbeddingMode mode = envelope.getMode();
+        if (mode == null) {
+            LsbEngine.embed(target, envelope.headerLength() + pos, b, off, len);
+        } else {
+            mode.embed(target, bodyStart(envelope), pixelOrder(envelope, target.pixelCount()), pos, b, off, len);
+        }
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (dataIndex >= data.length) return newImage;
+    private static void extractBody(PixelStore image, Envelope envelope, long pos, byte[] b, int off, int len) {
+        EmbeddingMode mode = envelope.getMode();
+        if (mode == null) {
+            LsbEngine.extract(image, envelope.headerLength() + pos, b, off, len);
+        } else {
+            mode.extract(image, bodyStart(envelope), pixelOrder(envelope, image.pixelCount()), pos, b, off, len);
+        }
+    }
 
-                int pixel = newImage.getRGB(x, y);
+    // Body pixel order of a scattered mode over the pixels after the header, else null; O(1) to
+    // build, it needs only the seed set from the envelope's key
+    private static PixelPermutation pixelOrder(Envelope envelope, long pixels) {
+        if (!envelope.getMode().isScattered()) return null;
+        Long seed = envelope.getPlacementSeed();
+        if (seed == null) {
+            throw new IllegalStateException("This entry is scattered by key. Unlock it with its password first.");
+        }
+        return new PixelPermutation(seed, Math.max(0, pixels - bodyStart(envelope)));
+    }
 
-                // Extract channels
-                int red   = (pixel >> 16) & 0xFF;
-                int green = (pixel >> 8) & 0xFF;
-                int blue  = pixel & 0xFF;
+    // Embeds raw bytes from 'payload' as they are read; the stream is consumed but not closed
+    public static BufferedImage embed(BufferedImage image, InputStream payload) throws IOException {
+        if (payload == null || image == null) return null;
 
-                // Embed in Red, then Green, then Blue
-                for (int i = 0; i < 3; i++) {
-                    if (dataIndex < data.length) {
-                        // Get the specific bit from our data byte (MSB first)
-                        int bit = (data[dataIndex] >> (7 - bitIndex)) & 1;
+        StegoOutputStream out = new StegoOutputStream(image);
+        try (out) {
+            payload.transferTo(out);
+        }
+        return out.getImage();
+    }
 
-                        // Modify the LSB of the color channel
-                        if (i == 0) red   = (red   & 0xFE) | bit;
-                        if (i == 1) green = (green & 0xFE) | bit;
-                        if (i == 2) blue  = (blue  & 0xFE) | bit;
+    /**
+     * Writes an envelope body into a copy of the carrier as it is produced, starting right after
+     * the header. The header, with the final body length, is embedded when the stream is closed.
+     */
+    public static StegoOutputStream openEnvelope(BufferedImage image, Envelope envelope) {
+        TexturePlacement placement = envelope.getPlacement();
+        PixelStore source = PixelStore.of(image);
+        checkMode(source, envelope);
+        long headerCapacity = placement != null ? placement.headerCapacityBytes(source) : LsbEngine.capacityBytes(source);
+        if (envelope.headerLength() > headerCapacity) {
+            throw new IllegalArgumentException("Text is too long for this image. Need larger image or shorter text.");
+        }
+        return new StegoOutputStream(copyFor(image, envelope), envelope.headerLength()) {
+            private final PixelStore target = PixelStore.of(getImage());
+            // Resolved on the first flush: the seed is set once the encrypting stream has its key
+            private TexturePlacement.Layout layout;
+
+            @Override
+            protected long bodyCapacity() {
+                return placement == null ? bodyCapacityBytes(target.pixelCount(), envelope) : layout().capacityBytes();
+            }
 
-                        bitIndex++;
-                        if (bitIndex == 8) {
-                            bitIndex = 0;
-                            dataIndex++;
-                        }
-                    }
+            @Override
+            protected void writeBody(long pos, byte[] b, int off, int len) {
+                if (placement == null) {
+                    embedBody(target, envelope, pos, b, off, len);
+                } else {
+                    layout().embed(target, pos, b, off, len);
                 }
+            }
 
-                // Pack colors back into pixel (Alpha is forced to 255/opaque for RGB images)
-                int newPixel = (0xFF << 24) | (red << 16) | (green << 8) | blue;
-                newImage.setRGB(x, y, newPixel);
+            private TexturePlacement.Layout layout() {
+                if (layout == null) layout = placementLayout(target, envelope);
+                return layout;
             }
+
+            @Override
+            protected void writeHeader(long length) throws IOException {
+                if (length > Integer.MAX_VALUE) throw new IOException("Payload is too long for one envelope.");
+                envelope.setBodyLength((int) length);
+                byte[] header = envelope.header();
+                LsbEngine.embed(target, 0, header, 0, header.length);
+            }
+        };
+    }
+
+    /**
+     * Encrypts 'payload' segment by segment while embedding it, so memory stays flat for large
+     * attachments. A textured layout only touches the carrier's textured tiles; alpha modes need a
+     * carrier with an alpha channel.
+     */
+    public static BufferedImage embedEncrypted(BufferedImage image, InputStream payload, char[] password,
+                                               Envelope.BodyLayout layout) throws Exception {
+        Envelope envelope = AESCrypto.newStreamEnvelope(layout);
+        StegoOutputStream out = openEnvelope(image, envelope);
+        try (OutputStream encrypting = AESCrypto.encryptingStream(out, envelope, password)) {
+            payload.transferTo(encrypting);
         }
-        return newImage;
+        return out.getImage();
+    }
+
+    public static BufferedImage embedEncrypted(BufferedImage image, InputStream payload, Session session,
+                                               Envelope.BodyLayout layout) throws Exception {
+        Envelope envelope = AESCrypto.newStreamEnvelope(session, layout);
+        StegoOutputStream out = openEnvelope(image, envelope);
+        try (OutputStream encrypting = AESCrypto.encryptingStream(out, envelope, session)) {
+            payload.transferTo(encrypting);
+        }
+        return out.getImage();
+    }
+
+    // Extracts the message string from the image
+    public static String extract(BufferedImage image) {
+        if (image == null) return null;
+
+        // 1. Decode the length header (first 32 bits / 11 pixels)
+        int len = readLength(image);
+        if (len < 0) return null;
+
+        // 2. Read only the pixels that carry the message, straight after the header
+        byte[] messageBytes = new byte[len];
+        LsbEngine.extract(image, HEADER_BYTES, messageBytes, 0, len);
+
+        return new String(messageBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a PixelCloak envelope, or returns null if the image does not carry one. A body placed by
+     * texture can only be found with the key: use the password or session overloads for those.
+     */
+    public static Envelope extractEnvelope(BufferedImage image) {
+        if (image == null) return null;
+        PixelStore pixels = PixelStore.of(image);
+        Envelope envelope = readEnvelopeHeader(pixels);
+        if (envelope == null) return null;
+        readEnvelopeBody(pixels, envelope);
+        return envelope;
     }
 
-    private static byte[] extractBytes(BufferedImage image, int lengthToRead) {
-        byte[] data = new byte[lengthToRead];
-        int width = image.getWidth();
-        int height = image.getHeight();
+    // Reads an envelope, deriving its placement seed from the password when the body is placed by texture
+    public static Envelope extractEnvelope(BufferedImage image, char[] password) throws Exception {
+        return image == null ? null : extractEnvelope(PixelStore.of(image), password);
+    }
 
-        int dataIndex = 0;
-        int bitIndex = 0;
-        int currentByte = 0;
+    public static Envelope extractEnvelope(BufferedImage image, Session session) throws Exception {
+        return image == null ? null : extractEnvelope(PixelStore.of(image), session);
+    }
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                if (dataIndex >= lengthToRead) return data;
+    // Same on any pixel store, such as a MappedImage
+    public static Envelope extractEnvelope(PixelStore image, char[] password) throws Exception {
+        Envelope envelope = readEnvelopeHeader(image);
+        if (envelope == null) return null;
+        AESCrypto.unlockPlacement(envelope, password);
+        readEnvelopeBody(image, envelope);
+        return envelope;
+    }
 
-                int pixel = image.getRGB(x, y);
-                int red   = (pixel >> 16) & 0xFF;
-                int green = (pixel >> 8) & 0xFF;
-                int blue  = pixel & 0xFF;
+    public static Envelope extractEnvelope(PixelStore image, Session session) throws Exception {
+        Envelope envelope = readEnvelopeHeader(image);
+        if (envelope == null) return null;
+        AESCrypto.unlockPlacement(envelope, session);
+        readEnvelopeBody(image, envelope);
+        return envelope;
+    }
 
-                int[] channels = {red, green, blue};
+    private static void readEnvelopeBody(PixelStore image, Envelope envelope) {
+        byte[] body = new byte[envelope.getBodyLength()];
+        if (envelope.getPlacement() == null) {
+            extractBody(image, envelope, 0, body, 0, body.length);
+        } else {
+            placementLayout(image, envelope).extract(image, 0, body, 0, body.length);
+        }
+        envelope.setBody(body);
+    }
 
-                for (int i = 0; i < 3; i++) {
-                    if (dataIndex < lengthToRead) {
-                        // Extract LSB
-                        int bit = channels[i] & 1;
+    // Decodes and checks only the envelope header (a few dozen pixels); null if this is not a PixelCloak image
+    public static Envelope readEnvelopeHeader(BufferedImage image) {
+        return image == null ? null : readEnvelopeHeader(PixelStore.of(image));
+    }
 
-                        // Shift current byte and add new bit
-                        currentByte = (currentByte << 1) | bit;
-                        bitIndex++;
+    public static Envelope readEnvelopeHeader(PixelStore image) {
+        long capacity = LsbEngine.capacityBytes(image);
+        if (capacity < Envelope.PREFIX_BYTES) return null;
+
+        // 1. Magic, version and header length
+        byte[] prefix = new byte[Envelope.PREFIX_BYTES];
+        LsbEngine.extract(image, 0, prefix, 0, prefix.length);
+        int headerLength = Envelope.announcedHeaderLength(prefix);
+        if (headerLength < 0 || headerLength > capacity) return null;
+
+        // 2. Rest of the header, checked against its CRC
+        byte[] header = Arrays.copyOf(prefix, headerLength);
+        LsbEngine.extract(image, prefix.length, header, prefix.length, headerLength - prefix.length);
+        Envelope envelope = Envelope.parseHeader(header);
+        if (envelope == null || envelope.getBodyLength() > bodyCapacityBytes(image.pixelCount(), envelope)) return null;
+        // A body in the alpha channel cannot have survived a save without one
+        if (envelope.getMode() != null && !envelope.getMode().fits(image)) return null;
+        return envelope;
+    }
 
-                        if (bitIndex == 8) {
-                            data[dataIndex] = (byte) currentByte;
-                            dataIndex++;
-                            bitIndex = 0;
-                            currentByte = 0;
-                        }
-                    }
+    // Stream over an envelope's body, as located by readEnvelopeHeader
+    public static StegoInputStream openEnvelopeBody(BufferedImage image, Envelope envelope) {
+        if (envelope.getPlacement() == null && envelope.getMode() == null) {
+            return new StegoInputStream(image, envelope.headerLength(), envelope.getBodyLength());
+        }
+        PixelStore pixels = PixelStore.of(image);
+        if (envelope.getPlacement() == null) {
+            return new StegoInputStream(image, envelope.headerLength(), envelope.getBodyLength()) {
+                @Override
+                protected void readBody(long pos, byte[] b, int off, int len) {
+                    extractBody(pixels, envelope, pos, b, off, len);
                 }
+            };
+        }
+        return new StegoInputStream(image, envelope.headerLength(), envelope.getBodyLength()) {
+            // Resolved on the first read: the seed is set once the decrypting stream has its key
+            private TexturePlacement.Layout layout;
+
+            @Override
+            protected void readBody(long pos, byte[] b, int off, int len) {
+                if (layout == null) layout = placementLayout(pixels, envelope);
+                layout.extract(pixels, pos, b, off, len);
             }
+        };
+    }
+
+    // Tile order of an envelope's placement in 'image'; needs the seed set from the envelope's key
+    private static TexturePlacement.Layout placementLayout(PixelStore image, Envelope envelope) {
+        Long seed = envelope.getPlacementSeed();
+        if (seed == null) {
+            throw new IllegalStateException("This entry is placed by texture. Unlock it with its password first.");
+        }
+        return envelope.getPlacement().layout(image, seed);
+    }
+
+    // --- Carriers held off-heap (MappedImage), for images too large to decode twice ---
+
+    /**
+     * Embeds a sealed envelope into a large PNG without decoding it onto the heap: the pixels are
+     * mapped from a temporary file, changed in place and encoded to 'target' row by row.
+     */
+    public static void embed(Path source, Path target, Envelope envelope) throws IOException {
+        try (MappedImage image = MappedImage.readPng(source)) {
+            embed(image, envelope);
+            image.writePng(target);
+        }
+    }
+
+    // Embeds an envelope in place; same layout and checks as embed(BufferedImage, Envelope)
+    public static void embed(MappedImage image, Envelope envelope) {
+        checkCarrier(image, envelope);
+        embedInto(image, envelope);
+    }
+
+    /**
+     * Decrypts a payload written by embedEncrypted into 'sink' and returns its size, or -1 if the
+     * image carries no envelope. Segments are verified as they are read, so tampering stops the
+     * copy at the first bad segment with an IOException.
+     */
+    public static long extractDecrypted(BufferedImage image, OutputStream sink, char[] password) throws Exception {
+        Envelope envelope = readEnvelopeHeader(image);
+        if (envelope == null) return -1;
+        try (InputStream in = AESCrypto.decryptingStream(openEnvelopeBody(image, envelope), envelope, password)) {
+            return in.transferTo(sink);
+        }
+    }
+
+    public static long extractDecrypted(BufferedImage image, OutputStream sink, Session session) throws Exception {
+        Envelope envelope = readEnvelopeHeader(image);
+        if (envelope == null) return -1;
+        try (InputStream in = AESCrypto.decryptingStream(openEnvelopeBody(image, envelope), envelope, session)) {
+            return in.transferTo(sink);
+        }
+    }
+
+    // Copies the hidden payload into 'sink' and returns its size, or -1 if the image carries none
+    public static long extract(BufferedImage image, OutputStream sink) throws IOException {
+        StegoInputStream in = openPayload(image);
+        if (in == null) return -1;
+        return in.transferTo(sink);
+    }
+
+    // Stream over the hidden payload, or null if the image carries none
+    public static StegoInputStream openPayload(BufferedImage image) {
+        if (image == null) return null;
+
+        int len = readLength(image);
+        if (len < 0) return null;
+        return new StegoInputStream(image, HEADER_BYTES, len);
+    }
+
+    // Decodes the length prefix, or returns -1 if it cannot describe a payload in this image
+    private static int readLength(BufferedImage image) {
+        long capacity = LsbEngine.capacityBytes(image);
+        if (capacity < HEADER_BYTES) return -1;
+
+        byte[] lengthBytes = new byte[HEADER_BYTES];
+        LsbEngine.extract(image, 0, lengthBytes, 0, HEADER_BYTES);
+
+        int len = ((lengthBytes[0] & 0xFF) << 24) |
+                ((lengthBytes[1] & 0xFF) << 16) |
+                ((lengthBytes[2] & 0xFF) << 8) |
+                (lengthBytes[3] & 0xFF);
+
+        // Safety check: Don't try to allocate massive arrays if reading garbage.
+        // This usually happens if you try to "reveal" an image that has no secret data.
+        if (len < 0 || len > capacity - HEADER_BYTES) {
+            return -1;
         }
-        return data;
+        return len;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a payload back out of the carrier's LSBs without materialising it as one array.
+ * Obtained from {@link Steganography#openPayload(BufferedImage)}.
+ */
+public class StegoInputStream extends InputStream {
+
+    // Multiple of 3 bytes so every refill starts on an 8-pixel group
+    private static final int BUFFER_BYTES = 3 * 4096;
+
+    private final BufferedImage image;
+    private final long start;
+    private final long end;
+    private final long length;
+    private byte[] buffer;
+    private int bufferPos;
+    private int bufferLen;
+    private long position;
+
+    StegoInputStream(BufferedImage image, long start, long length) {
+        this.image = image;
+        this.start = start;
+        this.position = start;
+        this.end = start + length;
+        this.length = length;
+    }
+
+    // Total payload size declared by the header
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (bufferPos == bufferLen && !fill()) return -1;
+        return buffer[bufferPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (bufferPos < bufferLen) {
+            int n = Math.min(len, bufferLen - bufferPos);
+            System.arraycopy(buffer, bufferPos, b, off, n);
+            bufferPos += n;
+            return n;
+        }
+        if (position >= end) return -1;
+
+        // Large reads go straight from the pixels into the caller's array
+        int n = (int) Math.min(len, end - position);
+        readBody(position - start, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, bufferLen - bufferPos + end - position);
+    }
+
+    // Reads payload bytes from payload offset 'pos'; by default they follow 'start' in the LSB stream
+    protected void readBody(long pos, byte[] b, int off, int len) {
+        LsbEngine.extract(image, start + pos, b, off, len);
+    }
+
+    private boolean fill() {
+        if (position >= end) return false;
+        if (buffer == null) buffer = new byte[BUFFER_BYTES];
+        bufferLen = (int) Math.min(buffer.length, end - position);
+        readBody(position - start, buffer, 0, bufferLen);
+        position += bufferLen;
+        bufferPos = 0;
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.pixelcloak.core;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a binary payload straight into the LSBs of a copy of the carrier as it is produced.
+ *
+ * Bytes are staged in a small group-aligned buffer and flushed into the pixels, so the only
+ * large allocation is the carrier copy itself. The 4-byte length prefix used by
+ * {@link Steganography} is filled in on {@link #close()}, once the payload size is known.
+ */
+public class StegoOutputStream extends OutputStream {
+
+    // Multiple of 3 bytes so every flush starts on an 8-pixel group
+    private static final int BUFFER_BYTES = 3 * 4096;
+
+    private final BufferedImage target;
+    private final long capacity;
+    private final long start;
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int buffered;
+    private long position;
+    private boolean closed;
+
+    public StegoOutputStream(BufferedImage carrier) {
+        this(LsbEngine.copyToIntRgb(carrier), Steganography.HEADER_BYTES);
+    }
+
+    // Writes into 'target' (a copyToIntRgb image) from stream byte 'start'; bytes before it are left to the caller
+    StegoOutputStream(BufferedImage target, long start) {
+        this.target = target;
+        this.capacity = LsbEngine.capacityBytes(target);
+        this.start = start;
+        this.position = start;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (buffered == buffer.length) flushBuffer();
+        buffer[buffered++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (buffered == buffer.length) flushBuffer();
+            int n = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        flushBuffer();
+    }
+
+    // Payload bytes written so far
+    public long size() {
+        return position + buffered - start;
+    }
+
+    // The carrier copy; complete once the stream is closed
+    public BufferedImage getImage() {
+        return target;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        flushBuffer();
+        closed = true;
+        writeHeader(size());
+    }
+
+    // Called once on close with the final payload size
+    protected void writeHeader(long length) throws IOException {
+        int len = (int) length;
+        byte[] header = {(byte) (len >> 24), (byte) (len >> 16), (byte) (len >> 8), (byte) len};
+        LsbEngine.embed(target, 0, header, 0, header.length);
+    }
+
+    // Payload bytes the carrier has room for
+    protected long bodyCapacity() {
+        return capacity - start;
+    }
+
+    // Writes payload bytes from payload offset 'pos'; by default they follow 'start' in the LSB stream
+    protected void writeBody(long pos, byte[] b, int off, int len) {
+        LsbEngine.embed(target, start + pos, b, off, len);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffered == 0) return;
+        if (position - start + buffered > bodyCapacity()) {
+            throw new IOException("Payload is too long for this image. Need larger image or smaller payload.");
+        }
+        writeBody(position - start, buffer, 0, buffered);
+        position += buffered;
+        buffered = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,130 @@
+package com.pixelcloak.core;
+
+import java.util.stream.IntStream;
+
+/**
+ * Local texture of an image: luminance entropy and variance per square tile, from one pass over
+ * the pixels (tile rows run in parallel).
+ *
+ * Only whole tiles are measured; the right and bottom edges that do not fill a tile are left out.
+ * Luminance is taken with the channel LSBs cleared, so embedding into an image never changes its
+ * map and the reader rebuilds exactly the map the writer used.
+ */
+public final class TextureMap {
+
+    // Luminance levels folded into one histogram bin; 32 bins keep a 16x16 tile's histogram meaningful
+    private static final int BIN_SHIFT = 3;
+    private static final int BINS = 256 >> BIN_SHIFT;
+
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final float[] entropy;
+    private final float[] variance;
+
+    private TextureMap(int tileSize, int tilesX, int tilesY, float[] entropy, float[] variance) {
+        this.tileSize = tileSize;
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.entropy = entropy;
+        this.variance = variance;
+    }
+
+    // Only one tile row of pixels per thread is copied out, unless the store is one packed array
+    public static TextureMap compute(PixelStore image, int tileSize) {
+        if (tileSize <= 0) throw new IllegalArgumentException("Tile size must be positive");
+
+        int width = image.getWidth();
+        int tilesX = width / tileSize;
+        int tilesY = image.getHeight() / tileSize;
+        int[] packed = image.packedPixels();
+        float[] entropy = new float[tilesX * tilesY];
+        float[] variance = new float[tilesX * tilesY];
+
+        IntStream.range(0, tilesY).parallel().forEach(ty -> {
+            int[] histograms = new int[tilesX * BINS];
+            long[] sums = new long[tilesX];
+            long[] squares = new long[tilesX];
+            int[] row = packed != null ? null : new int[tilesX * tileSize];
+
+            for (int y = ty * tileSize; y < (ty + 1) * tileSize; y++) {
+                int[] src = packed;
+                int off = y * width;
+                if (src == null) {
+                    image.read((long) y * width, row, 0, row.length);
+                    src = row;
+                    off = 0;
+                }
+                for (int tx = 0; tx < tilesX; tx++) {
+                    int bins = tx * BINS;
+                    long sum = 0, square = 0;
+                    for (int x = tx * tileSize, end = x + tileSize; x < end; x++) {
+                        int l = ImageAnalyzer.luminance(src[off + x] & 0xFEFEFE);
+                        histograms[bins + (l >> BIN_SHIFT)]++;
+                        sum += l;
+                        square += l * l;
+                    }
+                    sums[tx] += sum;
+                    squares[tx] += square;
+                }
+            }
+
+            double n = (double) tileSize * tileSize;
+            for (int tx = 0; tx < tilesX; tx++) {
+                double h = 0;
+                for (int b = tx * BINS; b < (tx + 1) * BINS; b++) {
+                    int count = histograms[b];
+                    if (count > 0) {
+                        double p = count / n;
+                        h -= p * Math.log(p);
+                    }
+                }
+                double mean = sums[tx] / n;
+                int tile = ty * tilesX + tx;
+                entropy[tile] = (float) (h / Math.log(2));
+                variance[tile] = (float) (squares[tx] / n - mean * mean);
+            }
+        });
+        return new TextureMap(tileSize, tilesX, tilesY, entropy, variance);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int tileCount() {
+        return entropy.length;
+    }
+
+    // Shannon entropy (bits, 0..5) of the tile's 32-level luminance histogram; tiles are row-major
+    public double entropy(int tile) {
+        return entropy[tile];
+    }
+
+    // Variance of the tile's luminance (0..255 scale)
+    public double variance(int tile) {
+        return variance[tile];
+    }
+
+    public boolean isTextured(int tile, double minEntropy, double minVariance) {
+        return entropy[tile] >= minEntropy && variance[tile] >= minVariance;
+    }
+
+    // Share of tiles (0..1) that pass both thresholds
+    public double texturedFraction(double minEntropy, double minVariance) {
+        if (entropy.length == 0) return 0;
+        int count = 0;
+        for (int tile = 0; tile < entropy.length; tile++) {
+            if (isTextured(tile, minEntropy, minVariance)) count++;
+        }
+        return (double) count / entropy.length;
+    }
+}
@@ -0,0 +1,236 @@
+package com.pixelcloak.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Puts an envelope body only into the textured tiles of a carrier, so a flat sky or wall keeps
+ * its original LSBs whatever the global entropy says.
+ *
+ * Tiles come from a {@link TextureMap} of the carrier and qualify when both their local entropy
+ * and their variance reach the thresholds recorded in the envelope. The first tile row is left
+ * to the header, which is still read sequentially from the first pixels. The qualifying tiles
+ * are visited in a shuffled order seeded from the AES key (HKDF-SHA256, see {@link #seed(byte[])}),
+ * and each tile takes its share of the body in row-major pixel order, 3 bits per pixel as usual.
+ * Capacity is therefore the textured area, not the pixel count.
+ */
+public final class TexturePlacement {
+
+    // Placement id in the envelope's placement section
+    public static final int TEXTURED_TILES = 1;
+
+    public static final TexturePlacement DEFAULT = new TexturePlacement(16, 2.0, 16);
+
+    private static final int ENCODED_BYTES = 4;
+    private static final byte[] SEED_INFO = "PixelCloak placement v1".getBytes(StandardCharsets.US_ASCII);
+
+    private final int tileSize;
+    // Minimum entropy in 1/16 bit, as stored in the header
+    private final int minEntropy16;
+    private final int minVariance;
+
+    // tileSize: pixels per tile side, a multiple of 4 (so every tile holds whole 3-byte groups) up to 64
+    public TexturePlacement(int tileSize, double minEntropy, int minVariance) {
+        int minEntropy16 = (int) Math.round(minEntropy * 16);
+        if (tileSize < 4 || tileSize > 64 || tileSize % 4 != 0) {
+            throw new IllegalArgumentException("Tile size must be a multiple of 4 between 4 and 64");
+        }
+        if (minEntropy16 < 0 || minEntropy16 > 80) {
+            throw new IllegalArgumentException("Minimum entropy must be between 0 and 5 bits");
+        }
+        if (minVariance < 0 || minVariance > 255) {
+            throw new IllegalArgumentException("Minimum variance must be between 0 and 255");
+        }
+        this.tileSize = tileSize;
+        this.minEntropy16 = minEntropy16;
+        this.minVariance = minVariance;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public double getMinEntropy() {
+        return minEntropy16 / 16.0;
+    }
+
+    public int getMinVariance() {
+        return minVariance;
+    }
+
+    // Body bytes this placement can put into 'image' (a copy of it, as embedding works on one)
+    public long capacityBytes(PixelStore image) {
+        return (long) usableTiles(TextureMap.compute(image, tileSize)).length * tileBytes();
+    }
+
+    // Envelope header bytes that fit in the first tile row, which is kept free for the header
+    public long headerCapacityBytes(PixelStore image) {
+        return Math.min(LsbEngine.capacityBytes(image), (long) tileSize * image.getWidth() * LsbEngine.BITS_PER_PIXEL / 8);
+    }
+
+    // Tile order of 'image' for the given key-derived seed
+    public Layout layout(PixelStore image, long seed) {
+        TextureMap map = TextureMap.compute(image, tileSize);
+        int[] tiles = usableTiles(map);
+
+        // Fisher-Yates with SplitMix64, so the order is fixed by the seed alone
+        long state = seed;
+        for (int i = tiles.length - 1; i > 0; i--) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            int j = (int) (((z >>> 32) * (i + 1)) >>> 32);
+            int t = tiles[i];
+            tiles[i] = tiles[j];
+            tiles[j] = t;
+        }
+        return new Layout(image.getWidth(), map.getTilesX(), tileSize, tiles);
+    }
+
+    // Placement seed for an AES key; the same key always gives the same order
+    static long seed(byte[] key) throws Exception {
+        byte[] okm = Hkdf.derive(key, null, SEED_INFO, 8);
+        long seed = 0;
+        for (byte b : okm) seed = (seed << 8) | (b & 0xFF);
+        Arrays.fill(okm, (byte) 0);
+        return seed;
+    }
+
+    // Textured tiles outside the header row, in row-major order
+    private int[] usableTiles(TextureMap map) {
+        double minEntropy = getMinEntropy();
+        return IntStream.range(map.getTilesX(), map.tileCount())
+                .filter(tile -> map.isTextured(tile, minEntropy, minVariance))
+                .toArray();
+    }
+
+    private int tileBytes() {
+        return tileSize * tileSize * LsbEngine.BITS_PER_PIXEL / 8;
+    }
+
+    // Placement section data: id, tile size, min entropy (1/16 bit), min variance
+    byte[] encode() {
+        return new byte[]{(byte) TEXTURED_TILES, (byte) tileSize, (byte) minEntropy16, (byte) minVariance};
+    }
+
+    // Parses a placement section, or returns null if it is not one we can lay out
+    static TexturePlacement decode(byte[] data) {
+        if (data.length != ENCODED_BYTES || (data[0] & 0xFF) != TEXTURED_TILES) return null;
+        try {
+            return new TexturePlacement(data[1] & 0xFF, (data[2] & 0xFF) / 16.0, data[3] & 0xFF);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "textured tiles " + tileSize + "x" + tileSize + ", entropy >= " + getMinEntropy()
+                + ", variance >= " + minVariance;
+    }
+
+    /**
+     * The body positions of one carrier: byte offset {@code i} of the body lives in tile
+     * {@code tiles[i / tileBytes]}. Same contract as the {@link LsbEngine} stream methods, with
+     * offsets counted from the start of the body.
+     */
+    public static final class Layout {
+
+        private interface TileBody {
+            void run(int tile, long within, int at, int len);
+        }
+
+        private final int width;
+        private final int tilesX;
+        private final int tileSize;
+        private final int tileBytes;
+        private final int[] tiles;
+
+        private Layout(int width, int tilesX, int tileSize, int[] tiles) {
+            this.width = width;
+            this.tilesX = tilesX;
+            this.tileSize = tileSize;
+            this.tileBytes = tileSize * tileSize * LsbEngine.BITS_PER_PIXEL / 8;
+            this.tiles = tiles;
+        }
+
+        public long capacityBytes() {
+            return (long) tiles.length * tileBytes;
+        }
+
+        // Writes data[off, off+len) at body offset 'pos'; each tile is read, changed and written back row by row
+        public void embed(PixelStore target, long pos, byte[] data, int off, int len) {
+            checkRange(pos, len);
+            forEachTile(pos, len, (tile, within, at, n) -> {
+                int[] buffer = readTile(target, tile);
+                LsbEngine.embed(buffer, 0, within, data, off + at, n);
+                long first = firstPixel(tile);
+                for (int r = 0; r < tileSize; r++) {
+                    target.write(first + (long) r * width, buffer, r * tileSize, tileSize);
+                }
+            });
+        }
+
+        // Reads 'len' body bytes from offset 'pos' into out[off, off+len)
+        public void extract(PixelStore image, long pos, byte[] out, int off, int len) {
+            checkRange(pos, len);
+            forEachTile(pos, len, (tile, within, at, n) ->
+                    LsbEngine.extract(readTile(image, tile), 0, within, out, off + at, n));
+        }
+
+        private int[] readTile(PixelStore image, int tile) {
+            int[] buffer = new int[tileSize * tileSize];
+            long first = firstPixel(tile);
+            for (int r = 0; r < tileSize; r++) {
+                image.read(first + (long) r * width, buffer, r * tileSize, tileSize);
+            }
+            return buffer;
+        }
+
+        // Marks the rows of the pixels that hold body bytes [pos, pos+len)
+        void markRows(DirtyRows rows, long pos, int len) {
+            if (len <= 0) return;
+            long end = pos + len;
+            for (int index = (int) (pos / tileBytes); index <= (int) ((end - 1) / tileBytes); index++) {
+                long tileStart = (long) index * tileBytes;
+                long from = Math.max(pos, tileStart) - tileStart;
+                long to = Math.min(end, tileStart + tileBytes) - tileStart;
+                // Pixels within the tile are row-major, tileSize to a row
+                int firstRow = (int) (from * 8 / LsbEngine.BITS_PER_PIXEL / tileSize);
+                int lastRow = (int) ((LsbEngine.pixelsFor(to) - 1) / tileSize);
+                int top = (int) (firstPixel(tiles[index]) / width);
+                rows.markRows(top + firstRow, top + lastRow + 1);
+            }
+        }
+
+        private long firstPixel(int tile) {
+            return (long) (tile / tilesX) * tileSize * width + (long) (tile % tilesX) * tileSize;
+        }
+
+        // Splits [pos, pos+len) at tile boundaries; tiles never share a pixel, so large runs go parallel
+        private void forEachTile(long pos, int len, TileBody body) {
+            if (len == 0) return;
+            long end = pos + len;
+            int firstIndex = (int) (pos / tileBytes);
+            int lastIndex = (int) ((end - 1) / tileBytes);
+
+            IntStream indexes = IntStream.rangeClosed(firstIndex, lastIndex);
+            if (len >= LsbEngine.getParallelThreshold()) indexes = indexes.parallel();
+            indexes.forEach(index -> {
+                long tileStart = (long) index * tileBytes;
+                long from = Math.max(pos, tileStart);
+                long to = Math.min(end, tileStart + tileBytes);
+                body.run(tiles[index], from - tileStart, (int) (from - pos), (int) (to - from));
+            });
+        }
+
+        private void checkRange(long pos, int len) {
+            if (pos < 0 || len < 0 || pos + len > capacityBytes()) {
+                throw new IllegalArgumentException("Data does not fit in the textured area of this image.");
+            }
+        }
+    }
+}
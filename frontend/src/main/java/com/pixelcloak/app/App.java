@@ -1,10 +1,18 @@
 package com.pixelcloak.app;
 
 import javax.swing.SwingUtilities;
+import com.pixelcloak.core.AESCrypto;
+import com.pixelcloak.core.KeyDerivation;
 import com.pixelcloak.ui.MainFrame;
 
 public class App {
     public static void main(String[] args) {
+        // e.g. -Dpixelcloak.kdf=argon2id:m=65536,t=3,p=1 or -Dpixelcloak.kdf=scrypt:target=500ms
+        String kdf = System.getProperty("pixelcloak.kdf");
+        if (kdf != null && !kdf.isBlank()) {
+            AESCrypto.setKeyDerivation(KeyDerivation.parse(kdf));
+        }
+
         SwingUtilities.invokeLater(()->{
             MainFrame frame = new MainFrame();
             frame.setVisible(true);
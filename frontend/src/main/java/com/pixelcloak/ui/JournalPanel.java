@@ -1,7 +1,15 @@
 package com.pixelcloak.ui;
 
 import com.pixelcloak.core.AESCrypto; 
+import com.pixelcloak.core.AnalysisResult;
+import com.pixelcloak.core.DirtyRows;
+import com.pixelcloak.core.Envelope;
+import com.pixelcloak.core.ImageAnalyzer;
+import com.pixelcloak.core.Journal;
+import com.pixelcloak.core.PngWriter;
+import com.pixelcloak.core.Session;
 import com.pixelcloak.core.Steganography;
+import com.pixelcloak.core.TexturePlacement;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -9,8 +17,9 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
 
 public class JournalPanel extends JPanel {
     // UI components
@@ -22,6 +31,13 @@ public class JournalPanel extends JPanel {
     // Logic data
     private BufferedImage currentImage;
     private File currentFile;
+    // Compressed strips of the last saved image; while it is still current, saving again rewrites it in place
+    private PngWriter.Encoded savedPng;
+    // Journal in the current image, once an entry has been added to it
+    private Journal journal;
+
+    // Login session; entries are sealed with its master key when the password field is left empty
+    private final Session session;
 
     // Theme Colors
     final Color BG_COLOR = new Color(40, 44, 52); // Dark Slate
@@ -30,8 +46,14 @@ public class JournalPanel extends JPanel {
     final Color SUCCESS_COLOR = new Color(152, 195, 121); // Soft Green
     final Color ERROR_COLOR = new Color(224, 108, 117); // Soft Red
 
-    @SuppressWarnings("unused")
     public JournalPanel() {
+        this(null, null);
+    }
+
+    // onLock: called by the "Lock" button to end the session; no button is shown when null
+    @SuppressWarnings("unused")
+    public JournalPanel(Session session, Runnable onLock) {
+        this.session = session;
         setLayout(new BorderLayout(15, 15));
         setBackground(BG_COLOR);
 
@@ -91,12 +113,20 @@ public class JournalPanel extends JPanel {
 
         JButton loadBtn = createStyledButton("Load Image");
         JButton saveBtn = createStyledButton("Hide and Save");
+        JButton journalBtn = createStyledButton("Add to Journal");
         JButton revealBtn = createStyledButton("Reveal Text");
 
         btnPanel.add(loadBtn);
         btnPanel.add(saveBtn);
+        btnPanel.add(journalBtn);
         btnPanel.add(revealBtn);
 
+        if (onLock != null) {
+            JButton lockBtn = createStyledButton("Lock");
+            lockBtn.addActionListener(e -> lock(onLock));
+            btnPanel.add(lockBtn);
+        }
+
         // Status bar
         statusLabel = new JLabel("Ready to load an Image and start");
         statusLabel.setForeground(Color.GRAY);
@@ -112,10 +142,22 @@ public class JournalPanel extends JPanel {
         // Event listeners
         loadBtn.addActionListener(e -> loadImage());
         saveBtn.addActionListener(e -> hideAndSave());
+        journalBtn.addActionListener(e -> addToJournal());
         revealBtn.addActionListener(e -> revealText());
     }
 
     // Helper to update status
+    // Drops everything this panel holds that was derived from a password, then ends the session
+    private void lock(Runnable onLock) {
+        if (journal != null) journal.close(); // Zeroes its master key when it owns one
+        journal = null;
+        savedPng = null;
+        currentImage = null;
+        currentFile = null;
+        textArea.setText("");
+        onLock.run();
+    }
+
     private void setStatus(String msg, Color color) {
         statusLabel.setText(msg);
         statusLabel.setForeground(color);
@@ -128,6 +170,9 @@ public class JournalPanel extends JPanel {
             try {
                 currentFile = chooser.getSelectedFile();
                 currentImage = ImageIO.read(currentFile);
+                savedPng = null;
+                if (journal != null) journal.close();
+                journal = null;
 
                 if (currentImage == null) {
                     throw new Exception("File is not a valid image.");
@@ -154,52 +199,66 @@ public class JournalPanel extends JPanel {
                 }
                 String text = textArea.getText();
                 char[] passwordChar = passField.getPassword();
+                boolean useSession = passwordChar.length == 0 && session != null;
 
-                if (text.isEmpty() || passwordChar.length == 0) {
+                if (text.isEmpty() || (passwordChar.length == 0 && !useSession)) {
                     throw new IllegalStateException("Text and Password needed.");
                 }
+                // A single entry written over the index would lose every journal entry
+                if (journal != null || Journal.isJournal(currentImage)) {
+                    throw new IllegalStateException("This image holds a journal. Use Add to Journal to save into it.");
+                }
 
                 setStatus("Analyzing Image Complexity...", ACCENT_COLOR);
 
-                // call the python analyzer
-                boolean isSafe = com.pixelcloak.core.ImageAnalyzer.isImageSafe(currentFile);
+                // Verdict and score from one analysis, cached per file: saving the same carrier again is free
+                AnalysisResult analysis = ImageAnalyzer.analyze(currentFile, currentImage);
 
-                if (!isSafe){
-                    throw new IllegalStateException("Image too simple. Hiding data here is risky");
+                if (analysis.isError()) {
+                    throw new IllegalStateException("Image analysis failed: " + analysis.getError());
                 }
-
-                // Prevent data overflow
-                long maxBytes = ((long) currentImage.getWidth() * currentImage.getHeight() * 3 / 8) - 4;
-                if (text.getBytes(StandardCharsets.UTF_8).length > maxBytes) {
-                    throw new IllegalStateException("Text too long for image uploaded.");
+                if (!analysis.isSafe()){
+                    throw new IllegalStateException("Image too simple. Hiding data here is risky");
                 }
 
                 //check score
 
                 // 1. Get the actual score
-                double score = com.pixelcloak.core.ImageAnalyzer.getEntropyScore(JournalPanel.this.currentFile);
+                double score = analysis.getScore();
 
                 // 2. Check logic (Threshold 4.5)
-                if (score < 4.5) {
+                if (score < ImageAnalyzer.SAFE_THRESHOLD) {
                     throw new IllegalStateException("Image too simple (Score: " + String.format("%.2f", score) + "). Needs > 4.5");
                 }
 
-                // 3. Show the score to the user!
-                setStatus("Analysis Passed! Score: " + String.format("%.2f", score), SUCCESS_COLOR);
-                
-                // Slight delay so user sees the score before encryption starts
-                Thread.sleep(1000); 
+                // 3. Show the score to the user along with the rest of the progress
+                String scoreText = "Score: " + String.format("%.2f", score);
 
-            
-                setStatus("Encrypting and Embedding...", ACCENT_COLOR);
+                setStatus("Encrypting and Embedding... (" + scoreText + ")", ACCENT_COLOR);
 
-                // FIXED: Passed both 'text' and 'passwordChar'
-                String encrypted = AESCrypto.encrypt(text, passwordChar);
+                // Binary envelope: no Base64 overhead, and reveal can recognise it before deriving a key
+                // Session entries use a per-entry HKDF subkey of the login master key, so no PBKDF2 runs here
+                // The body only goes into textured tiles, in an order derived from the entry key
+                Envelope envelope = useSession
+                        ? AESCrypto.encryptEnvelope(text, session, Envelope.BodyLayout.textured(TexturePlacement.DEFAULT))
+                        : AESCrypto.encryptEnvelope(text, passwordChar, Envelope.BodyLayout.textured(TexturePlacement.DEFAULT));
 
                 // Clear password from memory
                 Arrays.fill(passwordChar, ' ');
 
-                BufferedImage stegImage = Steganography.embed(currentImage, encrypted);
+                // Saving the image saved last time: flip only the bits that differ and recompress only
+                // the PNG strips holding them, instead of copying and re-encoding the whole carrier
+                BufferedImage stegImage;
+                if (savedPng != null) {
+                    stegImage = currentImage;
+                    DirtyRows dirty = Steganography.update(stegImage, envelope);
+                    savedPng.update(stegImage, dirty);
+                } else {
+                    stegImage = Steganography.embed(currentImage, envelope);
+                    // Lossless 8-bit RGB, deflated in parallel strips; much faster than ImageIO on big carriers
+                    savedPng = PngWriter.encode(stegImage, PngWriter.Options.DEFAULT);
+                    currentImage = stegImage;
+                }
 
                 JFileChooser chooser = new JFileChooser();
                 if (chooser.showSaveDialog(JournalPanel.this) == JFileChooser.APPROVE_OPTION) {
@@ -207,8 +266,7 @@ public class JournalPanel extends JPanel {
                     if (!output.getName().toLowerCase().endsWith(".png")) {
                         output = new File(output.getParent(), output.getName() + ".png");
                     }
-                    assert stegImage != null;
-                    ImageIO.write(stegImage, "png", output);
+                    savedPng.writeTo(output.toPath());
                     return output;
                 }
                 return null;
@@ -233,6 +291,110 @@ public class JournalPanel extends JPanel {
         }.execute();
     }
 
+    // Journal Logic: many dated entries in one image, each revealed on its own
+    private void addToJournal() {
+        new SwingWorker<File, Void>() {
+            @Override
+            protected File doInBackground() throws Exception {
+                if (currentImage == null) {
+                    throw new IllegalStateException("Please load an image first.");
+                }
+                String text = textArea.getText();
+                char[] passwordChar = passField.getPassword();
+                boolean useSession = passwordChar.length == 0 && session != null;
+
+                if (text.isEmpty() || (passwordChar.length == 0 && !useSession)) {
+                    throw new IllegalStateException("Text and Password needed.");
+                }
+
+                try {
+                    if (journal == null && Journal.isJournal(currentImage)) {
+                        // Only the index is decrypted; entries already in it are left alone
+                        setStatus("Opening journal...", ACCENT_COLOR);
+                        journal = useSession
+                                ? Journal.open(currentImage, session)
+                                : Journal.open(currentImage, passwordChar);
+                    } else if (journal == null) {
+                        setStatus("Analyzing Image Complexity...", ACCENT_COLOR);
+                        AnalysisResult analysis = ImageAnalyzer.analyze(currentFile, currentImage);
+                        if (analysis.isError()) {
+                            throw new IllegalStateException("Image analysis failed: " + analysis.getError());
+                        }
+                        if (!analysis.isSafe()) {
+                            throw new IllegalStateException("Image too simple. Hiding data here is risky");
+                        }
+                        journal = useSession
+                                ? Journal.create(currentImage, session, Journal.DEFAULT_SLOTS)
+                                : Journal.create(currentImage, passwordChar, Journal.DEFAULT_SLOTS);
+                        savedPng = null;
+                    }
+                } finally {
+                    // Clear password from memory
+                    Arrays.fill(passwordChar, ' ');
+                }
+
+                setStatus("Encrypting entry #" + (journal.entries().size() + 1) + "...", ACCENT_COLOR);
+                DirtyRows dirty = journal.append(text, Instant.now());
+
+                // Only the new entry and the index changed: recompress just their strips when we can
+                if (savedPng != null && currentImage == journal.getImage()) {
+                    savedPng.update(currentImage, dirty);
+                } else {
+                    currentImage = journal.getImage();
+                    savedPng = PngWriter.encode(currentImage, PngWriter.Options.DEFAULT);
+                }
+
+                JFileChooser chooser = new JFileChooser();
+                if (chooser.showSaveDialog(JournalPanel.this) == JFileChooser.APPROVE_OPTION) {
+                    File output = chooser.getSelectedFile();
+                    if (!output.getName().toLowerCase().endsWith(".png")) {
+                        output = new File(output.getParent(), output.getName() + ".png");
+                    }
+                    savedPng.writeTo(output.toPath());
+                    return output;
+                }
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    File savedFile = get();
+                    if (savedFile != null) {
+                        setStatus("Entry added! Saved to: " + savedFile.getName(), SUCCESS_COLOR);
+                    } else {
+                        setStatus("Save Canceled (the entry stays in the open image)", Color.GRAY);
+                    }
+                } catch (Exception e) {
+                    if (e.getCause() instanceof javax.crypto.AEADBadTagException) {
+                        setStatus("Access Denied: Wrong Password.", ERROR_COLOR);
+                    } else {
+                        String message = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+                        setStatus("Error: " + message, ERROR_COLOR);
+                    }
+                }
+            }
+        }.execute();
+    }
+
+    // Lets the user pick one journal entry (newest first) and decrypts only that one; null if canceled
+    private String revealJournalEntry(boolean useSession, char[] passwordChars) throws Exception {
+        try (Journal opened = useSession
+                ? Journal.open(currentImage, session)
+                : Journal.open(currentImage, passwordChars)) {
+            List<Journal.Entry> entries = opened.entries();
+            if (entries.isEmpty()) {
+                throw new IllegalStateException("This journal has no entries yet.");
+            }
+            Journal.Entry[] choices = new Journal.Entry[entries.size()];
+            for (int i = 0; i < choices.length; i++) choices[i] = entries.get(entries.size() - 1 - i);
+
+            Object picked = JOptionPane.showInputDialog(JournalPanel.this, "Entry to reveal:", "Journal",
+                    JOptionPane.QUESTION_MESSAGE, null, choices, choices[0]);
+            return picked == null ? null : opened.read((Journal.Entry) picked);
+        }
+    }
+
     // Reveal Logic
     private void revealText() {
         new SwingWorker<String, Void>() {
@@ -242,7 +404,8 @@ public class JournalPanel extends JPanel {
                     throw new IllegalStateException("Please load an image first.");
                 }
                 char[] passwordChars = passField.getPassword();
-                if (passwordChars.length == 0) {
+                boolean useSession = passwordChars.length == 0 && session != null;
+                if (passwordChars.length == 0 && !useSession) {
                     throw new IllegalStateException("Password is required.");
                 }
 
@@ -254,13 +417,35 @@ public class JournalPanel extends JPanel {
 
                 setStatus("Extracting and decrypting...", ACCENT_COLOR);
 
-                String encrypted = Steganography.extract(currentImage);
-                if (encrypted == null) {
-                    throw new IllegalStateException("No hidden data found or image is corrupt.");
+                String decrypted;
+                if (Journal.isJournal(currentImage)) {
+                    try {
+                        return revealJournalEntry(useSession, passwordChars);
+                    } finally {
+                        Arrays.fill(passwordChars, ' ');
+                    }
                 }
+                // Texture-placed bodies are located with the entry key, so the key goes in here already
+                Envelope envelope = useSession
+                        ? Steganography.extractEnvelope(currentImage, session)
+                        : Steganography.extractEnvelope(currentImage, passwordChars);
+                if (envelope != null) {
+                    decrypted = useSession
+                            ? AESCrypto.decrypt(envelope, session)
+                            : AESCrypto.decrypt(envelope, passwordChars);
+                } else if (useSession) {
+                    throw new IllegalStateException("Password is required for images saved before sessions.");
+                } else {
+                    // Images saved before the envelope format carry a Base64 string
+                    String encrypted = Steganography.extract(currentImage);
+                    if (encrypted == null) {
+                        Arrays.fill(passwordChars, ' ');
+                        throw new IllegalStateException("No hidden data found or image is corrupt.");
+                    }
 
-                // FIXED: Passed both 'encrypted' data and 'passwordChars'
-                String decrypted = AESCrypto.decrypt(encrypted, passwordChars);
+                    // FIXED: Passed both 'encrypted' data and 'passwordChars'
+                    decrypted = AESCrypto.decrypt(encrypted, passwordChars);
+                }
 
                 Arrays.fill(passwordChars, ' '); // Clear password
                 return decrypted;
@@ -270,6 +455,10 @@ public class JournalPanel extends JPanel {
             protected void done() {
                 try {
                     String decryptedText = get();
+                    if (decryptedText == null) {
+                        setStatus("Reveal Canceled", Color.GRAY);
+                        return;
+                    }
                     textArea.setText(decryptedText);
                     setStatus("Decryption Successful!", SUCCESS_COLOR);
                 } catch (Exception e) {
@@ -1,8 +1,24 @@
 package com.pixelcloak.ui;
 
+import com.pixelcloak.core.AESCrypto;
+import com.pixelcloak.core.KeyCache;
+import com.pixelcloak.core.Session;
+
 import javax.swing.*;
+import java.time.Duration;
+import java.util.Arrays;
 
 public class MainFrame extends JFrame{
+
+    // Derived keys are kept for at most this many entries / this long within one login
+    private static final int KEY_CACHE_ENTRIES = 64;
+    private static final Duration KEY_CACHE_TTL = Duration.ofMinutes(15);
+
+    private LoginPanel loginPanel;
+
+    // Master key derived at login; null when logged in without a password
+    private Session session;
+
     public MainFrame(){
         setTitle("PixelCloak -My little secret");
         setLocationRelativeTo(null);
@@ -10,13 +26,68 @@ public class MainFrame extends JFrame{
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
         // Start with LoginPanel
-        // When login is triggered, switch to JournalPanel
-        LoginPanel loginPanel = new LoginPanel(() -> {
-            setContentPane(new JournalPanel());
-            revalidate();
-            repaint();
-        });
-
-        add(loginPanel);
+        showLogin();
+    }
+
+    private void showLogin() {
+        loginPanel = new LoginPanel(this::login);
+        setContentPane(loginPanel);
+        revalidate();
+        repaint();
+    }
+
+    // When login is triggered, derive the session master key once, then switch to JournalPanel
+    private void login() {
+        char[] password = loginPanel.getPassword();
+        loginPanel.clearPassword();
+
+        // Repeated reveals/saves in this session skip the KDF for a password + salt seen before
+        AESCrypto.enableKeyCache(new KeyCache(KEY_CACHE_ENTRIES, KEY_CACHE_TTL));
+
+        // No master key for an empty password or the panic code
+        if (password.length == 0 || loginPanel.isDuress(password)) {
+            Arrays.fill(password, ' ');
+            showJournal(null);
+            return;
+        }
+
+        new SwingWorker<Session, Void>() {
+            @Override
+            protected Session doInBackground() throws Exception {
+                try {
+                    return Session.open(password);
+                } finally {
+                    Arrays.fill(password, ' '); // Clear password from memory
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    showJournal(get());
+                } catch (Exception e) {
+                    //noinspection CallToPrintStackTrace
+                    e.printStackTrace();
+                    showJournal(null);
+                }
+            }
+        }.execute();
+    }
+
+    private void showJournal(Session session) {
+        this.session = session;
+        setContentPane(new JournalPanel(session, this::logout));
+        revalidate();
+        repaint();
+    }
+
+    // Zeroes the master key and every cached key, then goes back to the login screen
+    private void logout() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        AESCrypto.disableKeyCache();
+        showLogin();
     }
-}
\ No newline at end of file
+}
@@ -7,43 +7,52 @@ try:
     from PIL import Image
 except ImportError:
     # If this prints, it means Java is using a Python that doesn't have Pillow installed
-    print("ERROR|MISSING_LIBRARY: Pillow is not installed. Run 'pip install pillow'")
+    print("ERROR|MISSING_LIBRARY: Pillow is not installed. Run 'pip install pillow'", flush=True)
     sys.exit(1)
 
+THRESHOLD = 4.5
+
 def calculate_entropy(image_path):
+    img = Image.open(image_path)
+    img = img.convert('L') # Convert to Grayscale
+
+    histogram = img.histogram()
+    image_size = img.size[0] * img.size[1]
+
+    entropy = 0
+    for count in histogram:
+        if count > 0:
+            p = count / image_size
+            entropy -= p * math.log2(p)
+
+    return entropy
+
+def analyze(image_path):
+    """One result line for one image: SAFE|score, UNSAFE|score or ERROR|message."""
+    if not os.path.exists(image_path):
+        return "ERROR|File not found: " + image_path
     try:
-        if not os.path.exists(image_path):
-            return -1 
-
-        img = Image.open(image_path)
-        img = img.convert('L') # Convert to Grayscale
-        
-        histogram = img.histogram()
-        image_size = img.size[0] * img.size[1]
-        
-        entropy = 0
-        for count in histogram:
-            if count > 0:
-                p = count / image_size
-                entropy -= p * math.log2(p)
-                
-        return entropy
+        score = calculate_entropy(image_path)
     except Exception:
-        # STOP returning 0. Print the actual error!
-        print("ERROR|PYTHON_CRASH: " + traceback.format_exc().replace('\n', ' '))
-        return 0
+        # Keep the whole traceback on one line, the protocol is line based
+        return "ERROR|PYTHON_CRASH: " + traceback.format_exc().replace('\n', ' ')
+
+    # Threshold check
+    if score > THRESHOLD:
+        return f"SAFE|{score:.2f}"
+    return f"UNSAFE|{score:.2f}"
+
+def worker():
+    """Long-lived mode for AnalyzerPool: one image path per stdin line, one result line back."""
+    for line in sys.stdin:
+        path = line.rstrip('\r\n')
+        if path:
+            print(analyze(path), flush=True)
 
 if __name__ == "__main__":
-    if len(sys.argv) > 1:
-        img_path = sys.argv[1]
-        score = calculate_entropy(img_path)
-        
-        # If score is 0, we likely already printed an ERROR above
-        if score > 0:
-            # Threshold check
-            if score > 4.5:
-                print(f"SAFE|{score:.2f}")
-            else:
-                print(f"UNSAFE|{score:.2f}")
+    if len(sys.argv) > 1 and sys.argv[1] == "--worker":
+        worker()
+    elif len(sys.argv) > 1:
+        print(analyze(sys.argv[1]))
     else:
-        print("ERROR|No path provided")
\ No newline at end of file
+        print("ERROR|No path provided")
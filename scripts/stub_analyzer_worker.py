@@ -0,0 +1,25 @@
+"""Stand-in for `analyze_image.py --worker` that needs no Pillow, for trying AnalyzerPool locally.
+
+Answers every path with a fixed score, except:
+  a path containing "crash" makes the worker exit without answering,
+  a path containing "hang" makes it stop answering (to exercise timeouts),
+  a path containing "unsafe" gets an UNSAFE verdict.
+
+    java -Dpixelcloak.analyzer=python -Dpixelcloak.analyzer.script=scripts/stub_analyzer_worker.py ...
+"""
+import sys
+import time
+
+def answer(path):
+    if "crash" in path:
+        sys.exit(3)
+    if "hang" in path:
+        time.sleep(3600)
+    print("UNSAFE|1.00" if "unsafe" in path else "SAFE|7.50", flush=True)
+
+if __name__ == "__main__":
+    if len(sys.argv) > 1 and sys.argv[1] != "--worker":
+        answer(sys.argv[1])
+    else:
+        for line in sys.stdin:
+            answer(line.rstrip('\r\n'))